@@ -0,0 +1,881 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.commonlib5.lambda.ConsumerThrowException;
+
+/**
+ * QueryDataSet con memorizzazione per colonne.
+ * Invece di un Record (con un Value per colonna) per ogni riga letta,
+ * i dati vengono memorizzati in array primitivi per colonna:
+ * INTEGER/SMALLINT/TINYINT in int[], BIGINT in long[], DOUBLE/FLOAT/REAL in double[],
+ * DATE/TIME/TIMESTAMP in long[] (millisecondi) con una bitmap per i null;
+ * le stringhe sono codificate con un dizionario (una sola istanza per ogni valore distinto).
+ * Gli altri tipi (NUMERIC, BIT, binari) vengono conservati come oggetti.
+ * <br>
+ * getRecord(), findRecord() e l'iteratore ritornano dei Record costruiti al volo
+ * sulla riga richiesta, compatibili con le normali getValue(...).asXxx();
+ * le funzioni getInt(row, col), getString(row, col), ecc. leggono
+ * direttamente dagli array senza creare oggetti.
+ * Il resultset viene aperto in modalità streaming (forward only).
+ * <br>
+ * I record ritornati sono copie: eventuali modifiche non vengono riportate nel dataset.
+ * <PRE>
+ *  try(ColumnarDataSet cds = new ColumnarDataSet(connection, "SELECT * from my_table"))
+ *  {
+ *    cds.fetchRecords();
+ *    for(int i = 0; i &lt; cds.size(); i++)
+ *      total += cds.getLong(i, 1);
+ *  }
+ * </PRE>
+ *
+ * @author Nicola De Nisco
+ */
+public class ColumnarDataSet extends QueryDataSet
+{
+  /** numero massimo di valori distinti indicizzati nel dizionario di una colonna stringa */
+  public static final int DEFAULT_MAX_DICTIONARY_SIZE = 65536;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /** contenitori delle colonne (1 based) */
+  private ColumnStore[] stores = null;
+
+  /** numero di righe memorizzate */
+  private int rowCount = 0;
+
+  private int maxDictionarySize = DEFAULT_MAX_DICTIONARY_SIZE;
+
+  /**
+   * Creates a new ColumnarDataSet based on a connection and a select string.
+   *
+   * @param conn
+   * @param selectStmt
+   *
+   * @exception SQLException
+   * @exception DataSetException
+   */
+  public ColumnarDataSet(Connection conn, String selectStmt)
+     throws SQLException, DataSetException
+  {
+    this(conn, selectStmt, 0);
+  }
+
+  /**
+   * Creates a new ColumnarDataSet based on a connection and a select string.
+   *
+   * @param conn
+   * @param selectStmt
+   * @param fetchSize rows fetched by the driver for each round trip (0 for driver default)
+   *
+   * @exception SQLException
+   * @exception DataSetException
+   */
+  public ColumnarDataSet(Connection conn, String selectStmt, int fetchSize)
+     throws SQLException, DataSetException
+  {
+    super(conn, selectStmt, fetchSize);
+  }
+
+  /**
+   * Create a new ColumnarDataSet based on an existing resultSet.
+   *
+   * @param resultSet
+   *
+   * @exception SQLException
+   * @exception DataSetException
+   */
+  public ColumnarDataSet(ResultSet resultSet)
+     throws SQLException, DataSetException
+  {
+    super(resultSet);
+  }
+
+  @Override
+  protected void processRow(ConsumerThrowException<Record> consumer)
+     throws Exception
+  {
+    // con il consumer i record non vengono conservati
+    if(consumer != null)
+    {
+      super.processRow(consumer);
+      return;
+    }
+
+    if(stores == null)
+      stores = createStores();
+
+    for(int i = 1; i < stores.length; i++)
+      stores[i].append(resultSet, i);
+
+    rowCount++;
+  }
+
+  private ColumnStore[] createStores()
+     throws DataSetException
+  {
+    int numCols = schema.numberOfColumns();
+    ColumnStore[] rv = new ColumnStore[numCols + 1];
+
+    for(int i = 1; i <= numCols; i++)
+    {
+      Column col = schema.column(i);
+      int type = col.typeEnum();
+
+      switch(type)
+      {
+        case Types.INTEGER:
+        case Types.SMALLINT:
+        case Types.TINYINT:
+          rv[i] = new IntStore(col, type);
+          break;
+
+        case Types.BIGINT:
+          rv[i] = new LongStore(col, type);
+          break;
+
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+          rv[i] = new DoubleStore(col, type);
+          break;
+
+        case Types.DATE:
+        case Types.TIME:
+        case Types.TIMESTAMP:
+          rv[i] = new TimeStore(col, type);
+          break;
+
+        // tipi con conversioni particolari in Value: conservati come oggetti
+        case Types.BIT:
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+        case Types.LONGVARBINARY:
+        case Types.VARBINARY:
+        case Types.BINARY:
+        case Types.BLOB:
+        case Types.NULL:
+          rv[i] = new ObjectStore(col, type);
+          break;
+
+        // tutti gli altri vengono letti come stringhe (vedi Value)
+        default:
+          rv[i] = new StringStore(col, type, maxDictionarySize);
+          break;
+      }
+    }
+
+    return rv;
+  }
+
+  private ColumnStore store(int row, int col)
+     throws DataSetException
+  {
+    if(!containsRecord(row))
+      throw new DataSetException("Record not found at index: " + row);
+
+    if(col == 0)
+      throw new DataSetException("Values are 1 based!");
+
+    if(col < 0 || col >= stores.length)
+      throw new DataSetException("Only " + (stores.length - 1) + " columns exist!");
+
+    return stores[col];
+  }
+
+  /**
+   * Costruisce il Record per la riga indicata.
+   * @param row riga (0 based)
+   * @return un nuovo Record con i valori della riga
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  protected Record createRecordView(int row)
+     throws DataSetException, SQLException
+  {
+    Record rec = new Record(this, true);
+
+    for(int i = 1; i < stores.length; i++)
+      rec.getValue(i).setValue(stores[i].get(row));
+
+    return rec;
+  }
+
+  @Override
+  public int size()
+  {
+    return rowCount;
+  }
+
+  @Override
+  public boolean containsRecord(int pos)
+  {
+    return pos >= 0 && pos < rowCount;
+  }
+
+  @Override
+  public Record getRecord(int pos)
+     throws DataSetException
+  {
+    return findRecord(pos);
+  }
+
+  @Override
+  public Record findRecord(int pos)
+     throws DataSetException
+  {
+    if(!containsRecord(pos))
+      throw new DataSetException("Record not found at index: " + pos);
+
+    try
+    {
+      return createRecordView(pos);
+    }
+    catch(SQLException e)
+    {
+      throw new DataSetException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public List<Record> fetchAllRecords()
+     throws SQLException, DataSetException
+  {
+    if(!allRecordsRetrieved())
+      fetchRecords();
+
+    ArrayList<Record> rv = new ArrayList<>(rowCount);
+    for(int i = 0; i < rowCount; i++)
+      rv.add(createRecordView(i));
+
+    return rv;
+  }
+
+  @Override
+  public DataSet clearRecords()
+  {
+    super.clearRecords();
+    clearStores();
+    return this;
+  }
+
+  @Override
+  public DataSet releaseRecords()
+  {
+    super.releaseRecords();
+    clearStores();
+    return this;
+  }
+
+  private void clearStores()
+  {
+    stores = null;
+    rowCount = 0;
+  }
+
+  @Override
+  public Iterator<Record> iterator()
+  {
+    // se non è stato eseguito fetchRecords() legge dal resultset
+    if(records == null)
+      return super.iterator();
+
+    return new Iterator<Record>()
+    {
+      private int pos = 0;
+
+      @Override
+      public boolean hasNext()
+      {
+        return pos < rowCount;
+      }
+
+      @Override
+      public Record next()
+      {
+        if(!hasNext())
+          throw new NoSuchElementException();
+
+        try
+        {
+          return createRecordView(pos++);
+        }
+        catch(SQLException | DataSetException ex)
+        {
+          throw new UncheckedDataSetException(ex);
+        }
+      }
+    };
+  }
+
+  @Override
+  public Stream<Record> stream()
+     throws SQLException, DataSetException
+  {
+    // se non è stato eseguito fetchRecords() legge dal resultset
+    if(records == null)
+      return super.stream();
+
+    return IntStream.range(0, rowCount).mapToObj((row) ->
+    {
+      try
+      {
+        return createRecordView(row);
+      }
+      catch(SQLException | DataSetException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    });
+  }
+
+  /**
+   * Ritorna il valore della cella.
+   * @param row riga (0 based)
+   * @param col colonna (1 based)
+   * @return un nuovo Value con il contenuto della cella
+   * @throws DataSetException
+   */
+  public Value getValue(int row, int col)
+     throws DataSetException
+  {
+    try
+    {
+      return store(row, col).toValue(row, col);
+    }
+    catch(SQLException e)
+    {
+      throw new DataSetException(e.getMessage(), e);
+    }
+  }
+
+  public Value getValue(int row, String columnName)
+     throws DataSetException
+  {
+    return getValue(row, schema.index(columnName));
+  }
+
+  /**
+   * Ritorna l'oggetto contenuto nella cella.
+   * Il tipo è lo stesso che avrebbe Value.getValue() nel Record corrispondente.
+   * @param row riga (0 based)
+   * @param col colonna (1 based)
+   * @return valore o null
+   * @throws DataSetException
+   */
+  public Object getObject(int row, int col)
+     throws DataSetException
+  {
+    return store(row, col).get(row);
+  }
+
+  public boolean isNull(int row, int col)
+     throws DataSetException
+  {
+    return store(row, col).isNull(row);
+  }
+
+  public int getInt(int row, int col)
+     throws DataSetException
+  {
+    return store(row, col).getInt(row, col);
+  }
+
+  public long getLong(int row, int col)
+     throws DataSetException
+  {
+    return store(row, col).getLong(row, col);
+  }
+
+  public double getDouble(int row, int col)
+     throws DataSetException
+  {
+    return store(row, col).getDouble(row, col);
+  }
+
+  public String getString(int row, int col)
+     throws DataSetException
+  {
+    return store(row, col).getString(row, col);
+  }
+
+  /**
+   * Numero di valori distinti memorizzati nel dizionario di una colonna stringa.
+   * Non supera mai getMaxDictionarySize(): i valori oltre il limite non sono conteggiati.
+   * @param col colonna (1 based)
+   * @return dimensione del dizionario oppure -1 se la colonna non è di tipo stringa
+   */
+  public int getDictionarySize(int col)
+  {
+    if(stores == null || col < 1 || col >= stores.length || !(stores[col] instanceof StringStore))
+      return -1;
+
+    return ((StringStore) stores[col]).dictionary.size();
+  }
+
+  public int getMaxDictionarySize()
+  {
+    return maxDictionarySize;
+  }
+
+  /**
+   * Numero massimo di valori distinti indicizzati per ogni colonna stringa.
+   * Oltre questo limite i nuovi valori vengono memorizzati riga per riga
+   * fuori dal dizionario, senza condividere le istanze uguali (evita di far
+   * crescere il dizionario su colonne con valori quasi tutti diversi).
+   * Deve essere impostato prima di fetchRecords().
+   * @param maxDictionarySize numero massimo di valori indicizzati
+   */
+  public void setMaxDictionarySize(int maxDictionarySize)
+  {
+    this.maxDictionarySize = maxDictionarySize;
+  }
+
+  private static int grow(int capacity)
+  {
+    return capacity + (capacity >> 1) + INITIAL_CAPACITY;
+  }
+
+  /**
+   * Contenitore dei valori di una colonna.
+   */
+  private abstract static class ColumnStore
+  {
+    protected final Column column;
+    protected final int type;
+    protected final BitSet nulls = new BitSet();
+    protected int size = 0;
+
+    public ColumnStore(Column column, int type)
+    {
+      this.column = column;
+      this.type = type;
+    }
+
+    public abstract void append(ResultSet rs, int col)
+       throws SQLException;
+
+    public abstract Object get(int row);
+
+    public boolean isNull(int row)
+    {
+      return nulls.get(row);
+    }
+
+    public Value toValue(int row, int col)
+       throws SQLException
+    {
+      return new Value(col, column, type, get(row));
+    }
+
+    public int getInt(int row, int col)
+       throws DataSetException
+    {
+      return valueOf(row, col).asInt();
+    }
+
+    public long getLong(int row, int col)
+       throws DataSetException
+    {
+      return valueOf(row, col).asLong();
+    }
+
+    public double getDouble(int row, int col)
+       throws DataSetException
+    {
+      return valueOf(row, col).asDouble();
+    }
+
+    public String getString(int row, int col)
+       throws DataSetException
+    {
+      return valueOf(row, col).asString();
+    }
+
+    private Value valueOf(int row, int col)
+       throws DataSetException
+    {
+      try
+      {
+        return toValue(row, col);
+      }
+      catch(SQLException e)
+      {
+        throw new DataSetException(e.getMessage(), e);
+      }
+    }
+  }
+
+  private static class IntStore extends ColumnStore
+  {
+    private int[] data = new int[INITIAL_CAPACITY];
+
+    public IntStore(Column column, int type)
+    {
+      super(column, type);
+    }
+
+    @Override
+    public void append(ResultSet rs, int col)
+       throws SQLException
+    {
+      int v = rs.getInt(col);
+      if(v == 0 && rs.wasNull())
+        nulls.set(size);
+
+      if(size == data.length)
+        data = Arrays.copyOf(data, grow(size));
+
+      data[size++] = v;
+    }
+
+    @Override
+    public Object get(int row)
+    {
+      if(nulls.get(row))
+        return null;
+
+      switch(type)
+      {
+        case Types.SMALLINT:
+          return (short) data[row];
+        case Types.TINYINT:
+          return (byte) data[row];
+        default:
+          return data[row];
+      }
+    }
+
+    @Override
+    public int getInt(int row, int col)
+    {
+      return data[row];
+    }
+
+    @Override
+    public long getLong(int row, int col)
+    {
+      return data[row];
+    }
+
+    @Override
+    public double getDouble(int row, int col)
+    {
+      return data[row];
+    }
+  }
+
+  private static class LongStore extends ColumnStore
+  {
+    private long[] data = new long[INITIAL_CAPACITY];
+
+    public LongStore(Column column, int type)
+    {
+      super(column, type);
+    }
+
+    @Override
+    public void append(ResultSet rs, int col)
+       throws SQLException
+    {
+      long v = rs.getLong(col);
+      if(v == 0 && rs.wasNull())
+        nulls.set(size);
+
+      if(size == data.length)
+        data = Arrays.copyOf(data, grow(size));
+
+      data[size++] = v;
+    }
+
+    @Override
+    public Object get(int row)
+    {
+      return nulls.get(row) ? null : data[row];
+    }
+
+    @Override
+    public int getInt(int row, int col)
+    {
+      return (int) data[row];
+    }
+
+    @Override
+    public long getLong(int row, int col)
+    {
+      return data[row];
+    }
+
+    @Override
+    public double getDouble(int row, int col)
+    {
+      return data[row];
+    }
+  }
+
+  private static class DoubleStore extends ColumnStore
+  {
+    private double[] data = new double[INITIAL_CAPACITY];
+
+    public DoubleStore(Column column, int type)
+    {
+      super(column, type);
+    }
+
+    @Override
+    public void append(ResultSet rs, int col)
+       throws SQLException
+    {
+      // REAL viene letto come float per avere gli stessi valori di Value
+      double v = type == Types.REAL ? rs.getFloat(col) : rs.getDouble(col);
+      if(v == 0 && rs.wasNull())
+        nulls.set(size);
+
+      if(size == data.length)
+        data = Arrays.copyOf(data, grow(size));
+
+      data[size++] = v;
+    }
+
+    @Override
+    public Object get(int row)
+    {
+      if(nulls.get(row))
+        return null;
+
+      return type == Types.REAL ? (Object) (float) data[row] : (Object) data[row];
+    }
+
+    @Override
+    public int getInt(int row, int col)
+    {
+      return (int) data[row];
+    }
+
+    @Override
+    public long getLong(int row, int col)
+    {
+      return (long) data[row];
+    }
+
+    @Override
+    public double getDouble(int row, int col)
+    {
+      return data[row];
+    }
+  }
+
+  private static class TimeStore extends ColumnStore
+  {
+    private long[] millis = new long[INITIAL_CAPACITY];
+
+    /** nanosecondi dei timestamp (solo per TIMESTAMP) */
+    private int[] nanos;
+
+    public TimeStore(Column column, int type)
+    {
+      super(column, type);
+
+      if(type == Types.TIMESTAMP)
+        nanos = new int[INITIAL_CAPACITY];
+    }
+
+    @Override
+    public void append(ResultSet rs, int col)
+       throws SQLException
+    {
+      java.util.Date d;
+
+      switch(type)
+      {
+        case Types.DATE:
+          d = rs.getDate(col);
+          break;
+        case Types.TIME:
+          d = rs.getTime(col);
+          break;
+        default:
+          d = rs.getTimestamp(col);
+          break;
+      }
+
+      if(size == millis.length)
+      {
+        millis = Arrays.copyOf(millis, grow(size));
+        if(nanos != null)
+          nanos = Arrays.copyOf(nanos, millis.length);
+      }
+
+      if(d == null)
+      {
+        nulls.set(size);
+      }
+      else
+      {
+        millis[size] = d.getTime();
+        if(nanos != null)
+          nanos[size] = ((Timestamp) d).getNanos();
+      }
+
+      size++;
+    }
+
+    @Override
+    public Object get(int row)
+    {
+      if(nulls.get(row))
+        return null;
+
+      switch(type)
+      {
+        case Types.DATE:
+          return new java.sql.Date(millis[row]);
+        case Types.TIME:
+          return new java.sql.Time(millis[row]);
+        default:
+          Timestamp ts = new Timestamp(millis[row]);
+          ts.setNanos(nanos[row]);
+          return ts;
+      }
+    }
+  }
+
+  private static class StringStore extends ColumnStore
+  {
+    private final HashMap<String, Integer> index = new HashMap<>();
+    private final ArrayList<String> dictionary = new ArrayList<>();
+    /** valori oltre il limite del dizionario */
+    private final ArrayList<String> overflow = new ArrayList<>();
+    private final int maxIndexSize;
+
+    /** posizione nel dizionario; -1 per i null; -2 - posizione in overflow oltre il limite */
+    private int[] codes = new int[INITIAL_CAPACITY];
+
+    public StringStore(Column column, int type, int maxIndexSize)
+    {
+      super(column, type);
+      this.maxIndexSize = maxIndexSize;
+    }
+
+    @Override
+    public void append(ResultSet rs, int col)
+       throws SQLException
+    {
+      String s = rs.getString(col);
+      int code = -1;
+
+      if(s != null)
+      {
+        Integer pos = index.get(s);
+        if(pos == null)
+        {
+          if(dictionary.size() < maxIndexSize)
+          {
+            code = dictionary.size();
+            dictionary.add(s);
+            index.put(s, code);
+          }
+          else
+          {
+            code = -2 - overflow.size();
+            overflow.add(s);
+          }
+        }
+        else
+        {
+          code = pos;
+        }
+      }
+
+      if(size == codes.length)
+        codes = Arrays.copyOf(codes, grow(size));
+
+      codes[size++] = code;
+    }
+
+    @Override
+    public Object get(int row)
+    {
+      int code = codes[row];
+      if(code >= 0)
+        return dictionary.get(code);
+
+      return code == -1 ? null : overflow.get(-2 - code);
+    }
+
+    @Override
+    public boolean isNull(int row)
+    {
+      return codes[row] == -1;
+    }
+
+    @Override
+    public String getString(int row, int col)
+    {
+      return (String) get(row);
+    }
+  }
+
+  private static class ObjectStore extends ColumnStore
+  {
+    private Object[] data = new Object[INITIAL_CAPACITY];
+    private final ValueReader reader;
+
+    public ObjectStore(Column column, int type)
+    {
+      super(column, type);
+      reader = ValueReader.forType(type);
+    }
+
+    @Override
+    public void append(ResultSet rs, int col)
+       throws SQLException
+    {
+      if(size == data.length)
+        data = Arrays.copyOf(data, grow(size));
+
+      // stesse conversioni del Record tradizionale
+      data[size++] = reader.read(rs, col);
+    }
+
+    @Override
+    public Object get(int row)
+    {
+      return data[row];
+    }
+
+    @Override
+    public boolean isNull(int row)
+    {
+      return data[row] == null;
+    }
+  }
+}
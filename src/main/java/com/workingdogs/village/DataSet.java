@@ -21,13 +21,25 @@ package com.workingdogs.village;
 import java.io.Closeable;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.commonlib5.lambda.ConsumerThrowException;
 import org.commonlib5.utils.Pair;
 
@@ -59,6 +71,42 @@ public abstract class DataSet implements Closeable, Iterable<Record>
   /** if saveWithInsert prefer saveWithInsertAndGetGeneratedKeys */
   private boolean preferInsertAndGetGeneratedKeys = false;
 
+  /** if true start/max of fetchRecords are translated in the SQL (OFFSET/LIMIT) */
+  private boolean sqlPaging = false;
+
+  /** if true the result set is opened forward only and read only (streaming cursor) */
+  private boolean streaming = false;
+
+  /** fetch size hint for the driver; 0 means driver default */
+  private int fetchSize = 0;
+
+  /** if true the records read from the result set create their Values on first access */
+  private boolean lazyRecords = false;
+
+  /** if true the fetch with consumer refills the same Record for every row */
+  private boolean reuseRecords = false;
+
+  /** the Record refilled in reuse mode */
+  private Record reusableRecord = null;
+
+  /** records per batch in the pipelined fetch with consumer; 0 disables the pipeline */
+  private int pipelineBatchSize = 0;
+
+  /** max number of batches waiting for the consumer in the pipelined fetch */
+  private int pipelineQueueSize = 4;
+
+  /** if true a read error in the pipelined fetch discards the batches not yet consumed */
+  private boolean pipelineFailFast = true;
+
+  /** true if this DataSet has acquired the StatementCache of its connection */
+  private boolean statementCacheAcquired = false;
+
+  /** how BLOB/CLOB/NCLOB columns are read (see LobHandle) */
+  private int lobMode = LobHandle.LOB_MATERIALIZE;
+
+  /** true if the result set has been opened and no row has been read yet */
+  protected boolean resultSetFresh = false;
+
   /** number of records retrieved */
   private int recordRetrievedCount = 0;
 
@@ -80,6 +128,9 @@ public abstract class DataSet implements Closeable, Iterable<Record>
   /** the Statement for this DataSet */
   protected Statement stmt;
 
+  /** true if stmt has been prepared but not yet executed (see prepareResultset()) */
+  private boolean stmtPending = false;
+
   /** cache definizione chiavi primarie */
   protected static final HashMap<String, KeyDef> keydefCache = new HashMap<>(256);
 
@@ -246,6 +297,9 @@ public abstract class DataSet implements Closeable, Iterable<Record>
   public ResultSet resultSet()
      throws SQLException, DataSetException
   {
+    if(resultSet == null && stmtPending)
+      executePending();
+
     if(resultSet == null)
     {
       throw new DataSetException("ResultSet is null.");
@@ -359,6 +413,7 @@ public abstract class DataSet implements Closeable, Iterable<Record>
   {
     if(records != null)
     {
+      closeLobs();
       records.clear();
       records = null;
     }
@@ -369,6 +424,15 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     return this;
   }
 
+  /**
+   * Chiude i LobHandle dei record letti (vedi setLobMode()).
+   */
+  private void closeLobs()
+  {
+    for(Record rec : records)
+      rec.closeLobs();
+  }
+
   /**
    * Removes the records from the DataSet, but does not null the records out
    *
@@ -378,6 +442,7 @@ public abstract class DataSet implements Closeable, Iterable<Record>
   {
     if(records != null)
     {
+      closeLobs();
       records.clear();
       records = null;
     }
@@ -432,6 +497,14 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     }
 
     stmt = null;
+    stmtPending = false;
+
+    if(statementCacheAcquired)
+    {
+      StatementCache.release(conn);
+      statementCacheAcquired = false;
+    }
+
     conn = null;
 
     if(sqlEx != null)
@@ -482,6 +555,7 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     }
 
     stmt = null;
+    stmtPending = false;
 
     if(sqlEx != null)
     {
@@ -681,6 +755,17 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     return lastFetchSize;
   }
 
+  /**
+   * Imposta il numero di record letti per le classi derivate
+   * che caricano i record senza passare da populateRecords().
+   *
+   * @param lastFetchSize numero di record letti
+   */
+  protected void setLastFetchSize(int lastFetchSize)
+  {
+    this.lastFetchSize = lastFetchSize;
+  }
+
   /**
    * gets the KeyDef object for this DataSet
    *
@@ -833,8 +918,16 @@ public abstract class DataSet implements Closeable, Iterable<Record>
 
     try
     {
-      openResultset();
-      populateRecords(start, max, consumer);
+      if(sqlPaging && openPagedResultset(start, max))
+      {
+        // i record da saltare sono già stati esclusi dal db
+        populateRecords(0, max, consumer);
+      }
+      else
+      {
+        openResultset();
+        populateRecords(start, max, consumer);
+      }
     }
     catch(SQLException | DataSetException e)
     {
@@ -846,17 +939,7 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     }
     finally
     {
-      if(resultSet != null)
-      {
-        resultSet.close();
-        resultSet = null;
-      }
-
-      if(stmt != null)
-      {
-        stmt.close();
-        stmt = null;
-      }
+      closeResultset();
     }
 
     return this;
@@ -865,6 +948,12 @@ public abstract class DataSet implements Closeable, Iterable<Record>
   protected void openResultset()
      throws SQLException, DataSetException
   {
+    if(stmtPending)
+    {
+      executePending();
+      return;
+    }
+
     if((stmt == null) && (resultSet == null))
     {
       if(selectString == null)
@@ -876,12 +965,166 @@ public abstract class DataSet implements Closeable, Iterable<Record>
         selectString.append(schema.getFullTableName());
       }
 
-      stmt = conn.createStatement(
-         ResultSet.TYPE_SCROLL_INSENSITIVE, // Permette di scorrere avanti/indietro
-         ResultSet.CONCUR_READ_ONLY // Solo lettura
-      );
+      openResultset(selectString.toString());
+    }
+  }
+
+  /**
+   * Crea statement e resultset per la query indicata.
+   * @param sql query da eseguire
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  protected void openResultset(String sql)
+     throws SQLException, DataSetException
+  {
+    stmt = conn.createStatement(
+       resultSetType(), // scorrimento avanti/indietro oppure solo avanti (streaming)
+       ResultSet.CONCUR_READ_ONLY // Solo lettura
+    );
+    applyFetchSize(stmt);
+
+    resultSet = stmt.executeQuery(sql);
+    resultSetFresh = true;
+  }
+
+  /**
+   * Prepara lo statement per la query indicata senza eseguirlo.
+   * Verrà eseguito alla prima lettura, a meno che la lettura non venga
+   * fatta con la query paginata (vedi setSqlPaging()).
+   * @param sql query da preparare
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  protected void prepareResultset(String sql)
+     throws SQLException, DataSetException
+  {
+    stmt = conn.prepareStatement(sql,
+       resultSetType(), // scorrimento avanti/indietro oppure solo avanti (streaming)
+       ResultSet.CONCUR_READ_ONLY // Solo lettura
+    );
+    applyFetchSize(stmt);
+    stmtPending = true;
+  }
+
+  /**
+   * Esegue lo statement preparato da prepareResultset().
+   * @throws SQLException
+   */
+  private void executePending()
+     throws SQLException
+  {
+    stmtPending = false;
+    resultSet = ((PreparedStatement) stmt).executeQuery();
+    resultSetFresh = true;
+  }
+
+  /**
+   * Metadati della query preparata da prepareResultset().
+   * Se il driver non li fornisce senza eseguire la query, la query viene eseguita.
+   * @return metadati delle colonne
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  protected ResultSetMetaData preparedMetaData()
+     throws SQLException, DataSetException
+  {
+    ResultSetMetaData md = null;
+
+    try
+    {
+      md = ((PreparedStatement) stmt).getMetaData();
+    }
+    catch(SQLFeatureNotSupportedException ex)
+    {
+      // il driver non descrive la query senza eseguirla
+    }
+
+    if(md != null)
+      return md;
+
+    openResultset();
+    return resultSet.getMetaData();
+  }
+
+  /**
+   * Tipo di resultset da utilizzare per le query.
+   * @return TYPE_FORWARD_ONLY in modalità streaming altrimenti TYPE_SCROLL_INSENSITIVE
+   */
+  protected int resultSetType()
+  {
+    return streaming ? ResultSet.TYPE_FORWARD_ONLY : ResultSet.TYPE_SCROLL_INSENSITIVE;
+  }
+
+  /**
+   * Imposta sullo statement il fetch size se richiesto.
+   * @param st statement appena creato
+   * @throws SQLException
+   */
+  protected void applyFetchSize(Statement st)
+     throws SQLException
+  {
+    if(fetchSize != 0)
+      st.setFetchSize(fetchSize);
+  }
+
+  /**
+   * Apre il resultset con la query riscritta per ritornare solo i record richiesti.
+   * La riscrittura dipende dal database (vedi SqlDialect); se non è possibile
+   * ritorna false e i record verranno saltati lato client.
+   * @param start primo record da leggere (0 based)
+   * @param max numero massimo di record
+   * @return vero se il resultset è stato aperto con la query paginata
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  protected boolean openPagedResultset(int start, int max)
+     throws SQLException, DataSetException
+  {
+    if(start <= 0 && max <= 0)
+      return false;
+
+    if(selectString == null || selectString.length() == 0)
+      return false;
+
+    String sql = SqlDialect.getDialect(conn).buildPagedQuery(selectString.toString(), start, max);
+    if(sql == null)
+      return false;
 
-      resultSet = stmt.executeQuery(selectString.toString());
+    // il resultset eventualmente aperto (QueryDataSet) non serve più
+    closeResultset();
+    openResultset(sql);
+    return true;
+  }
+
+  /**
+   * Chiude resultset e statement se aperti.
+   * @throws SQLException
+   */
+  protected void closeResultset()
+     throws SQLException
+  {
+    try
+    {
+      if(resultSet != null)
+        resultSet.close();
+    }
+    finally
+    {
+      resultSet = null;
+      stmtPending = false;
+
+      if(stmt != null)
+      {
+        try
+        {
+          stmt.close();
+        }
+        finally
+        {
+          stmt = null;
+        }
+      }
     }
   }
 
@@ -924,6 +1167,8 @@ public abstract class DataSet implements Closeable, Iterable<Record>
   {
     if(resultSet != null)
     {
+      resultSetFresh = false;
+
       if((records == null) && (max > 0))
       {
         records = new ArrayList<>(max);
@@ -933,6 +1178,12 @@ public abstract class DataSet implements Closeable, Iterable<Record>
         records = new ArrayList<>();
       }
 
+      if(consumer != null && pipelineBatchSize > 0)
+      {
+        populateRecordsPipelined(start, max, consumer);
+        return;
+      }
+
       int startCounter = 0;
       int fetchCount = 0;
 
@@ -947,13 +1198,7 @@ public abstract class DataSet implements Closeable, Iterable<Record>
         {
           if(startCounter >= start)
           {
-            Record rec = new Record(this);
-
-            if(consumer == null)
-              records.add(rec);
-            else
-              consumer.accept(rec);
-
+            processRow(consumer);
             fetchCount++;
           }
           else
@@ -972,6 +1217,158 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     }
   }
 
+  /**
+   * Lettura con consumer in pipeline.
+   * Un thread dedicato legge il resultset e prepara blocchi di record
+   * in una coda limitata (pipelineQueueSize); il thread chiamante
+   * passa al consumer i record del blocco precedente.
+   * Se la coda è piena il thread di lettura attende (backpressure).
+   * Un errore del consumer interrompe la lettura; un errore di lettura
+   * viene rilanciato subito (pipelineFailFast) oppure dopo aver consumato
+   * i record già letti.
+   * @param start primo record da leggere
+   * @param max numero massimo di record
+   * @param consumer consumer dei record
+   * @throws Exception
+   */
+  private void populateRecordsPipelined(int start, int max, ConsumerThrowException<Record> consumer)
+     throws Exception
+  {
+    final ArrayBlockingQueue<List<Record>> queue = new ArrayBlockingQueue<>(Math.max(1, pipelineQueueSize));
+    final List<Record> endOfData = new ArrayList<>(0);
+    final AtomicReference<Throwable> readError = new AtomicReference<>();
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    final AtomicBoolean exhausted = new AtomicBoolean(allRecordsRetrieved());
+
+    Thread producer = new Thread(() ->
+    {
+      try
+      {
+        int startCounter = 0;
+        int readCount = 0;
+        List<Record> batch = new ArrayList<>(pipelineBatchSize);
+
+        while(!exhausted.get() && !stop.get() && readCount != max)
+        {
+          if(!resultSet.next())
+          {
+            exhausted.set(true);
+            break;
+          }
+
+          if(startCounter < start)
+          {
+            startCounter++;
+            continue;
+          }
+
+          batch.add(new Record(this));
+          readCount++;
+
+          if(batch.size() == pipelineBatchSize)
+          {
+            offerBatch(queue, batch, stop);
+            batch = new ArrayList<>(pipelineBatchSize);
+          }
+        }
+
+        if(!batch.isEmpty())
+          offerBatch(queue, batch, stop);
+      }
+      catch(Throwable t)
+      {
+        readError.set(t);
+      }
+      finally
+      {
+        try
+        {
+          offerBatch(queue, endOfData, stop);
+        }
+        catch(InterruptedException ex)
+        {
+          // il consumer non è più in attesa
+        }
+      }
+    }, "village-prefetch");
+
+    producer.setDaemon(true);
+    producer.start();
+
+    int fetchCount = 0;
+    try
+    {
+      List<Record> batch;
+      while((batch = queue.take()) != endOfData)
+      {
+        if(pipelineFailFast && readError.get() != null)
+          break;
+
+        for(Record rec : batch)
+        {
+          consumer.accept(rec);
+          fetchCount++;
+        }
+      }
+    }
+    finally
+    {
+      // sblocca il produttore se in attesa sulla coda piena
+      stop.set(true);
+      queue.clear();
+      producer.join();
+    }
+
+    Throwable t = readError.get();
+    if(t instanceof Exception)
+      throw (Exception) t;
+    if(t instanceof Error)
+      throw (Error) t;
+
+    if(exhausted.get())
+      setAllRecordsRetrieved(true);
+
+    lastFetchSize = fetchCount;
+  }
+
+  private static void offerBatch(ArrayBlockingQueue<List<Record>> queue, List<Record> batch, AtomicBoolean stop)
+     throws InterruptedException
+  {
+    while(!stop.get())
+    {
+      if(queue.offer(batch, 100, TimeUnit.MILLISECONDS))
+        return;
+    }
+  }
+
+  /**
+   * Elabora la riga corrente del resultset.
+   * Il default crea un Record e lo aggiunge all'elenco o lo passa al consumer.
+   * Le classi derivate possono sovrascriverla per memorizzare le righe in altro modo.
+   * @param consumer consumer dei record (può essere null)
+   * @throws Exception
+   */
+  protected void processRow(ConsumerThrowException<Record> consumer)
+     throws Exception
+  {
+    if(consumer != null && reuseRecords)
+    {
+      if(reusableRecord == null)
+        reusableRecord = new Record(this, true);
+
+      reusableRecord.refill(resultSet);
+      consumer.accept(reusableRecord);
+      return;
+    }
+
+    Record rec = new Record(this);
+
+    if(consumer == null)
+      records.add(rec);
+    else
+      consumer.accept(rec);
+  }
+
   public Connection getConnection()
   {
     return conn;
@@ -987,6 +1384,223 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     return preferInsertAndGetGeneratedKeys;
   }
 
+  public boolean isSqlPaging()
+  {
+    return sqlPaging;
+  }
+
+  /**
+   * Attiva la paginazione lato db.
+   * Se attiva fetchRecords(start, max, ...) riscrive la query in forma
+   * OFFSET/FETCH, LIMIT o ROWNUM a seconda del database, invece di
+   * leggere e scartare i primi start record.
+   * Se il database non supporta nessuna di queste forme
+   * viene usata comunque la lettura lato client.
+   * Per risultati stabili la query deve avere un ORDER BY.
+   * Per QueryDataSet usare il costruttore con sqlPaging, che non esegue
+   * la query completa prima di quella paginata.
+   * @param sqlPaging vero per attivare la paginazione lato db
+   */
+  public void setSqlPaging(boolean sqlPaging)
+  {
+    this.sqlPaging = sqlPaging;
+  }
+
+  public boolean isStreaming()
+  {
+    return streaming;
+  }
+
+  /**
+   * Attiva la modalità streaming.
+   * In questa modalità il resultset viene aperto TYPE_FORWARD_ONLY/CONCUR_READ_ONLY
+   * e il driver non è costretto a caricare in memoria tutto il risultato
+   * prima di restituire la prima riga.
+   * L'iteratore e fetchRecords con consumer leggono i record man mano;
+   * una seconda iterazione riesegue la query.
+   * Deve essere impostata prima dell'apertura del resultset
+   * (per QueryDataSet usare il costruttore con fetchSize).
+   * NOTA: alcuni driver (PostgreSQL) fanno streaming solo con autocommit disattivato.
+   * @param streaming vero per attivare lo streaming
+   */
+  public void setStreaming(boolean streaming)
+  {
+    this.streaming = streaming;
+  }
+
+  public int getFetchSize()
+  {
+    return fetchSize;
+  }
+
+  /**
+   * Numero di righe che il driver legge dal db ad ogni round trip.
+   * Il valore viene passato così com'è a Statement.setFetchSize()
+   * (per MySQL usare Integer.MIN_VALUE per lo streaming riga per riga).
+   * @param fetchSize righe per round trip; 0 per il default del driver
+   */
+  public void setFetchSize(int fetchSize)
+  {
+    this.fetchSize = fetchSize;
+  }
+
+  public int getPipelineBatchSize()
+  {
+    return pipelineBatchSize;
+  }
+
+  /**
+   * Attiva la lettura in pipeline per fetchRecords() con consumer.
+   * I record vengono letti e convertiti da un thread dedicato a blocchi
+   * di questa dimensione, mentre il consumer elabora i blocchi precedenti:
+   * attesa del db ed elaborazione si sovrappongono.
+   * Il consumer viene sempre chiamato dal thread che ha invocato fetchRecords(),
+   * nello stesso ordine delle righe.
+   * Senza consumer la lettura non cambia.
+   * @param pipelineBatchSize record per blocco; 0 per disattivare
+   */
+  public void setPipelineBatchSize(int pipelineBatchSize)
+  {
+    this.pipelineBatchSize = pipelineBatchSize;
+  }
+
+  public int getPipelineQueueSize()
+  {
+    return pipelineQueueSize;
+  }
+
+  /**
+   * Numero massimo di blocchi letti e non ancora elaborati dal consumer.
+   * Raggiunto il limite il thread di lettura si ferma finché il consumer
+   * non libera un posto (limita la memoria usata se il consumer è lento).
+   * @param pipelineQueueSize numero di blocchi in coda (almeno 1)
+   */
+  public void setPipelineQueueSize(int pipelineQueueSize)
+  {
+    this.pipelineQueueSize = pipelineQueueSize;
+  }
+
+  public boolean isPipelineFailFast()
+  {
+    return pipelineFailFast;
+  }
+
+  /**
+   * Comportamento in caso di errore di lettura nella pipeline.
+   * Se vero (default) l'errore viene rilanciato appena rilevato e i blocchi in coda
+   * vengono scartati; se falso il consumer riceve prima tutti i record letti
+   * correttamente e poi viene rilanciato l'errore.
+   * @param pipelineFailFast vero per interrompere subito
+   */
+  public void setPipelineFailFast(boolean pipelineFailFast)
+  {
+    this.pipelineFailFast = pipelineFailFast;
+  }
+
+  public int getLobMode()
+  {
+    return lobMode;
+  }
+
+  /**
+   * Modalità di lettura delle colonne BLOB, CLOB e NCLOB.
+   * <ul>
+   * <li>LobHandle.LOB_MATERIALIZE (default): il contenuto viene letto in memoria
+   * (byte[] per BLOB, String per CLOB/NCLOB)</li>
+   * <li>LobHandle.LOB_LOCATOR: il Value contiene un LobHandle con il locator JDBC;
+   * il contenuto resta sul db ed è leggibile solo finché la transazione è aperta
+   * (con autocommit attivo di solito solo durante la lettura con consumer)</li>
+   * <li>LobHandle.LOB_SPILL: il contenuto viene copiato in un file temporaneo
+   * durante la lettura della riga; il file viene cancellato da LobHandle.close()</li>
+   * </ul>
+   * Con LobHandle usare Value.asInputStream() o Value.asReader() per leggere il contenuto;
+   * al salvataggio i LobHandle vengono passati al db come stream.
+   * I LobHandle dei record vengono chiusi da close(), releaseRecords() e clearRecords():
+   * i record restano utilizzabili ma non il contenuto dei LOB.
+   * @param lobMode una delle costanti LobHandle.LOB_...
+   * @throws DataSetException se la modalità non è valida
+   */
+  public void setLobMode(int lobMode)
+     throws DataSetException
+  {
+    if(lobMode < LobHandle.LOB_MATERIALIZE || lobMode > LobHandle.LOB_SPILL)
+      throw new DataSetException("Invalid LOB mode " + lobMode + ".");
+
+    this.lobMode = lobMode;
+  }
+
+  /**
+   * Attiva la cache degli statement per la connessione di questo DataSet.
+   * I salvataggi e i refresh dei record riusano gli statement già preparati
+   * invece di prepararli e chiuderli per ogni record.
+   * La cache è condivisa da tutti gli utilizzatori della connessione
+   * e viene chiusa quando l'ultimo DataSet che l'ha attivata viene chiuso
+   * (vedi StatementCache).
+   * @param maxSize numero massimo di statement conservati; 0 rilascia la cache
+   */
+  public void setStatementCacheSize(int maxSize)
+  {
+    if(statementCacheAcquired)
+    {
+      StatementCache.release(conn);
+      statementCacheAcquired = false;
+    }
+
+    if(maxSize > 0)
+    {
+      StatementCache.acquire(conn, maxSize);
+      statementCacheAcquired = true;
+    }
+  }
+
+  /**
+   * Ritorna la cache degli statement attiva per la connessione.
+   * @return la cache oppure null se non attiva
+   */
+  public StatementCache getStatementCache()
+  {
+    return StatementCache.get(conn);
+  }
+
+  public boolean isReuseRecords()
+  {
+    return reuseRecords;
+  }
+
+  /**
+   * Attiva il riuso del record nella lettura con consumer.
+   * Invece di creare un nuovo Record per ogni riga viene passato al consumer
+   * sempre lo stesso Record, con i Value aggiornati alla riga corrente.
+   * Il consumer non deve quindi conservare il record (né i suoi Value)
+   * dopo il ritorno: per tenerlo usare Record.copy().
+   * Non ha effetto sulla lettura senza consumer e su quella in pipeline
+   * (vedi setPipelineBatchSize()), dove ogni riga ha comunque il suo record.
+   * @param reuseRecords vero per attivare il riuso
+   */
+  public void setReuseRecords(boolean reuseRecords)
+  {
+    this.reuseRecords = reuseRecords;
+    this.reusableRecord = null;
+  }
+
+  public boolean isLazyRecords()
+  {
+    return lazyRecords;
+  }
+
+  /**
+   * Attiva la creazione ritardata dei Value nei record letti.
+   * Il record conserva solo i valori letti dalla riga e crea il Value
+   * della colonna al primo getValue() (o setValue()).
+   * Utile per query con molte colonne di cui se ne usano poche.
+   * Lo stato di modifica e il salvataggio dei record non cambiano.
+   * @param lazyRecords vero per attivare la modalità lazy
+   */
+  public void setLazyRecords(boolean lazyRecords)
+  {
+    this.lazyRecords = lazyRecords;
+  }
+
   public void setPreferInsertAndGetGeneratedKeys(boolean preferInsertAndGetGeneratedKeys)
   {
     this.preferInsertAndGetGeneratedKeys = preferInsertAndGetGeneratedKeys;
@@ -1001,45 +1615,300 @@ public abstract class DataSet implements Closeable, Iterable<Record>
     return new Iteratore();
   }
 
+  /**
+   * Ritorna uno stream dei record.
+   * Se i record sono già stati caricati (fetchRecords()) lo stream è sulla lista
+   * dei record; altrimenti le righe vengono lette dal resultset man mano che lo stream
+   * le consuma, senza conservarle nel DataSet.
+   * In parallelo (parallel()) le righe vengono lette a blocchi da un solo thread
+   * e la conversione in Record avviene sui thread di lavoro.
+   * La chiusura dello stream chiude resultset e statement:
+   * <PRE>
+   *  try(Stream&lt;Record&gt; st = qds.stream())
+   *  {
+   *    righe = st.map((r) -&gt; r.toString()).collect(Collectors.toList());
+   *  }
+   * </PRE>
+   * Gli errori durante la lettura vengono segnalati con UncheckedDataSetException.
+   * @return stream dei record
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public Stream<Record> stream()
+     throws SQLException, DataSetException
+  {
+    if(records != null)
+      return records.stream();
+
+    prepareResultsetForRead();
+    return StreamSupport.stream(new RecordSpliterator(), false).onClose(() ->
+    {
+      try
+      {
+        closeResultset();
+      }
+      catch(SQLException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    });
+  }
+
+  /**
+   * Prepara il resultset per una nuova lettura dalla prima riga.
+   * Un resultset già letto viene riavvolto se possibile, altrimenti la query viene rieseguita.
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  private void prepareResultsetForRead()
+     throws SQLException, DataSetException
+  {
+    if(resultSet != null && !resultSetFresh)
+    {
+      if(resultSet.getType() == ResultSet.TYPE_FORWARD_ONLY)
+      {
+        // un resultset forward only non può essere riavvolto: riesegue la query
+        if(selectString == null || selectString.length() == 0)
+          throw new DataSetException("ResultSet is forward only and has already been read.");
+
+        closeResultset();
+      }
+      else
+      {
+        resultSet.beforeFirst();
+      }
+    }
+
+    openResultset();
+    resultSetFresh = false;
+  }
+
+  /**
+   * Avanza alla riga successiva del resultset.
+   * A fine lettura un resultset forward only viene chiuso.
+   * @return vero se c'è una riga disponibile
+   * @throws SQLException
+   */
+  private boolean nextRow()
+     throws SQLException
+  {
+    if(resultSet == null)
+      return false;
+
+    if(resultSet.next())
+      return true;
+
+    // a fine lettura un resultset forward only non serve più
+    if(resultSet.getType() == ResultSet.TYPE_FORWARD_ONLY)
+      closeResultset();
+
+    return false;
+  }
+
   private class Iteratore implements Iterator<Record>
   {
+    /** vero se resultSet.next() è già stato chiamato per la riga corrente */
+    private boolean fetched = false;
+
+    /** esito dell'ultimo resultSet.next() */
+    private boolean available = false;
+
     public Iteratore()
     {
       try
       {
-        openResultset();
-        resultSet.beforeFirst();
+        prepareResultsetForRead();
       }
-      catch(Exception e)
+      catch(SQLException | DataSetException e)
       {
-        throw new RuntimeException(e.getMessage(), e);
+        throw new UncheckedDataSetException(e);
       }
     }
 
     @Override
     public boolean hasNext()
     {
+      if(fetched)
+        return available;
+
       try
       {
-        return resultSet.next();
+        available = nextRow();
+        fetched = true;
+        return available;
       }
-      catch(Exception ex)
+      catch(SQLException ex)
       {
-        throw new RuntimeException(ex);
+        throw new UncheckedDataSetException(ex);
       }
     }
 
     @Override
     public Record next()
     {
+      if(!hasNext())
+        throw new NoSuchElementException();
+
       try
       {
+        fetched = false;
         return new Record(DataSet.this);
       }
-      catch(Exception ex)
+      catch(SQLException | DataSetException ex)
       {
-        throw new RuntimeException(ex);
+        throw new UncheckedDataSetException(ex);
       }
     }
   }
+
+  /**
+   * Spliterator sulle righe del resultset.
+   * tryAdvance() crea il Record direttamente dalla riga corrente;
+   * trySplit() legge un blocco di righe (solo i valori) che verranno
+   * convertite in Record da chi consuma il blocco.
+   */
+  private class RecordSpliterator implements Spliterator<Record>
+  {
+    private static final int BATCH_UNIT = 256;
+    private static final int MAX_BATCH = 1 << 14;
+
+    private int batch = 0;
+    private boolean finished = false;
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Record> action)
+    {
+      if(finished)
+        return false;
+
+      try
+      {
+        if(!nextRow())
+        {
+          finished = true;
+          return false;
+        }
+
+        action.accept(new Record(DataSet.this));
+        return true;
+      }
+      catch(SQLException | DataSetException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    }
+
+    @Override
+    public Spliterator<Record> trySplit()
+    {
+      if(finished)
+        return null;
+
+      try
+      {
+        // blocchi di dimensione crescente come Spliterators.AbstractSpliterator
+        int n = Math.min(batch + BATCH_UNIT, MAX_BATCH);
+        ValueReader[] readers = schema.getReaders(lobMode);
+        int numCols = schema.numberOfColumns();
+        Object[][] rows = new Object[n][];
+        int count = 0;
+
+        while(count < n)
+        {
+          if(!nextRow())
+          {
+            finished = true;
+            break;
+          }
+
+          Object[] raw = new Object[numCols + 1];
+          for(int i = 1; i <= numCols; i++)
+            raw[i] = readers[i].read(resultSet, i);
+
+          rows[count++] = raw;
+        }
+
+        if(count == 0)
+          return null;
+
+        batch = count;
+        return new RowBatchSpliterator(rows, 0, count);
+      }
+      catch(SQLException | DataSetException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    }
+
+    @Override
+    public long estimateSize()
+    {
+      return finished ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics()
+    {
+      return ORDERED | NONNULL;
+    }
+  }
+
+  /**
+   * Spliterator su un blocco di righe già lette dal resultset.
+   */
+  private class RowBatchSpliterator implements Spliterator<Record>
+  {
+    private final Object[][] rows;
+    private int index;
+    private final int fence;
+
+    public RowBatchSpliterator(Object[][] rows, int origin, int fence)
+    {
+      this.rows = rows;
+      this.index = origin;
+      this.fence = fence;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Record> action)
+    {
+      if(index >= fence)
+        return false;
+
+      try
+      {
+        Object[] raw = rows[index];
+        rows[index++] = null;
+        action.accept(new Record(DataSet.this, raw));
+        return true;
+      }
+      catch(DataSetException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    }
+
+    @Override
+    public Spliterator<Record> trySplit()
+    {
+      int lo = index, mid = (lo + fence) >>> 1;
+      if(lo >= mid)
+        return null;
+
+      index = mid;
+      return new RowBatchSpliterator(rows, lo, mid);
+    }
+
+    @Override
+    public long estimateSize()
+    {
+      return fence - index;
+    }
+
+    @Override
+    public int characteristics()
+    {
+      return ORDERED | SIZED | SUBSIZED | NONNULL;
+    }
+  }
 }
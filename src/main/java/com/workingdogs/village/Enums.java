@@ -75,4 +75,31 @@ public class Enums
 
     /** an sqlserver type */
     public static final int SQLSERVER = 14;
+
+    /** a postgresql type */
+    public static final int POSTGRESQL = 15;
+
+    /** a mysql/mariadb type */
+    public static final int MYSQL = 16;
+
+    /** a derby type */
+    public static final int DERBY = 17;
+
+    /** a h2 type */
+    public static final int H2 = 18;
+
+    /** a hsqldb type */
+    public static final int HSQLDB = 19;
+
+    /** a db2 type */
+    public static final int DB2 = 20;
+
+    /** a sqlite type */
+    public static final int SQLITE = 21;
+
+    /** A record marked for insert or update (MERGE/upsert) */
+    public static final int UPSERT = 22;
+
+    /** trigger state after a upsert is run */
+    public static final int AFTERUPSERT = 23;
 }
@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * Riferimento a un campo BLOB/CLOB/NCLOB senza caricarne il contenuto in memoria.
+ * Il contenuto può restare sul db (locator JDBC, valido finché è aperta
+ * la transazione che lo ha letto) oppure essere copiato in un file temporaneo
+ * che rimane disponibile fino a close().
+ * I riferimenti letti da un DataSet vengono chiusi dal DataSet stesso
+ * (close(), releaseRecords(), clearRecords()).
+ * I dati si leggono come stream (getInputStream(), getReader())
+ * o, per i file temporanei, mappandoli in memoria (map()).
+ * La modalità si imposta con DataSet.setLobMode().
+ *
+ * @author Nicola De Nisco
+ */
+public class LobHandle implements Closeable
+{
+  /** i LOB vengono letti completamente in memoria (byte[] o String); è il comportamento storico */
+  public static final int LOB_MATERIALIZE = 0;
+
+  /** i LOB restano sul db: il Value contiene il locator JDBC */
+  public static final int LOB_LOCATOR = 1;
+
+  /** i LOB vengono copiati in un file temporaneo durante la lettura della riga */
+  public static final int LOB_SPILL = 2;
+
+  /** directory per i file temporanei (null per quella di sistema) */
+  private static File spillDirectory = null;
+
+  private final boolean character;
+  private Blob blob;
+  private Clob clob;
+  private File file;
+
+  /** lunghezza in byte (binari) o caratteri (testo) */
+  private final long length;
+
+  /** stream aperti verso i dati, chiusi da close() */
+  private final ArrayList<Closeable> openStreams = new ArrayList<>();
+
+  /** stream passato allo statement durante il salvataggio (vedi Value) */
+  private Closeable bindStream;
+
+  private LobHandle(boolean character, long length)
+  {
+    this.character = character;
+    this.length = length;
+  }
+
+  /**
+   * Crea un riferimento al locator di un BLOB.
+   * @param blob locator (non null)
+   * @return riferimento
+   * @throws SQLException
+   */
+  public static LobHandle of(Blob blob)
+     throws SQLException
+  {
+    LobHandle rv = new LobHandle(false, blob.length());
+    rv.blob = blob;
+    return rv;
+  }
+
+  /**
+   * Crea un riferimento al locator di un CLOB o NCLOB.
+   * @param clob locator (non null)
+   * @return riferimento
+   * @throws SQLException
+   */
+  public static LobHandle of(Clob clob)
+     throws SQLException
+  {
+    LobHandle rv = new LobHandle(true, clob.length());
+    rv.clob = clob;
+    return rv;
+  }
+
+  /**
+   * Copia il contenuto di un BLOB in un file temporaneo.
+   * Il locator viene rilasciato al termine della copia.
+   * @param blob locator (non null)
+   * @return riferimento al file temporaneo
+   * @throws SQLException
+   */
+  public static LobHandle spill(Blob blob)
+     throws SQLException
+  {
+    File f = createSpillFile();
+
+    try(InputStream in = blob.getBinaryStream();
+       FileOutputStream out = new FileOutputStream(f))
+    {
+      byte[] buffer = new byte[8192];
+      long count = 0;
+      int n;
+      while((n = in.read(buffer)) != -1)
+      {
+        out.write(buffer, 0, n);
+        count += n;
+      }
+
+      LobHandle rv = new LobHandle(false, count);
+      rv.file = f;
+      return rv;
+    }
+    catch(IOException ex)
+    {
+      f.delete();
+      throw new SQLException("Unable to copy the LOB to a temporary file.", ex);
+    }
+    finally
+    {
+      freeQuietly(blob);
+    }
+  }
+
+  /**
+   * Copia il contenuto di un CLOB o NCLOB in un file temporaneo (codificato UTF-8).
+   * Il locator viene rilasciato al termine della copia.
+   * @param clob locator (non null)
+   * @return riferimento al file temporaneo
+   * @throws SQLException
+   */
+  public static LobHandle spill(Clob clob)
+     throws SQLException
+  {
+    File f = createSpillFile();
+
+    try(Reader in = clob.getCharacterStream();
+       Writer out = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))
+    {
+      char[] buffer = new char[8192];
+      long count = 0;
+      int n;
+      while((n = in.read(buffer)) != -1)
+      {
+        out.write(buffer, 0, n);
+        count += n;
+      }
+
+      LobHandle rv = new LobHandle(true, count);
+      rv.file = f;
+      return rv;
+    }
+    catch(IOException ex)
+    {
+      f.delete();
+      throw new SQLException("Unable to copy the LOB to a temporary file.", ex);
+    }
+    finally
+    {
+      freeQuietly(clob);
+    }
+  }
+
+  private static File createSpillFile()
+     throws SQLException
+  {
+    try
+    {
+      return File.createTempFile("village", ".lob", spillDirectory);
+    }
+    catch(IOException ex)
+    {
+      throw new SQLException("Unable to create a temporary file for the LOB.", ex);
+    }
+  }
+
+  /**
+   * Vero per CLOB/NCLOB, falso per BLOB.
+   * @return vero se il contenuto è testo
+   */
+  public boolean isCharacter()
+  {
+    return character;
+  }
+
+  /**
+   * Lunghezza del contenuto.
+   * @return numero di byte (BLOB) o di caratteri (CLOB/NCLOB)
+   */
+  public long length()
+  {
+    return length;
+  }
+
+  /**
+   * Vero se il contenuto è stato copiato in un file temporaneo.
+   * @return vero per i LOB letti con LOB_SPILL
+   */
+  public boolean isSpilled()
+  {
+    return file != null;
+  }
+
+  /**
+   * Ritorna uno stream per la lettura del contenuto.
+   * Per i LOB di testo lo stream contiene il testo codificato UTF-8.
+   * @return stream (chiuso anche da close())
+   * @throws SQLException
+   */
+  public InputStream getInputStream()
+     throws SQLException
+  {
+    return track(openInputStream());
+  }
+
+  /**
+   * Ritorna un reader per la lettura del contenuto.
+   * Per i BLOB i byte vengono decodificati con il charset di default (come Value.asString()).
+   * @return reader (chiuso anche da close())
+   * @throws SQLException
+   */
+  public Reader getReader()
+     throws SQLException
+  {
+    return track(openReader());
+  }
+
+  private InputStream openInputStream()
+     throws SQLException
+  {
+    InputStream rv;
+
+    if(file != null)
+      rv = openFile();
+    else if(blob != null)
+      rv = blob.getBinaryStream();
+    else if(clob != null)
+      rv = new Utf8InputStream(clob.getCharacterStream());
+    else
+      throw new SQLException("LOB has been closed.");
+
+    return rv;
+  }
+
+  private Reader openReader()
+     throws SQLException
+  {
+    if(clob != null)
+      return clob.getCharacterStream();
+    else if(character)
+      return new InputStreamReader(openInputStream(), StandardCharsets.UTF_8);
+    else
+      return new InputStreamReader(openInputStream());
+  }
+
+  /**
+   * Stream per il parametro di uno statement.
+   * Sostituisce (chiudendolo) quello del salvataggio precedente;
+   * va rilasciato con releaseBindStream() dopo l'esecuzione dello statement.
+   * @return stream
+   * @throws SQLException
+   */
+  synchronized InputStream bindInputStream()
+     throws SQLException
+  {
+    releaseBindStream();
+    InputStream rv = openInputStream();
+    bindStream = rv;
+    return rv;
+  }
+
+  /**
+   * Reader per il parametro di uno statement (vedi bindInputStream()).
+   * @return reader
+   * @throws SQLException
+   */
+  synchronized Reader bindReader()
+     throws SQLException
+  {
+    releaseBindStream();
+    Reader rv = openReader();
+    bindStream = rv;
+    return rv;
+  }
+
+  /**
+   * Chiude lo stream passato allo statement.
+   */
+  synchronized void releaseBindStream()
+  {
+    if(bindStream != null)
+    {
+      closeQuietly(bindStream);
+      bindStream = null;
+    }
+  }
+
+  /**
+   * Legge tutto il contenuto in memoria.
+   * @return il contenuto (per i testi codificato UTF-8)
+   * @throws SQLException anche se il contenuto supera la dimensione massima di un array
+   */
+  public byte[] getBytes()
+     throws SQLException
+  {
+    if(!character && length > Integer.MAX_VALUE - 8)
+      throw new SQLException("LOB of " + length + " bytes is too large for a byte array.");
+
+    if(blob != null)
+      return blob.getBytes(1, (int) length);
+
+    try(InputStream in = openInputStream())
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length, 1 << 20));
+      byte[] buffer = new byte[8192];
+      int n;
+      while((n = in.read(buffer)) != -1)
+        out.write(buffer, 0, n);
+      return out.toByteArray();
+    }
+    catch(IOException ex)
+    {
+      throw new SQLException(ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * Legge tutto il contenuto come stringa.
+   * @return il contenuto
+   * @throws SQLException anche se il contenuto supera la dimensione massima di una stringa
+   */
+  public String getString()
+     throws SQLException
+  {
+    if(length > Integer.MAX_VALUE - 8)
+      throw new SQLException("LOB of " + length + " characters is too large for a string.");
+
+    if(clob != null)
+      return clob.getSubString(1, (int) length);
+
+    if(!character)
+      return new String(getBytes());
+
+    try(Reader in = openReader())
+    {
+      StringWriter out = new StringWriter((int) Math.min(length, 1 << 20));
+      char[] buffer = new char[8192];
+      int n;
+      while((n = in.read(buffer)) != -1)
+        out.write(buffer, 0, n);
+      return out.toString();
+    }
+    catch(IOException ex)
+    {
+      throw new SQLException(ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * Mappa in memoria tutto il file temporaneo (solo LOB_SPILL).
+   * @return buffer in sola lettura
+   * @throws IOException se il LOB non è su file o è più grande di 2GB
+   */
+  public MappedByteBuffer map()
+     throws IOException
+  {
+    if(file == null)
+      throw new IOException("LOB is not stored in a temporary file.");
+
+    long size = file.length();
+    if(size > Integer.MAX_VALUE)
+      throw new IOException("LOB of " + size + " bytes is too large to be mapped at once: use map(position, size).");
+
+    return map(0, size);
+  }
+
+  /**
+   * Mappa in memoria una parte del file temporaneo (solo LOB_SPILL).
+   * Per i LOB più grandi di 2GB mappare più porzioni.
+   * @param position posizione iniziale in byte
+   * @param size numero di byte (al massimo Integer.MAX_VALUE)
+   * @return buffer in sola lettura
+   * @throws IOException
+   */
+  public MappedByteBuffer map(long position, long size)
+     throws IOException
+  {
+    if(file == null)
+      throw new IOException("LOB is not stored in a temporary file.");
+
+    if(size > Integer.MAX_VALUE)
+      throw new IOException("Unable to map " + size + " bytes at once (max " + Integer.MAX_VALUE + ").");
+
+    try(FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      return ch.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+  }
+
+  /**
+   * Rilascia il locator o cancella il file temporaneo.
+   * Chiude anche gli stream aperti con getInputStream()/getReader().
+   */
+  @Override
+  public void close()
+  {
+    synchronized(openStreams)
+    {
+      for(Closeable c : openStreams)
+        closeQuietly(c);
+      openStreams.clear();
+    }
+
+    releaseBindStream();
+
+    if(blob != null)
+      freeQuietly(blob);
+    if(clob != null)
+      freeQuietly(clob);
+    if(file != null)
+      file.delete();
+
+    blob = null;
+    clob = null;
+    file = null;
+  }
+
+  private InputStream openFile()
+     throws SQLException
+  {
+    try
+    {
+      return new FileInputStream(file);
+    }
+    catch(IOException ex)
+    {
+      throw new SQLException(ex.getMessage(), ex);
+    }
+  }
+
+  private <T extends Closeable> T track(T stream)
+  {
+    synchronized(openStreams)
+    {
+      openStreams.add(stream);
+    }
+    return stream;
+  }
+
+  private static void closeQuietly(Closeable c)
+  {
+    try
+    {
+      c.close();
+    }
+    catch(IOException ex)
+    {
+      // ignorata
+    }
+  }
+
+  private static void freeQuietly(Blob blob)
+  {
+    try
+    {
+      blob.free();
+    }
+    catch(SQLException | AbstractMethodError ex)
+    {
+      // driver JDBC3 o locator già rilasciato
+    }
+  }
+
+  private static void freeQuietly(Clob clob)
+  {
+    try
+    {
+      clob.free();
+    }
+    catch(SQLException | AbstractMethodError ex)
+    {
+      // driver JDBC3 o locator già rilasciato
+    }
+  }
+
+  public static File getSpillDirectory()
+  {
+    return spillDirectory;
+  }
+
+  /**
+   * Directory dove creare i file temporanei dei LOB.
+   * @param spillDirectory directory (null per quella di sistema)
+   */
+  public static void setSpillDirectory(File spillDirectory)
+  {
+    LobHandle.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Codifica UTF-8 di un Reader letta a blocchi, senza caricare tutto il testo in memoria.
+   */
+  private static class Utf8InputStream extends InputStream
+  {
+    private final Reader reader;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+       .onMalformedInput(CodingErrorAction.REPLACE)
+       .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(4096);
+    private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+    private boolean eof = false, flushed = false;
+
+    Utf8InputStream(Reader reader)
+    {
+      this.reader = reader;
+      chars.flip();
+      bytes.flip();
+    }
+
+    @Override
+    public int read()
+       throws IOException
+    {
+      if(!bytes.hasRemaining() && !fill())
+        return -1;
+
+      return bytes.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+       throws IOException
+    {
+      if(len == 0)
+        return 0;
+
+      if(!bytes.hasRemaining() && !fill())
+        return -1;
+
+      int n = Math.min(len, bytes.remaining());
+      bytes.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available()
+    {
+      return bytes.remaining();
+    }
+
+    private boolean fill()
+       throws IOException
+    {
+      bytes.clear();
+
+      while(bytes.position() == 0 && !flushed)
+      {
+        if(!eof)
+        {
+          chars.compact();
+          if(reader.read(chars) == -1)
+            eof = true;
+          chars.flip();
+        }
+
+        CoderResult cr = encoder.encode(chars, bytes, eof);
+        if(eof && cr.isUnderflow() && encoder.flush(bytes).isUnderflow())
+          flushed = true;
+      }
+
+      bytes.flip();
+      return bytes.hasRemaining();
+    }
+
+    @Override
+    public void close()
+       throws IOException
+    {
+      reader.close();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "LobHandle{" + (character ? "chars=" : "bytes=") + length + (file != null ? ", spilled" : "") + '}';
+  }
+}
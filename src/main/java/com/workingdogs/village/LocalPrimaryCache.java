@@ -17,18 +17,30 @@
  */
 package com.workingdogs.village;
 
-import static com.workingdogs.village.Schema.TABLES_FILTER;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
 import org.commonlib5.utils.Pair;
 import org.commonlib5.utils.StringOper;
 
 /**
  * Cache delle chiavi primarie.
  * Viene utilizzata in Schema per stabilire se una colonna è chiave primaria.
+ * Le chiavi della cache e i nomi delle colonne sono in minuscolo, quindi
+ * le ricerche sono indipendenti da maiuscole/minuscole e senza confronti di stringhe.
+ * Il caricamento di una tabella blocca solo chi chiede la stessa tabella;
+ * anche le tabelle senza chiave primaria restano in cache.
+ * Con setTtlMillis() le informazioni scadono e vengono rilette dal db
+ * (ad esempio per vedere le modifiche alle chiavi senza riavviare):
+ * durante la rilettura gli altri thread continuano ad usare quelle scadute.
  *
  * @author Nicola De Nisco
  */
@@ -36,10 +48,45 @@ public class LocalPrimaryCache
 {
   private final String catalog, connURL;
   private final DatabaseMetaData dbMeta;
-  private static final TreeMap<String, Map<String, Integer>> pkCache = new TreeMap<>((s1, s2) -> s1.compareToIgnoreCase(s2));
-  private static final Object semaforo = new Object();
   private int sintassi = 0;
 
+  /** chiavi primarie per tabella (vedi makeKey()) */
+  private static final ConcurrentHashMap<String, Entry> pkCache = new ConcurrentHashMap<>(256);
+
+  /** tabella senza chiave primaria */
+  private static final Map<String, Integer> NO_PRIMARY_KEY = Collections.emptyMap();
+
+  private static volatile long ttlMillis = 0, negativeTtlMillis = 0;
+  private static final LongAdder hits = new LongAdder(), misses = new LongAdder(), loads = new LongAdder();
+
+  private static class Entry
+  {
+    final CountDownLatch loaded = new CountDownLatch(1);
+    volatile Map<String, Integer> pks;
+    volatile long loadedAt;
+    // valore scaduto usato durante la rilettura
+    final Map<String, Integer> stale;
+
+    Entry(Map<String, Integer> pks, Map<String, Integer> stale)
+    {
+      this.pks = pks;
+      this.stale = stale;
+      this.loadedAt = System.currentTimeMillis();
+      if(pks != null)
+        loaded.countDown();
+    }
+
+    boolean isExpired(long now)
+    {
+      Map<String, Integer> p = pks;
+      if(p == null)
+        return false;
+
+      long ttl = p.isEmpty() && negativeTtlMillis > 0 ? negativeTtlMillis : ttlMillis;
+      return ttl > 0 && now - loadedAt > ttl;
+    }
+  }
+
   public LocalPrimaryCache(String catalog, DatabaseMetaData dbMeta)
      throws SQLException
   {
@@ -51,67 +98,297 @@ public class LocalPrimaryCache
       sintassi = 1;
   }
 
+  /**
+   * Cerca la colonna nella chiave primaria della tabella.
+   * @param metaSchemaName nome dello schema
+   * @param metaTableName nome della tabella
+   * @param metaColumnName nome della colonna
+   * @return indice nella chiave primaria; 0=non compare nella chiave primaria
+   * @throws SQLException
+   */
   public int findInPrimary(String metaSchemaName, String metaTableName, String metaColumnName)
      throws SQLException
+  {
+    return getPrimaryKeyInfo(metaSchemaName, metaTableName).getOrDefault(lower(metaColumnName), 0);
+  }
+
+  /**
+   * Ritorna le informazioni sulla chiave primaria di una tabella.
+   * @param metaSchemaName nome dello schema
+   * @param metaTableName nome della tabella
+   * @return mappa (non modificabile) colonna in minuscolo / indice nella chiave primaria;
+   * vuota se la tabella non ha chiave primaria
+   * @throws SQLException
+   */
+  public Map<String, Integer> getPrimaryKeyInfo(String metaSchemaName, String metaTableName)
+     throws SQLException
   {
     String key = makeKey(metaSchemaName, metaTableName);
-    Map<String, Integer> tablepks = pkCache.get(key);
-    if(tablepks != null)
-      return tablepks.getOrDefault(metaColumnName, 0);
 
-    if(sintassi != 1)
+    while(true)
     {
-      int pos;
-      if(metaSchemaName.isEmpty() && (pos = metaTableName.indexOf('.')) != -1)
+      Entry e = pkCache.get(key);
+
+      if(e != null && e.isExpired(System.currentTimeMillis()))
+      {
+        // il primo che sostituisce l'elemento scaduto esegue la rilettura
+        Entry ne = new Entry(null, e.pks);
+        if(pkCache.replace(key, e, ne))
+        {
+          misses.increment();
+          return load(key, ne, metaSchemaName, metaTableName);
+        }
+        continue;
+      }
+
+      if(e == null)
+      {
+        Entry ne = new Entry(null, null);
+        if((e = pkCache.putIfAbsent(key, ne)) == null)
+        {
+          misses.increment();
+          return load(key, ne, metaSchemaName, metaTableName);
+        }
+      }
+
+      if(e.loaded.getCount() != 0)
+      {
+        if(e.stale != null)
+        {
+          hits.increment();
+          return e.stale;
+        }
+
+        try
+        {
+          e.loaded.await();
+        }
+        catch(InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted while waiting primary keys of " + metaTableName, ex);
+        }
+      }
+
+      Map<String, Integer> tablepks = e.pks;
+      if(tablepks != null)
       {
-        // workaround nel caso metaTableName è nella forma SCHEMA.TABELLA
-        metaSchemaName = metaTableName.substring(0, pos);
-        metaTableName = metaTableName.substring(pos + 1);
+        hits.increment();
+        return tablepks;
       }
+
+      // caricamento fallito in un altro thread: si ritenta
     }
+  }
 
-    // corregge il case dei nomi: è critico per le ricerche
-    Pair<String, String> nomiCorretti = correggiCase(metaSchemaName, metaTableName);
+  private Map<String, Integer> load(String key, Entry e, String metaSchemaName, String metaTableName)
+     throws SQLException
+  {
+    try
+    {
+      if(sintassi != 1)
+      {
+        int pos;
+        if(metaSchemaName.isEmpty() && (pos = metaTableName.indexOf('.')) != -1)
+        {
+          // workaround nel caso metaTableName è nella forma SCHEMA.TABELLA
+          metaSchemaName = metaTableName.substring(0, pos);
+          metaTableName = metaTableName.substring(pos + 1);
+        }
+      }
+
+      // corregge il case dei nomi: è critico per le ricerche
+      Pair<String, String> nomiCorretti = correggiCase(metaSchemaName, metaTableName);
+
+      // passa dal vecchio metodo per rispettare le classi derivate che lo ridefiniscono
+      Map<String, Integer> tablepks = normalize(creaInfoPerTabella(key, nomiCorretti, null));
+      e.loadedAt = System.currentTimeMillis();
+      e.pks = tablepks;
+      loads.increment();
+      return tablepks;
+    }
+    finally
+    {
+      if(e.pks == null)
+        pkCache.remove(key, e);
 
-    tablepks = creaInfoPerTabella(key, nomiCorretti, metaColumnName);
-    return tablepks.getOrDefault(metaColumnName, 0);
+      e.loaded.countDown();
+    }
   }
 
+  /**
+   * Legge dal db la chiave primaria della tabella.
+   * Mantenuta per compatibilità con le classi derivate: viene chiamata al caricamento
+   * di ogni tabella e la ridefinizione viene rispettata, ma la cache è gestita
+   * da getPrimaryKeyInfo() e metaColumnName vale null.
+   * Come in passato la mappa ritornata ignora maiuscole/minuscole.
+   * @param key chiave della cache
+   * @param nomi schema e tabella nel case del db
+   * @param metaColumnName nome della colonna (null)
+   * @return mappa colonna / indice nella chiave primaria
+   * @throws SQLException
+   * @deprecated ridefinire creaInfoPerTabella(Pair)
+   */
+  @Deprecated
   protected Map<String, Integer> creaInfoPerTabella(String key, Pair<String, String> nomi, String metaColumnName)
      throws SQLException
   {
-    Map<String, Integer> tablepks;
+    TreeMap<String, Integer> rv = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    rv.putAll(creaInfoPerTabella(nomi));
+    return rv;
+  }
 
-    synchronized(semaforo)
+  /**
+   * Legge dal db la chiave primaria della tabella.
+   * @param nomi schema e tabella nel case del db
+   * @return mappa colonna in minuscolo / indice nella chiave primaria
+   * @throws SQLException
+   */
+  protected Map<String, Integer> creaInfoPerTabella(Pair<String, String> nomi)
+     throws SQLException
+  {
+    Map<String, Integer> tablepks = new HashMap<>();
+
+    switch(sintassi)
     {
-      // ripete ricerca dopo aver acquisito il semaforo
-      tablepks = pkCache.get(key);
+      case 1:
+        jtdsDriver(nomi.first, nomi.second, tablepks);
+        break;
 
-      if(tablepks == null)
-      {
-        tablepks = new TreeMap<>((s1, s2) -> s1.compareToIgnoreCase(s2));
+      default:
+        allDriver(nomi.first, nomi.second, tablepks);
+        break;
+    }
 
-        switch(sintassi)
-        {
-          case 1:
-            jtdsDriver(nomi.first, nomi.second, tablepks);
-            break;
+    return normalize(tablepks);
+  }
 
-          default:
-            allDriver(nomi.first, nomi.second, tablepks);
-            break;
-        }
+  private static Map<String, Integer> normalize(Map<String, Integer> tablepks)
+  {
+    if(tablepks.isEmpty())
+      return NO_PRIMARY_KEY;
 
-        pkCache.put(key, tablepks);
-      }
+    HashMap<String, Integer> rv = new HashMap<>(tablepks.size() * 2);
+    tablepks.forEach((col, idx) -> rv.put(lower(col), idx));
+    return Collections.unmodifiableMap(rv);
+  }
+
+  protected String makeKey(String metaSchemaName, String metaTableName)
+  {
+    return makeKey(connURL, metaSchemaName, metaTableName);
+  }
+
+  static String makeKey(String connURL, String metaSchemaName, String metaTableName)
+  {
+    return lower(connURL + "|" + StringOper.okStr(metaSchemaName, "NO_SCHEMA") + "|" + metaTableName);
+  }
+
+  private static String lower(String s)
+  {
+    return s.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Copia delle chiavi primarie in cache per un url di connessione (vedi SchemaSnapshot).
+   * @param connURL url della connessione
+   * @return mappa chiave tabella / (colonna, indice nella chiave primaria)
+   */
+  static Map<String, Map<String, Integer>> exportKeys(String connURL)
+  {
+    String prefix = lower(connURL + "|");
+    TreeMap<String, Map<String, Integer>> rv = new TreeMap<>();
+
+    for(Map.Entry<String, Entry> e : pkCache.entrySet())
+    {
+      Map<String, Integer> tablepks = e.getValue().pks;
+      if(tablepks != null && e.getKey().startsWith(prefix))
+        rv.put(e.getKey(), new TreeMap<>(tablepks));
     }
 
-    return tablepks;
+    return rv;
   }
 
-  protected String makeKey(String metaSchemaName, String metaTableName)
+  /**
+   * Aggiunge chiavi primarie già note; le tabelle già in cache non vengono modificate.
+   * @param keys mappa chiave tabella / (colonna, indice nella chiave primaria)
+   */
+  static void importKeys(Map<String, Map<String, Integer>> keys)
   {
-    return connURL + "|" + StringOper.okStr(metaSchemaName, "NO_SCHEMA") + "|" + metaTableName;
+    for(Map.Entry<String, Map<String, Integer>> e : keys.entrySet())
+      pkCache.putIfAbsent(lower(e.getKey()), new Entry(normalize(e.getValue()), null));
+  }
+
+  /**
+   * Scarta le chiavi primarie di un url di connessione.
+   * @param connURL url della connessione
+   */
+  public static void invalidate(String connURL)
+  {
+    String prefix = lower(connURL + "|");
+    pkCache.keySet().removeIf((k) -> k.startsWith(prefix));
+  }
+
+  /**
+   * Scarta la chiave primaria di una tabella.
+   * @param connURL url della connessione
+   * @param metaSchemaName nome dello schema
+   * @param metaTableName nome della tabella
+   */
+  public static void invalidate(String connURL, String metaSchemaName, String metaTableName)
+  {
+    pkCache.remove(makeKey(connURL, metaSchemaName, metaTableName));
+  }
+
+  public static long getTtlMillis()
+  {
+    return ttlMillis;
+  }
+
+  /**
+   * Durata delle informazioni in cache.
+   * @param ttlMillis millisecondi; 0 (default) nessuna scadenza
+   */
+  public static void setTtlMillis(long ttlMillis)
+  {
+    LocalPrimaryCache.ttlMillis = ttlMillis;
+  }
+
+  public static long getNegativeTtlMillis()
+  {
+    return negativeTtlMillis;
+  }
+
+  /**
+   * Durata in cache delle tabelle senza chiave primaria.
+   * @param negativeTtlMillis millisecondi; 0 (default) come setTtlMillis()
+   */
+  public static void setNegativeTtlMillis(long negativeTtlMillis)
+  {
+    LocalPrimaryCache.negativeTtlMillis = negativeTtlMillis;
+  }
+
+  public static int size()
+  {
+    return pkCache.size();
+  }
+
+  public static long getHits()
+  {
+    return hits.sum();
+  }
+
+  public static long getMisses()
+  {
+    return misses.sum();
+  }
+
+  /**
+   * Numero di letture delle chiavi primarie dal db.
+   * @return letture
+   */
+  public static long getLoads()
+  {
+    return loads.sum();
   }
 
   protected void allDriver(String metaSchemaName, String metaTableName, Map<String, Integer> tablepks)
@@ -161,6 +438,8 @@ public class LocalPrimaryCache
    * Correzione dei case di schema e tabella.
    * Effettua una correzione di case altrimenti dbMeta.getPrimaryKeys()
    * non riesce ad individuare la tabella corretta.
+   * I nomi vengono cercati nell'indice del catalogo (vedi TableNameIndex)
+   * invece di scorrere ogni volta getSchemas() e getTables().
    * @param metaSchemaName
    * @param metaTableName
    * @return i nomi di schema e tabella nel case corretto (conosciuto dal db)
@@ -169,41 +448,7 @@ public class LocalPrimaryCache
   protected Pair<String, String> correggiCase(String metaSchemaName, String metaTableName)
      throws SQLException
   {
-    String rvs = null;
-
-    if(metaSchemaName != null && !metaSchemaName.isEmpty())
-    {
-      try(ResultSet rsc = dbMeta.getSchemas())
-      {
-        while(rsc.next())
-        {
-          if(catalog != null && !catalog.equalsIgnoreCase(rsc.getString("TABLE_CATALOG")))
-            continue;
-
-          if(metaSchemaName.equalsIgnoreCase(rsc.getString("TABLE_SCHEM")))
-          {
-            rvs = rsc.getString("TABLE_SCHEM");
-            break;
-          }
-        }
-      }
-    }
-
-    try(ResultSet rSet = dbMeta.getTables(catalog, rvs, null, TABLES_FILTER))
-    {
-      while(rSet.next())
-      {
-        if(rSet.getString("TABLE_TYPE").equals("TABLE"))
-        {
-          String schema = rSet.getString("TABLE_SCHEM");
-          String tableName = rSet.getString("TABLE_NAME");
-
-          if(metaTableName.equalsIgnoreCase(tableName))
-            return new Pair<>(schema, tableName);
-        }
-      }
-    }
-
-    return new Pair<>(metaSchemaName, metaTableName);
+    Pair<String, String> rv = TableNameIndex.get(connURL, catalog).resolve(dbMeta, metaSchemaName, metaTableName);
+    return rv != null ? rv : new Pair<>(metaSchemaName, metaTableName);
   }
 }
@@ -18,11 +18,14 @@ package com.workingdogs.village;
  * specific language governing permissions and limitations
  * under the License.
  */
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 import org.commonlib5.utils.Pair;
 
 /**
@@ -92,20 +95,71 @@ public class QueryDataSet
    */
   public QueryDataSet(Connection conn, String selectStmt)
      throws SQLException, DataSetException
+  {
+    this(conn, selectStmt, false, 0, false);
+  }
+
+  /**
+   * Creates a new QueryDataSet based on a connection and a select string
+   * to be read with SQL paging (see DataSet.setSqlPaging()).
+   * The query is prepared and described but not executed: the first fetch
+   * executes only the paged query. Being a PreparedStatement, any '?' in the
+   * query is a parameter marker.
+   *
+   * @param conn
+   * @param selectStmt
+   * @param sqlPaging true to enable SQL paging
+   *
+   * @exception SQLException
+   * @exception DataSetException
+   */
+  public QueryDataSet(Connection conn, String selectStmt, boolean sqlPaging)
+     throws SQLException, DataSetException
+  {
+    this(conn, selectStmt, false, 0, sqlPaging);
+  }
+
+  /**
+   * Creates a new QueryDataSet based on a connection and a select string
+   * with a forward only streaming cursor (see DataSet.setStreaming()).
+   *
+   * @param conn
+   * @param selectStmt
+   * @param fetchSize rows fetched by the driver for each round trip (0 for driver default)
+   *
+   * @exception SQLException
+   * @exception DataSetException
+   */
+  public QueryDataSet(Connection conn, String selectStmt, int fetchSize)
+     throws SQLException, DataSetException
+  {
+    this(conn, selectStmt, true, fetchSize, false);
+  }
+
+  private QueryDataSet(Connection conn, String selectStmt, boolean streaming, int fetchSize, boolean sqlPaging)
+     throws SQLException, DataSetException
   {
     this.conn = conn;
+    setStreaming(streaming);
+    setFetchSize(fetchSize);
+    setSqlPaging(sqlPaging);
     selectString = new StringBuilder(selectStmt);
 
     boolean ok = false;
     try
     {
-      stmt = conn.createStatement(
-         ResultSet.TYPE_SCROLL_INSENSITIVE, // Permette di scorrere avanti/indietro
-         ResultSet.CONCUR_READ_ONLY // Solo lettura
-      );
-      resultSet = stmt.executeQuery(selectStmt);
       schema = new Schema();
-      schema.populate(resultSet.getMetaData(), null, null, conn);
+      if(sqlPaging)
+      {
+        // la query viene eseguita alla prima lettura e solo nella versione paginata
+        prepareResultset(selectStmt);
+        schema.populate(preparedMetaData(), null, null, conn);
+      }
+      else
+      {
+        openResultset(selectStmt);
+        schema.populate(resultSet.getMetaData(), null, null, conn);
+      }
       ok = true;
     }
     finally
@@ -136,6 +190,7 @@ public class QueryDataSet
      throws SQLException, DataSetException
   {
     this.resultSet = resultSet;
+    this.resultSetFresh = true;
     this.conn = resultSet.getStatement().getConnection();
     selectString = new StringBuilder();
     schema = new Schema();
@@ -245,6 +300,50 @@ public class QueryDataSet
     }
   }
 
+  /**
+   * Esegue la query e ritorna uno stream dei record letti man mano dal db
+   * (cursore forward only, vedi DataSet.stream()).
+   * La chiusura dello stream chiude anche il QueryDataSet sottostante.
+   *
+   * @param dbCon connessione al db
+   * @param sSQL query da eseguire
+   * @return stream dei record
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public static Stream<Record> stream(Connection dbCon, String sSQL)
+     throws SQLException, DataSetException
+  {
+    QueryDataSet qs = new QueryDataSet(dbCon, sSQL, 0);
+
+    try
+    {
+      return qs.stream().onClose(() ->
+      {
+        try
+        {
+          qs.close();
+        }
+        catch(IOException ex)
+        {
+          throw new UncheckedIOException(ex);
+        }
+      });
+    }
+    catch(SQLException | DataSetException | RuntimeException ex)
+    {
+      try
+      {
+        qs.close();
+      }
+      catch(IOException ignored)
+      {
+        // ignore as another exception is already thrown
+      }
+      throw ex;
+    }
+  }
+
   public static List<Record> fetchAllRecords(ResultSet rs)
      throws Exception
   {
@@ -18,7 +18,6 @@ package com.workingdogs.village;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
@@ -121,6 +120,47 @@ public class QueryDataSetMacro extends QueryDataSet
   public QueryDataSetMacro(Connection conn, String selectStmt, Map<String, ? extends Object> values)
      throws SQLException, DataSetException
   {
+    this(conn, selectStmt, values, false, 0, false);
+  }
+
+  /**
+   * Costruttore per la lettura con paginazione SQL (vedi DataSet.setSqlPaging()).
+   * La query viene preparata ma non eseguita: la prima lettura esegue solo la query paginata.
+   * @param conn connessione al db
+   * @param selectStmt query con macro
+   * @param values valori delle macro
+   * @param sqlPaging vero per attivare la paginazione lato db
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public QueryDataSetMacro(Connection conn, String selectStmt, Map<String, ? extends Object> values, boolean sqlPaging)
+     throws SQLException, DataSetException
+  {
+    this(conn, selectStmt, values, false, 0, sqlPaging);
+  }
+
+  /**
+   * Costruttore con cursore in streaming (vedi DataSet.setStreaming()).
+   * @param conn connessione al db
+   * @param selectStmt query con macro
+   * @param values valori delle macro
+   * @param fetchSize righe lette dal driver per ogni round trip (0 per il default del driver)
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public QueryDataSetMacro(Connection conn, String selectStmt, Map<String, ? extends Object> values, int fetchSize)
+     throws SQLException, DataSetException
+  {
+    this(conn, selectStmt, values, true, fetchSize, false);
+  }
+
+  private QueryDataSetMacro(Connection conn, String selectStmt, Map<String, ? extends Object> values,
+     boolean streaming, int fetchSize, boolean sqlPaging)
+     throws SQLException, DataSetException
+  {
+    setStreaming(streaming);
+    setFetchSize(fetchSize);
+    setSqlPaging(sqlPaging);
     parMap.putAll(values);
     String sql0 = resolveMacro0(selectStmt);
     String sql1 = resolveMacro1(sql0);
@@ -140,9 +180,18 @@ public class QueryDataSetMacro extends QueryDataSet
     boolean ok = false;
     try
     {
-      openResultset();
       schema = new Schema();
-      schema.populate(resultSet.getMetaData(), null, null, conn);
+      if(sqlPaging)
+      {
+        // la query viene eseguita alla prima lettura (vedi QueryDataSet)
+        prepareResultset(selectString.toString());
+        schema.populate(preparedMetaData(), null, null, conn);
+      }
+      else
+      {
+        openResultset();
+        schema.populate(resultSet.getMetaData(), null, null, conn);
+      }
       ok = true;
     }
     finally
@@ -162,16 +211,19 @@ public class QueryDataSetMacro extends QueryDataSet
   }
 
   @Override
-  protected void openResultset()
+  protected void openResultset(String sql)
      throws SQLException, DataSetException
   {
-    stmt = conn.prepareStatement(selectString.toString(),
-       ResultSet.TYPE_SCROLL_INSENSITIVE, // Permette di scorrere avanti/indietro
-       ResultSet.CONCUR_READ_ONLY // Solo lettura
-    );
+    prepareResultset(sql);
+    openResultset();
+  }
 
+  @Override
+  protected void prepareResultset(String sql)
+     throws SQLException, DataSetException
+  {
+    super.prepareResultset(sql);
     mergeParams();
-    resultSet = ((PreparedStatement) stmt).executeQuery();
   }
 
   protected String resolveMacro0(String seg)
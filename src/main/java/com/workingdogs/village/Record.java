@@ -23,7 +23,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +43,9 @@ public class Record
   /** an array of Value objects, this is 1 based */
   private Value[] values;
 
+  /** valori letti dal resultset e non ancora trasformati in Value (modalità lazy), 1 based */
+  private Object[] rawValues;
+
   /** a 1 To 1 relationship between Values and whether they are clean or not */
   private boolean[] isClean;
 
@@ -83,7 +87,11 @@ public class Record
   {
     setParentDataSet(ds);
     initializeRecord();
-    createValues(dataset().resultSet());
+
+    if(ds.isLazyRecords())
+      captureValues(dataset().resultSet());
+    else
+      createValues(dataset().resultSet());
   }
 
   /**
@@ -113,6 +121,31 @@ public class Record
     createValues(null);
   }
 
+  /**
+   * Crea un record con i valori già letti da una riga del resultset (vedi DataSet.stream()).
+   * Se il DataSet non è in modalità lazy i Value vengono creati subito.
+   *
+   * @param ds the dataset
+   * @param rawValues valori della riga letti con i lettori dello schema (1 based)
+   *
+   * @throws DataSetException
+   */
+  Record(DataSet ds, Object[] rawValues)
+     throws DataSetException
+  {
+    setParentDataSet(ds);
+    initializeRecord();
+    this.rawValues = rawValues;
+
+    if(!ds.isLazyRecords())
+    {
+      for(int i = 1; i <= size(); i++)
+        value(i);
+
+      this.rawValues = null;
+    }
+  }
+
   public Record(Record origin)
      throws DataSetException, SQLException
   {
@@ -132,6 +165,7 @@ public class Record
     this.schema = dataset().schema();
     this.numberOfColumns = schema.numberOfColumns();
     this.values = new Value[size() + 1];
+    this.rawValues = null;
     this.isClean = new boolean[size() + 1];
     setSaveType(Enums.UNKNOWN);
 
@@ -153,14 +187,130 @@ public class Record
   private void createValues(ResultSet rs)
      throws DataSetException, SQLException
   {
+    if(rs == null)
+    {
+      for(int i = 1; i <= size(); i++)
+      {
+        final Column column = schema().column(i);
+        this.values[i] = new Value(null, column, i, column.typeEnum());
+      }
+      return;
+    }
+
+    // lettori precompilati dallo schema: nessuno switch sul tipo per ogni cella
+    final ValueReader[] readers = schema().getReaders(dataset().getLobMode());
     for(int i = 1; i <= size(); i++)
     {
       final Column column = schema().column(i);
-      Value val = new Value(rs, column, i, column.typeEnum());
-      this.values[i] = val;
+      this.values[i] = new Value(i, column, column.typeEnum(), readers[i].read(rs, i));
+    }
+  }
+
+  /**
+   * Legge i valori della riga corrente senza creare i Value (modalità lazy).
+   * I Value vengono creati al primo accesso alla colonna (vedi value()).
+   *
+   * @param rs resultset posizionato sulla riga
+   *
+   * @exception DataSetException
+   * @exception SQLException
+   */
+  private void captureValues(ResultSet rs)
+     throws DataSetException, SQLException
+  {
+    final ValueReader[] readers = schema().getReaders(dataset().getLobMode());
+    this.rawValues = new Object[size() + 1];
+
+    for(int i = 1; i <= size(); i++)
+    {
+      this.rawValues[i] = readers[i].read(rs, i);
+    }
+  }
+
+  /**
+   * Aggiorna i Value esistenti con la riga corrente del resultset
+   * senza allocare nuovi oggetti (vedi DataSet.setReuseRecords()).
+   * Il record torna pulito e con tipo di salvataggio non definito.
+   *
+   * @param rs resultset posizionato sulla riga
+   *
+   * @exception DataSetException
+   * @exception SQLException
+   */
+  void refill(ResultSet rs)
+     throws DataSetException, SQLException
+  {
+    final ValueReader[] readers = schema().getReaders(dataset().getLobMode());
+    this.rawValues = null;
+
+    for(int i = 1; i <= size(); i++)
+    {
+      this.values[i].setValue(readers[i].read(rs, i));
+      this.isClean[i] = true;
+    }
+
+    setSaveType(Enums.UNKNOWN);
+  }
+
+  /**
+   * Ricarica il record dalla riga corrente del resultset (refresh a blocchi, vedi TableRefreshEngine).
+   * Se i Value esistono già vengono aggiornati senza crearne di nuovi.
+   * Il record torna pulito e con tipo di salvataggio non definito.
+   *
+   * @param rs resultset posizionato sulla riga con tutte le colonne dello schema
+   *
+   * @exception DataSetException
+   * @exception SQLException
+   */
+  void reload(ResultSet rs)
+     throws DataSetException, SQLException
+  {
+    if(rawValues == null && values != null && numberOfColumns == schema().numberOfColumns())
+    {
+      refill(rs);
+    }
+    else
+    {
+      initializeRecord();
+      createValues(rs);
     }
   }
 
+  /**
+   * Valore della colonna senza conversioni (per il confronto delle chiavi).
+   *
+   * @param pos colonna (1 based)
+   * @return valore oppure null
+   * @throws DataSetException
+   */
+  Object rawValue(int pos)
+     throws DataSetException
+  {
+    return value(pos).getValue();
+  }
+
+  /**
+   * Ritorna una copia indipendente di questo record.
+   * La copia ha gli stessi valori, lo stesso stato di modifica
+   * e lo stesso tipo di salvataggio.
+   * Da usare per conservare i record ricevuti dal consumer in modalità
+   * riuso (vedi DataSet.setReuseRecords()).
+   *
+   * @return la copia
+   *
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  public Record copy()
+     throws DataSetException, SQLException
+  {
+    Record rv = new Record(this);
+    System.arraycopy(isClean, 0, rv.isClean, 0, isClean.length);
+    rv.saveType = saveType;
+    rv.preferInsertAndGetGeneratedKeys = preferInsertAndGetGeneratedKeys;
+    return rv;
+  }
+
   /**
    * Creates the value objects for this Record. It is 1 based
    *
@@ -170,11 +320,11 @@ public class Record
    * @exception SQLException
    */
   private void createValuesClone(Record origin)
-     throws SQLException
+     throws DataSetException, SQLException
   {
     for(int i = 1; i <= size(); i++)
     {
-      Value valOrigin = origin.values[i];
+      Value valOrigin = origin.value(i);
       Value val = new Value(valOrigin.columnNumber(), valOrigin.column(), valOrigin.type(), valOrigin.getValue());
       this.values[i] = val;
     }
@@ -230,6 +380,10 @@ public class Record
     {
       returnValue = saveWithUpdate(connection);
     }
+    else if(toBeSavedWithUpsert())
+    {
+      returnValue = saveWithUpsert(connection);
+    }
     else if(toBeSavedWithDelete())
     {
       returnValue = saveWithDelete(connection);
@@ -260,35 +414,41 @@ public class Record
   public int saveWithDelete(Connection connection)
      throws DataSetException, SQLException
   {
-    try(PreparedStatement stmt = connection.prepareStatement(getSaveString()))
-    {
-      int ps = 1;
+    SqlTemplate tpl = saveTemplate();
 
-      for(int i = 1; i <= dataset().keydef().size(); i++)
-      {
-        Value val = getValue(dataset().keydef().getAttrib(i));
-
-        val.setPreparedStatementValue(stmt, ps++);
-      }
+    try(StatementCache.Lease lease = StatementCache.prepare(connection, tpl.getSql()))
+    {
+      PreparedStatement stmt = lease.statement();
+      bindValues(stmt, tpl);
 
       int ret = stmt.executeUpdate();
 
-      // note that the actual deletion of the Record objects
-      // from the TDS is now in the save() method of the TDS
-      // instead of here. This fixes a bug where multiple
-      // records would not be deleted properly because they
-      // were being removed from here and the Records Vector
-      // was getting out of sync with reality. So, just
-      // mark them as needing to be removed here.
-      setSaveType(Enums.ZOMBIE);
-
-      if(ret > 1)
-      {
-        throw new SQLException("There were " + ret + " rows deleted with this records key value.");
-      }
+      deleteCompleted(ret);
 
       return ret;
     }
+    finally
+    {
+      releaseLobStreams();
+    }
+  }
+
+  private void deleteCompleted(int ret)
+     throws DataSetException, SQLException
+  {
+    // note that the actual deletion of the Record objects
+    // from the TDS is now in the save() method of the TDS
+    // instead of here. This fixes a bug where multiple
+    // records would not be deleted properly because they
+    // were being removed from here and the Records Vector
+    // was getting out of sync with reality. So, just
+    // mark them as needing to be removed here.
+    setSaveType(Enums.ZOMBIE);
+
+    if(ret > 1)
+    {
+      throw new SQLException("There were " + ret + " rows deleted with this records key value.");
+    }
   }
 
   /**
@@ -304,48 +464,81 @@ public class Record
   public int saveWithUpdate(Connection connection)
      throws DataSetException, SQLException
   {
-    try(PreparedStatement stmt = connection.prepareStatement(getSaveString()))
+    SqlTemplate tpl = saveTemplate();
+
+    try(StatementCache.Lease lease = StatementCache.prepare(connection, tpl.getSql()))
     {
-      int ps = 1;
+      PreparedStatement stmt = lease.statement();
+      bindValues(stmt, tpl);
 
-      for(int i = 1; i <= size(); i++)
-      {
-        Value val = getValue(i);
+      int ret = stmt.executeUpdate();
 
-        if(!valueIsClean(i) && !schema().column(i).readOnly())
-        {
-          val.setPreparedStatementValue(stmt, ps++);
-        }
-      }
+      updateCompleted(ret, refreshOnSave());
 
-      for(int i = 1; i <= dataset().keydef().size(); i++)
-      {
-        Value val = getValue(dataset().keydef().getAttrib(i));
+      return ret;
+    }
+    finally
+    {
+      releaseLobStreams();
+    }
+  }
 
-        val.setPreparedStatementValue(stmt, ps++);
-      }
+  private void updateCompleted(int ret, boolean refresh)
+     throws DataSetException, SQLException
+  {
+    completeSave(Enums.AFTERUPDATE, refresh);
 
-      int ret = stmt.executeUpdate();
+    if(ret > 1)
+    {
+      throw new SQLException("There were " + ret + " rows updated with this records key value.");
+    }
+  }
 
-      if(((TableDataSet) dataset()).refreshOnSave())
-      {
-        refresh(dataset().connection());
-      }
-      else
-      {
-        // Marks all of the values clean since they have now been saved
-        markRecordClean();
-      }
+  /**
+   * Salva il record con un solo statement che inserisce la riga
+   * o la aggiorna se la chiave esiste già (MERGE, ON CONFLICT o ON DUPLICATE KEY UPDATE
+   * secondo il database, vedi SqlDialect.buildUpsert()).
+   * Tutte le colonne della KeyDef devono essere valorizzate.
+   *
+   * @param connection connessione
+   *
+   * @return righe modificate riportate dal db
+   *
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  public int saveWithUpsert(Connection connection)
+     throws DataSetException, SQLException
+  {
+    SqlTemplate tpl = saveTemplate();
 
-      setSaveType(Enums.AFTERUPDATE);
+    try(StatementCache.Lease lease = StatementCache.prepare(connection, tpl.getSql()))
+    {
+      PreparedStatement stmt = lease.statement();
+      bindValues(stmt, tpl);
 
-      if(ret > 1)
-      {
-        throw new SQLException("There were " + ret + " rows updated with this records key value.");
-      }
+      int ret = stmt.executeUpdate();
+
+      upsertCompleted(ret, refreshOnSave());
 
       return ret;
     }
+    finally
+    {
+      releaseLobStreams();
+    }
+  }
+
+  private void upsertCompleted(int ret, boolean refresh)
+     throws DataSetException, SQLException
+  {
+    completeSave(Enums.AFTERUPSERT, refresh);
+
+    // MySQL riporta 2 per una riga aggiornata
+    if(ret > 2)
+    {
+      throw new SQLException("There were " + ret + " rows upserted with this records key value.");
+    }
   }
 
   /**
@@ -361,41 +554,201 @@ public class Record
   public int saveWithInsert(Connection connection)
      throws DataSetException, SQLException
   {
-    try(PreparedStatement stmt = connection.prepareStatement(getSaveString()))
+    SqlTemplate tpl = saveTemplate();
+
+    try(StatementCache.Lease lease = StatementCache.prepare(connection, tpl.getSql()))
     {
-      int ps = 1;
+      PreparedStatement stmt = lease.statement();
+      bindValues(stmt, tpl);
 
-      for(int i = 1; i <= size(); i++)
-      {
-        Value val = getValue(i);
+      int ret = stmt.executeUpdate();
 
-        if(!valueIsClean(i) && !schema().column(i).readOnly())
-        {
-          val.setPreparedStatementValue(stmt, ps++);
-        }
-      }
+      insertCompleted(ret, refreshOnSave());
 
-      int ret = stmt.executeUpdate();
+      return ret;
+    }
+    finally
+    {
+      releaseLobStreams();
+    }
+  }
 
-      if(((TableDataSet) dataset()).refreshOnSave())
-      {
-        refresh(dataset().connection());
-      }
-      else
-      {
-        // Marks all of the values clean since they have now been saved
-        markRecordClean();
-      }
+  /**
+   * Assegna allo statement i valori indicati dal piano dello statement.
+   * @param stmt statement preparato con tpl.getSql()
+   * @param tpl statement con il piano di assegnazione
+   */
+  private void bindValues(PreparedStatement stmt, SqlTemplate tpl)
+     throws DataSetException, SQLException
+  {
+    bindValues(stmt, tpl, 0);
+  }
 
-      setSaveType(Enums.AFTERINSERT);
+  private void bindValues(PreparedStatement stmt, SqlTemplate tpl, int offset)
+     throws DataSetException, SQLException
+  {
+    final int[] bind = tpl.getBindColumns();
 
-      if(ret > 1)
-      {
-        throw new SQLException("There were " + ret + " rows inserted with this records key value.");
-      }
+    for(int ps = 0; ps < bind.length; ps++)
+    {
+      value(bind[ps]).setPreparedStatementValue(stmt, offset + ps + 1);
+    }
+  }
 
-      return ret;
+  private void insertCompleted(int ret, boolean refresh)
+     throws DataSetException, SQLException
+  {
+    completeSave(Enums.AFTERINSERT, refresh);
+
+    if(ret > 1)
+    {
+      throw new SQLException("There were " + ret + " rows inserted with this records key value.");
+    }
+  }
+
+  /**
+   * Assegna allo statement di getSaveString() i valori di questo record.
+   * Usata dal salvataggio a blocchi (vedi TableSaveEngine).
+   *
+   * @param stmt statement preparato con getSaveString()
+   *
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  void bindSaveValues(PreparedStatement stmt)
+     throws DataSetException, SQLException
+  {
+    bindValues(stmt, saveTemplate());
+  }
+
+  /**
+   * Copia dello stato di modifica delle colonne (vedi restoreSaveState()).
+   *
+   * @return flag delle colonne pulite (1 based)
+   */
+  boolean[] cleanFlags()
+  {
+    return isClean.clone();
+  }
+
+  /**
+   * Ripristina lo stato di salvataggio dopo il rollback di un salvataggio a blocchi.
+   *
+   * @param saveType tipo di salvataggio
+   * @param clean flag delle colonne pulite ritornati da cleanFlags()
+   */
+  void restoreSaveState(int saveType, boolean[] clean)
+  {
+    this.saveType = saveType;
+    System.arraycopy(clean, 0, isClean, 0, Math.min(clean.length, isClean.length));
+  }
+
+  /**
+   * Come bindSaveValues(stmt) ma a partire dal parametro offset + 1
+   * (INSERT con più righe, vedi SqlTemplate.getMultiRowInsert()).
+   *
+   * @param stmt statement
+   * @param offset numero di parametri che precedono quelli di questo record
+   *
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  void bindSaveValues(PreparedStatement stmt, int offset)
+     throws DataSetException, SQLException
+  {
+    bindValues(stmt, saveTemplate(), offset);
+  }
+
+  /**
+   * Colonne della chiave primaria non valorizzate in questo record:
+   * sono quelle che il db deve generare in inserimento.
+   * Usata dagli inserimenti a blocchi con chiavi generate (vedi TableSaveEngine).
+   *
+   * @return nomi delle colonne (eventualmente vuoto)
+   */
+  String[] generatedKeyColumns()
+     throws DataSetException
+  {
+    ArrayList<String> rv = new ArrayList<>();
+    for(int i = 1; i <= size(); i++)
+    {
+      Column column = schema().column(i);
+      if(column.isPrimaryKey() && valueIsClean(i))
+        rv.add(column.name());
     }
+    return rv.toArray(new String[rv.size()]);
+  }
+
+  /**
+   * Assegna ai valori di questo record le chiavi generate
+   * lette dalla riga corrente di getGeneratedKeys().
+   *
+   * @param rs resultset delle chiavi generate posizionato sulla riga di questo record
+   * @param keyColumns colonne richieste (nell'ordine del resultset)
+   *
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  void applyGeneratedKeys(ResultSet rs, String[] keyColumns)
+     throws DataSetException, SQLException
+  {
+    final ValueReader[] readers = schema().getReaders(LobHandle.LOB_MATERIALIZE);
+    for(int j = 0; j < keyColumns.length; j++)
+    {
+      int pos = schema().index(keyColumns[j]);
+      value(pos).setValue(readers[pos].read(rs, j + 1));
+    }
+  }
+
+  /**
+   * Aggiorna lo stato del record dopo l'esecuzione del suo statement di salvataggio
+   * come fanno saveWithInsert(), saveWithUpdate(), saveWithUpsert() e saveWithDelete().
+   * Usata dal salvataggio a blocchi (vedi TableSaveEngine).
+   *
+   * @param ret numero di righe modificate riportato dal db
+   * @param refresh vero per rileggere subito il record (altrimenti il refresh è a carico del chiamante)
+   *
+   * @throws DataSetException
+   * @throws SQLException se ret è maggiore di 1
+   */
+  void saveCompleted(int ret, boolean refresh)
+     throws DataSetException, SQLException
+  {
+    if(toBeSavedWithInsert())
+      insertCompleted(ret, refresh);
+    else if(toBeSavedWithUpdate())
+      updateCompleted(ret, refresh);
+    else if(toBeSavedWithUpsert())
+      upsertCompleted(ret, refresh);
+    else if(toBeSavedWithDelete())
+      deleteCompleted(ret);
+    else
+      throw new DataSetException("Not able to complete save: " + this.saveType);
+  }
+
+  /**
+   * Chiude un salvataggio riuscito: il record diventa pulito
+   * (o viene riletto dal db se richiesto) e assume il tipo indicato.
+   * Il tipo viene impostato prima del refresh perché un record
+   * ancora da inserire non può essere riletto.
+   */
+  private void completeSave(int afterType, boolean refresh)
+     throws DataSetException, SQLException
+  {
+    // Marks all of the values clean since they have now been saved
+    markRecordClean();
+    setSaveType(afterType);
+
+    if(refresh)
+    {
+      refresh(dataset().connection());
+      setSaveType(afterType);
+    }
+  }
+
+  private boolean refreshOnSave()
+  {
+    return ((TableDataSet) dataset()).refreshOnSave();
   }
 
   /**
@@ -414,8 +767,9 @@ public class Record
   {
     Column primary = null;
 
-    try(PreparedStatement stmt = connection.prepareStatement(getSaveString(), Statement.RETURN_GENERATED_KEYS))
+    try(StatementCache.Lease lease = StatementCache.prepareWithKeys(connection, getSaveString(), null))
     {
+      PreparedStatement stmt = lease.statement();
       int ps = 1;
 
       for(int i = 1; i <= size(); i++)
@@ -449,17 +803,7 @@ public class Record
         }
       }
 
-      if(((TableDataSet) dataset()).refreshOnSave())
-      {
-        refresh(dataset().connection());
-      }
-      else
-      {
-        // Marks all of the values clean since they have now been saved
-        markRecordClean();
-      }
-
-      setSaveType(Enums.AFTERINSERT);
+      completeSave(Enums.AFTERINSERT, refreshOnSave());
 
       if(ret > 1)
       {
@@ -468,6 +812,10 @@ public class Record
 
       return ret;
     }
+    finally
+    {
+      releaseLobStreams();
+    }
   }
 
   /**
@@ -480,67 +828,7 @@ public class Record
   public String getUpdateSaveString()
      throws DataSetException
   {
-    KeyDef kd = dataset().keydef();
-
-    if((kd == null) || (kd.size() == 0))
-    {
-      throw new DataSetException(
-         "You must specify KeyDef attributes for this TableDataSet in order to create a Record for update.");
-    }
-    else if(recordIsClean())
-    {
-      throw new DataSetException("You must Record.setValue() on a column before doing an update.");
-    }
-
-    StringBuilder iss1 = new StringBuilder(256);
-    StringBuilder iss2 = new StringBuilder(256);
-    boolean comma = false;
-
-    for(int i = 1; i <= size(); i++)
-    {
-      if(!valueIsClean(i) && !schema().column(i).readOnly())
-      {
-        if(!comma)
-        {
-          iss1.append(schema().column(i).name());
-          iss1.append(" = ?");
-          comma = true;
-        }
-        else
-        {
-          iss1.append(", ");
-          iss1.append(schema().column(i).name());
-          iss1.append(" = ?");
-        }
-      }
-    }
-
-    comma = false;
-
-    for(int i = 1; i <= kd.size(); i++)
-    {
-      String attrib = kd.getAttrib(i);
-
-      if(!valueIsClean(schema().index(attrib)))
-      {
-        throw new DataSetException("The value for column '" + attrib + "' is a key value and cannot be updated.");
-      }
-
-      if(!comma)
-      {
-        iss2.append(attrib);
-        iss2.append(" = ?");
-        comma = true;
-      }
-      else
-      {
-        iss2.append(" AND ");
-        iss2.append(attrib);
-        iss2.append(" = ?");
-      }
-    }
-
-    return "UPDATE " + schema().getFullTableName() + " SET " + iss1.toString() + " WHERE " + iss2.toString();
+    return sqlTemplate(Enums.UPDATE).getSql();
   }
 
   /**
@@ -553,34 +841,7 @@ public class Record
   public String getDeleteSaveString()
      throws DataSetException
   {
-    KeyDef kd = dataset().keydef();
-
-    if((kd == null) || (kd.size() == 0))
-    {
-      throw new DataSetException("You must specify KeyDef attributes for this TableDataSet in order to delete a Record.");
-    }
-
-    StringBuilder iss1 = new StringBuilder(256);
-
-    boolean comma = false;
-
-    for(int i = 1; i <= kd.size(); i++)
-    {
-      if(!comma)
-      {
-        iss1.append(kd.getAttrib(i));
-        iss1.append(" = ?");
-        comma = true;
-      }
-      else
-      {
-        iss1.append(" AND ");
-        iss1.append(kd.getAttrib(i));
-        iss1.append(" = ? ");
-      }
-    }
-
-    return "DELETE FROM " + schema().getFullTableName() + " WHERE " + iss1.toString();
+    return sqlTemplate(Enums.DELETE).getSql();
   }
 
   /**
@@ -593,30 +854,7 @@ public class Record
   public String getInsertSaveString()
      throws DataSetException
   {
-    StringBuilder iss1 = new StringBuilder(256);
-    StringBuilder iss2 = new StringBuilder(256);
-
-    boolean comma = false;
-
-    for(int i = 1; i <= size(); i++)
-    {
-      if(!valueIsClean(i) && !schema().column(i).readOnly())
-      {
-        if(!comma)
-        {
-          iss1.append(schema().column(i).name());
-          iss2.append("?");
-          comma = true;
-        }
-        else
-        {
-          iss1.append(", ").append(schema().column(i).name());
-          iss2.append(", ?");
-        }
-      }
-    }
-
-    return "INSERT INTO " + schema().getFullTableName() + " ( " + iss1.toString() + " ) VALUES ( " + iss2.toString() + " )";
+    return sqlTemplate(Enums.INSERT).getSql();
   }
 
   /**
@@ -628,18 +866,35 @@ public class Record
    */
   public String getSaveString()
      throws DataSetException
+  {
+    return saveTemplate().getSql();
+  }
+
+  /**
+   * Ritorna lo statement di salvataggio per lo stato di questo record.
+   *
+   * @return statement con il piano di assegnazione dei parametri
+   *
+   * @throws DataSetException
+   */
+  SqlTemplate saveTemplate()
+     throws DataSetException
   {
     if(toBeSavedWithInsert())
     {
-      return getInsertSaveString();
+      return sqlTemplate(Enums.INSERT);
     }
     else if(toBeSavedWithUpdate())
     {
-      return getUpdateSaveString();
+      return sqlTemplate(Enums.UPDATE);
+    }
+    else if(toBeSavedWithUpsert())
+    {
+      return sqlTemplate(Enums.UPSERT);
     }
     else if(toBeSavedWithDelete())
     {
-      return getDeleteSaveString();
+      return sqlTemplate(Enums.DELETE);
     }
     else
     {
@@ -647,6 +902,28 @@ public class Record
     }
   }
 
+  /**
+   * Ritorna lo statement del tipo indicato per le colonne modificate di questo record
+   * dalla cache dello schema (vedi Schema.getSqlTemplate()).
+   *
+   * @param type Enums.INSERT, Enums.UPDATE, Enums.UPSERT, Enums.DELETE o SqlTemplate.REFRESH
+   * @return statement con il piano di assegnazione dei parametri
+   *
+   * @throws DataSetException
+   */
+  private SqlTemplate sqlTemplate(int type)
+     throws DataSetException
+  {
+    BitSet dirty = new BitSet(size() + 1);
+    for(int i = 1; i <= size(); i++)
+    {
+      if(!isClean[i])
+        dirty.set(i);
+    }
+
+    return schema().getSqlTemplate(type, dataset().keydef(), dirty);
+  }
+
   /**
    * gets the value at index i
    *
@@ -667,12 +944,91 @@ public class Record
     {
       throw new DataSetException("Only " + size() + " columns exist!");
     }
-    else if(values[i] == null)
+
+    Value val = value(i);
+    if(val == null)
     {
       throw new DataSetException("No values for the requested column!");
     }
 
-    return values[i];
+    return val;
+  }
+
+  /**
+   * Ritorna il Value alla posizione indicata senza controlli sulla posizione.
+   * Nella modalità lazy (vedi DataSet.setLazyRecords()) il Value viene creato
+   * al primo accesso dal valore letto dal resultset.
+   *
+   * @param pos posizione (1 based)
+   * @return il Value oppure null se non presente
+   * @throws DataSetException
+   */
+  private Value value(int pos)
+     throws DataSetException
+  {
+    Value val = values[pos];
+
+    if(val == null && rawValues != null)
+    {
+      try
+      {
+        final Column column = schema().column(pos);
+        val = new Value(pos, column, column.typeEnum(), rawValues[pos]);
+        values[pos] = val;
+        rawValues[pos] = null;
+      }
+      catch(SQLException e)
+      {
+        throw new DataSetException(e.getMessage(), e);
+      }
+    }
+
+    return val;
+  }
+
+  /**
+   * Verifica se il Value alla posizione indicata è già stato creato.
+   * Sempre vero se il record non è in modalità lazy.
+   *
+   * @param pos posizione (1 based)
+   * @return vero se il Value esiste
+   */
+  boolean isValueMaterialized(int pos)
+  {
+    return values[pos] != null || rawValues == null;
+  }
+
+  /**
+   * Chiude gli stream dei LOB passati allo statement di salvataggio.
+   * Va chiamato dopo executeUpdate()/executeBatch().
+   */
+  void releaseLobStreams()
+  {
+    if(values == null)
+      return;
+
+    for(int i = 1; i < values.length; i++)
+    {
+      if(values[i] != null)
+        values[i].releaseLobStream();
+    }
+  }
+
+  /**
+   * Chiude i LobHandle del record (vedi DataSet.setLobMode()).
+   */
+  void closeLobs()
+  {
+    if(values == null)
+      return;
+
+    for(int i = 1; i < values.length; i++)
+    {
+      if(values[i] != null)
+        values[i].closeLob();
+      else if(rawValues != null && rawValues[i] instanceof LobHandle)
+        ((LobHandle) rawValues[i]).close();
+    }
   }
 
   /**
@@ -720,6 +1076,16 @@ public class Record
     return (this.saveType == Enums.UPDATE);
   }
 
+  /**
+   * whether or not this Record is to be saved with an SQL upsert (MERGE) statement
+   *
+   * @return true if saved with upsert
+   */
+  public boolean toBeSavedWithUpsert()
+  {
+    return (this.saveType == Enums.UPSERT);
+  }
+
   /**
    * whether or not this Record is to be saved with an SQL delete statement
    *
@@ -776,6 +1142,23 @@ public class Record
     setSaveType(Enums.UPDATE);
   }
 
+  /**
+   * Marks this record to be inserted or updated (by KeyDef) when a save is executed.
+   * Evita la SELECT preventiva per sapere se la riga esiste già.
+   *
+   * @throws DataSetException TODO: DOCUMENT ME!
+   */
+  public void markForUpsert()
+     throws DataSetException
+  {
+    if(dataset() instanceof QueryDataSet)
+    {
+      throw new DataSetException("You cannot mark a record in a QueryDataSet for upsert");
+    }
+
+    setSaveType(Enums.UPSERT);
+  }
+
   /**
    * Marks this record to be deleted when a save is executed.
    *
@@ -937,7 +1320,7 @@ public class Record
   public Record setValue(int pos, BigDecimal value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -956,7 +1339,7 @@ public class Record
   public Record setValue(int pos, boolean value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -975,7 +1358,7 @@ public class Record
   public Record setValue(int pos, byte[] value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -994,7 +1377,7 @@ public class Record
   public Record setValue(int pos, java.util.Date value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1013,7 +1396,7 @@ public class Record
   public Record setValue(int pos, java.sql.Date value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1032,7 +1415,7 @@ public class Record
   public Record setValue(int pos, double value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1051,7 +1434,7 @@ public class Record
   public Record setValue(int pos, float value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1070,7 +1453,7 @@ public class Record
   public Record setValue(int pos, int value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1089,7 +1472,7 @@ public class Record
   public Record setValue(int pos, long value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1108,7 +1491,7 @@ public class Record
   public Record setValue(int pos, String value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1127,7 +1510,7 @@ public class Record
   public Record setValue(int pos, java.sql.Time value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1146,7 +1529,7 @@ public class Record
   public Record setValue(int pos, java.sql.Timestamp value)
      throws DataSetException
   {
-    this.values[pos].setValue(value);
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1165,7 +1548,27 @@ public class Record
   public Record setValue(int pos, Value value)
      throws DataSetException
   {
-    this.values[pos].setValue(value.getValue());
+    value(pos).setValue(value.getValue());
+    markValueDirty(pos);
+
+    return this;
+  }
+
+  /**
+   * Imposta il valore senza conversioni: l'oggetto viene convertito
+   * al tipo della colonna solo quando viene assegnato allo statement (vedi TableWriter).
+   *
+   * @param pos colonna (1 based)
+   * @param value valore
+   *
+   * @return this
+   *
+   * @throws DataSetException
+   */
+  Record setObject(int pos, Object value)
+     throws DataSetException
+  {
+    value(pos).setValue(value);
     markValueDirty(pos);
 
     return this;
@@ -1426,7 +1829,7 @@ public class Record
       throw new DataSetException("Value position is greater than number of values.");
     }
 
-    this.values[pos].setValue(null);
+    value(pos).setValue(null);
     markValueDirty(pos);
 
     return this;
@@ -1492,7 +1895,7 @@ public class Record
     if(this.saveType == Enums.UNKNOWN)
       this.saveType = Enums.UPDATE;
 
-    return toBeSavedWithUpdate() || toBeSavedWithInsert();
+    return toBeSavedWithUpdate() || toBeSavedWithInsert() || toBeSavedWithUpsert();
 
     //return !isAZombie() || !recordIsClean() || toBeSavedWithUpdate() || toBeSavedWithDelete() || toBeSavedWithInsert();
   }
@@ -1559,7 +1962,7 @@ public class Record
     {
       return;
     }
-    else if(toBeSavedWithInsert())
+    else if(toBeSavedWithInsert() || toBeSavedWithUpsert())
     {
       throw new DataSetException("There is no way to refresh a record which has been created with addRecord().");
     }
@@ -1568,19 +1971,22 @@ public class Record
       throw new DataSetException("You can only perform a refresh on Records created with a TableDataSet.");
     }
 
-    try(PreparedStatement stmt = connection.prepareStatement(getRefreshQueryString()))
+    SqlTemplate tpl = refreshTemplate();
+
+    try(StatementCache.Lease lease = StatementCache.prepare(connection, tpl.getSql()))
     {
-      int ps = 1;
-      for(int i = 1; i <= dataset().keydef().size(); i++)
+      PreparedStatement stmt = lease.statement();
+      final int[] bind = tpl.getBindColumns();
+      for(int ps = 0; ps < bind.length; ps++)
       {
-        Value val = getValue(dataset().keydef().getAttrib(i));
+        Value val = value(bind[ps]);
 
         if(val.isNull())
         {
           throw new DataSetException("You cannot execute an update with a null value for a KeyDef.");
         }
 
-        val.setPreparedStatementValue(stmt, ps++);
+        val.setPreparedStatementValue(stmt, ps + 1);
       }
 
       try(ResultSet rs = stmt.executeQuery())
@@ -1603,6 +2009,12 @@ public class Record
    */
   public String getRefreshQueryString()
      throws DataSetException
+  {
+    return refreshTemplate().getSql();
+  }
+
+  SqlTemplate refreshTemplate()
+     throws DataSetException
   {
     if((dataset().keydef() == null) || (dataset().keydef().size() == 0))
     {
@@ -1614,51 +2026,7 @@ public class Record
       throw new DataSetException("You can only perform a getRefreshQueryString on Records created with a TableDataSet.");
     }
 
-    StringBuilder iss1 = new StringBuilder(256);
-    StringBuilder iss2 = new StringBuilder(256);
-    boolean comma = false;
-
-    for(int i = 1; i <= size(); i++)
-    {
-      if(!comma)
-      {
-        iss1.append(schema().column(i).name());
-        comma = true;
-      }
-      else
-      {
-        iss1.append(", ");
-        iss1.append(schema().column(i).name());
-      }
-    }
-
-    comma = false;
-
-    for(int i = 1; i <= dataset().keydef().size(); i++)
-    {
-      String attrib = dataset().keydef().getAttrib(i);
-
-      if(!valueIsClean(attrib))
-      {
-        throw new DataSetException("You cannot do a refresh from the database if the value "
-           + "for a KeyDef column has been changed with a Record.setValue().");
-      }
-
-      if(!comma)
-      {
-        iss2.append(attrib);
-        iss2.append(" = ?");
-        comma = true;
-      }
-      else
-      {
-        iss2.append(" AND ");
-        iss2.append(attrib);
-        iss2.append(" = ?");
-      }
-    }
-
-    return "SELECT " + iss1.toString() + " FROM " + schema().getFullTableName() + " WHERE " + iss2.toString();
+    return sqlTemplate(SqlTemplate.REFRESH);
   }
 
   /**
@@ -1769,7 +2137,7 @@ public class Record
       Object value = entry.getValue();
 
       int pos = schema().index(fname);
-      this.values[pos].setValue(value);
+      value(pos).setValue(value);
       markValueDirty(pos);
     }
 
@@ -2061,7 +2429,7 @@ public class Record
       if(c != null)
       {
         int pos = schema().index(c.name());
-        this.values[pos].setValue(value);
+        value(pos).setValue(value);
         markValueDirty(pos);
       }
     }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Risultato di un salvataggio con TableSaveEngine.
+ * Riporta i record salvati e scartati, i blocchi eseguiti,
+ * i commit con i loro tempi e la velocità complessiva.
+ *
+ * @author Nicola De Nisco
+ */
+public class SaveResult
+{
+  int saved, chunks, failedChunks, commits;
+  long elapsedNanos, commitNanos, maxCommitNanos;
+  final ArrayList<Record> failedRecords = new ArrayList<>();
+  final ArrayList<Exception> errors = new ArrayList<>();
+
+  void addCommit(long nanos)
+  {
+    commits++;
+    commitNanos += nanos;
+    maxCommitNanos = Math.max(maxCommitNanos, nanos);
+  }
+
+  /**
+   * Numero di record salvati.
+   * @return record salvati
+   */
+  public int getSaved()
+  {
+    return saved;
+  }
+
+  /**
+   * Numero di record scartati per errore (vedi TableSaveEngine.setErrorPolicy()).
+   * @return record scartati
+   */
+  public int getFailed()
+  {
+    return failedRecords.size();
+  }
+
+  /**
+   * Record scartati: sono rimasti da salvare con lo stato precedente il salvataggio.
+   * @return elenco dei record
+   */
+  public List<Record> getFailedRecords()
+  {
+    return Collections.unmodifiableList(failedRecords);
+  }
+
+  /**
+   * Errori dei blocchi o dei record scartati.
+   * @return elenco degli errori
+   */
+  public List<Exception> getErrors()
+  {
+    return Collections.unmodifiableList(errors);
+  }
+
+  /**
+   * Numero di blocchi eseguiti (executeBatch, INSERT multiriga o salvataggi singoli).
+   * @return numero di blocchi
+   */
+  public int getChunks()
+  {
+    return chunks;
+  }
+
+  public int getFailedChunks()
+  {
+    return failedChunks;
+  }
+
+  /**
+   * Numero di commit eseguiti dal salvataggio.
+   * @return numero di commit
+   */
+  public int getCommits()
+  {
+    return commits;
+  }
+
+  public long getElapsedMillis()
+  {
+    return elapsedNanos / 1000000L;
+  }
+
+  /**
+   * Tempo totale speso nei commit.
+   * @return millisecondi
+   */
+  public long getCommitMillis()
+  {
+    return commitNanos / 1000000L;
+  }
+
+  /**
+   * Tempo medio di un commit.
+   * @return millisecondi
+   */
+  public double getAverageCommitMillis()
+  {
+    return commits == 0 ? 0 : commitNanos / 1000000.0 / commits;
+  }
+
+  /**
+   * Tempo del commit più lento.
+   * @return millisecondi
+   */
+  public double getMaxCommitMillis()
+  {
+    return maxCommitNanos / 1000000.0;
+  }
+
+  /**
+   * Velocità del salvataggio.
+   * @return record salvati al secondo
+   */
+  public double getRowsPerSecond()
+  {
+    return elapsedNanos == 0 ? 0 : saved * 1000000000.0 / elapsedNanos;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SaveResult{saved=%d, failed=%d, chunks=%d, commits=%d, elapsed=%dms, avgCommit=%.1fms, rows/s=%.0f}",
+       saved, failedRecords.size(), chunks, commits, getElapsedMillis(), getAverageCommitMillis(), getRowsPerSecond());
+  }
+}
@@ -25,11 +25,14 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.commonlib5.utils.Pair;
 import org.commonlib5.utils.StringOper;
 
@@ -55,11 +58,25 @@ public final class Schema
   /** TODO: DOCUMENT ME! */
   private Column[] columns;
 
+  /** lettori dei valori per colonna (1 based) per ogni modalità LOB, preparati alla prima richiesta */
+  private final AtomicReferenceArray<ValueReader[]> readers = new AtomicReferenceArray<>(3);
+
+  /** statement di salvataggio e refresh già costruiti (vedi getSqlTemplate()) */
+  private final ConcurrentHashMap<SqlTemplate.Key, SqlTemplate> sqlTemplates = new ConcurrentHashMap<>();
+
+  /** numero massimo di statement conservati in sqlTemplates */
+  public static final int MAX_SQL_TEMPLATES = 256;
+
+  private static final BitSet NO_COLUMNS = new BitSet();
+
+  /** dialetto del database della tabella (per gli statement non standard come l'upsert) */
+  private SqlDialect dialect;
+
   /** a map of column name to position of each columen (see index()) NOTE: it is case insensitive */
   private final Map<String, Integer> columnNumberByName = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 
-  /** a permanent cache of all built schemas */
-  private static final HashMap<String, Schema> schemaCache = new HashMap<>(256);
+  /** cache of all built schemas (see getSchemaCache()) */
+  private static final SchemaCache schemaCache = new SchemaCache();
 
   /**
    * This attribute is used to complement columns in the event that this schema represents more than one table. Its keys
@@ -101,7 +118,9 @@ public final class Schema
   }
 
   /**
-   * Initialize all table schemas reachable from this connection
+   * Initialize all table schemas reachable from this connection.
+   * Columns and primary keys are read in bulk for each database schema
+   * (see SchemaInitializer, which also allows filters and parallel loading).
    *
    * @param conn a database connection
    * @throws SQLException if retrieving the database meta data is unsuccessful
@@ -109,38 +128,43 @@ public final class Schema
   public static void initSchemas(Connection conn)
      throws SQLException
   {
-    DatabaseMetaData databaseMetaData = conn.getMetaData();
-    String connURL = databaseMetaData.getURL();
-
-    try(ResultSet rsTables = databaseMetaData.getTables(conn.getCatalog(), null, null, TABLES_FILTER))
-    {
-      while(rsTables.next())
-      {
-        String schemaName = StringOper.okStr(rsTables.getString("TABLE_SCHEM"));
-        String tableName = StringOper.okStr(rsTables.getString("TABLE_NAME"));
-        cacheSchemaTable.put(tableName, schemaName);
+    new SchemaInitializer().run(conn);
+  }
 
-        try(ResultSet rsColumns = databaseMetaData.getColumns(conn.getCatalog(), schemaName, tableName, null))
-        {
-          Schema schema = new Schema();
+  /**
+   * Ritorna la cache degli schemi: permette di invalidare gli schemi
+   * di una tabella o di una connessione, limitarne il numero e leggere le statistiche.
+   * @return la cache
+   */
+  public static SchemaCache getSchemaCache()
+  {
+    return schemaCache;
+  }
 
-          schema.setSchemaName(schemaName);
-          schema.setTableName(tableName);
-          schema.setAttributes("*");
-          schema.singleTable = true;
-          schema.populate(rsColumns, conn.getCatalog(), databaseMetaData);
+  /**
+   * Copia della corrispondenza fra nome tabella e nome schema (vedi SchemaSnapshot).
+   */
+  static Map<String, String> exportSchemaTable()
+  {
+    synchronized(cacheSchemaTable)
+    {
+      return new TreeMap<>(cacheSchemaTable);
+    }
+  }
 
-          if(schema.numberOfColumns > 0)
-          {
-            String keyValue = makeKeyHash(connURL, schema.schemaName, schema.tableName);
+  static void importSchemaTable(Map<String, String> values)
+  {
+    synchronized(cacheSchemaTable)
+    {
+      values.forEach(cacheSchemaTable::putIfAbsent);
+    }
+  }
 
-            synchronized(schemaCache)
-            {
-              schemaCache.put(keyValue, schema);
-            }
-          }
-        }
-      }
+  static void updateSchemaTable(Map<String, String> values)
+  {
+    synchronized(cacheSchemaTable)
+    {
+      cacheSchemaTable.putAll(values);
     }
   }
 
@@ -188,40 +212,29 @@ public final class Schema
   public static Schema schema(Connection conn, Pair<String, String> ts, String columnsAttribute)
      throws SQLException, DataSetException
   {
-    Schema tableSchema = null;
     DatabaseMetaData dbMeta = conn.getMetaData();
     String keyValue = makeKeyHash(dbMeta.getURL(), ts.first, ts.second);
-    columnsAttribute = StringOper.okStr(columnsAttribute, "*");
+    final String attributes = StringOper.okStr(columnsAttribute, "*");
 
-    synchronized(schemaCache)
+    // la query viene eseguita senza lock: attendono solo i thread che chiedono la stessa tabella
+    return schemaCache.get(keyValue, () ->
     {
-      tableSchema = (Schema) schemaCache.get(keyValue);
+      String sql = buildSchemaQuery(attributes, ts);
 
-      if(tableSchema == null)
+      try(PreparedStatement stmt = conn.prepareStatement(sql))
       {
-        String sql = buildSchemaQuery(columnsAttribute, ts);
-
-        try(PreparedStatement stmt = conn.prepareStatement(sql))
-        {
-          if(stmt != null)
-          {
-            stmt.executeQuery();
-            tableSchema = new Schema();
-            tableSchema.setSchemaName(ts.first);
-            tableSchema.setTableName(ts.second);
-            tableSchema.setAttributes(columnsAttribute);
-            tableSchema.populate(stmt.getMetaData(), ts.first, ts.second, conn);
-            schemaCache.put(keyValue, tableSchema);
-          }
-          else
-          {
-            throw new DataSetException("Couldn't retrieve schema for " + ts.second);
-          }
-        }
+        if(stmt == null)
+          throw new DataSetException("Couldn't retrieve schema for " + ts.second);
+
+        stmt.executeQuery();
+        Schema tableSchema = new Schema();
+        tableSchema.setSchemaName(ts.first);
+        tableSchema.setTableName(ts.second);
+        tableSchema.setAttributes(attributes);
+        tableSchema.populate(stmt.getMetaData(), ts.first, ts.second, conn);
+        return tableSchema;
       }
-    }
-
-    return tableSchema;
+    });
   }
 
   private static String buildSchemaQuery(String columnsAttribute, Pair<String, String> ts)
@@ -417,6 +430,18 @@ public final class Schema
     }
   }
 
+  /**
+   * Verifica se la colonna esiste (senza distinzione fra maiuscole e minuscole).
+   *
+   * @param colName nome della colonna
+   *
+   * @return vero se esiste
+   */
+  public boolean hasColumn(String colName)
+  {
+    return columnNumberByName.containsKey(colName);
+  }
+
   /**
    * Gets the index position of a named column.
    *
@@ -443,6 +468,85 @@ public final class Schema
     return singleTable;
   }
 
+  /**
+   * Ritorna i lettori dei valori per le colonne di questo schema.
+   * L'array viene preparato una sola volta in base al tipo di ogni colonna
+   * e riutilizzato per tutte le righe lette (vedi Record).
+   *
+   * @return array dei lettori (1 based)
+   * @throws DataSetException
+   */
+  public ValueReader[] getReaders()
+     throws DataSetException
+  {
+    return getReaders(LobHandle.LOB_MATERIALIZE);
+  }
+
+  /**
+   * Ritorna i lettori dei valori per la modalità di lettura dei LOB indicata.
+   *
+   * @param lobMode una delle costanti LobHandle.LOB_...
+   * @return array dei lettori (1 based)
+   * @throws DataSetException
+   */
+  public ValueReader[] getReaders(int lobMode)
+     throws DataSetException
+  {
+    ValueReader[] rv = readers.get(lobMode);
+
+    if(rv == null)
+    {
+      rv = new ValueReader[numberOfColumns() + 1];
+      for(int i = 1; i <= numberOfColumns(); i++)
+        rv[i] = ValueReader.forType(column(i).typeEnum(), lobMode);
+
+      readers.set(lobMode, rv);
+    }
+
+    return rv;
+  }
+
+  /**
+   * Ritorna lo statement di salvataggio o refresh per le colonne modificate indicate.
+   * Lo statement viene costruito alla prima richiesta e poi riusato
+   * per tutti i record con lo stesso insieme di colonne modificate.
+   *
+   * @param type Enums.INSERT, Enums.UPDATE, Enums.UPSERT, Enums.DELETE o SqlTemplate.REFRESH
+   * @param kd chiave della tabella (non usata per INSERT)
+   * @param dirty colonne modificate (1 based); non deve essere modificato dopo la chiamata
+   * @return lo statement con il piano di assegnazione dei parametri
+   * @throws DataSetException
+   */
+  public SqlTemplate getSqlTemplate(int type, KeyDef kd, BitSet dirty)
+     throws DataSetException
+  {
+    // DELETE e REFRESH non dipendono dalle colonne modificate (salvo la verifica sulla chiave)
+    if(type == Enums.DELETE || (type == SqlTemplate.REFRESH && !SqlTemplate.isKeyDirty(this, kd, dirty)))
+      dirty = NO_COLUMNS;
+
+    SqlTemplate.Key key = new SqlTemplate.Key(type, kd, dirty);
+    SqlTemplate rv = sqlTemplates.get(key);
+
+    if(rv == null)
+    {
+      rv = SqlTemplate.build(this, type, kd, dirty);
+
+      // troppe combinazioni di colonne: ricomincia da capo
+      if(sqlTemplates.size() >= MAX_SQL_TEMPLATES)
+        sqlTemplates.clear();
+
+      sqlTemplates.put(key, rv);
+    }
+
+    return rv;
+  }
+
+  private void resetReaders()
+  {
+    for(int i = 0; i < readers.length(); i++)
+      readers.set(i, null);
+  }
+
   /**
    * Gets the number of columns in this Schema
    *
@@ -471,10 +575,13 @@ public final class Schema
     numberOfColumns = meta.getColumnCount();
     columns = new Column[numberOfColumns() + 1];
     columnNumberByName.clear();
+    resetReaders();
+    sqlTemplates.clear();
 
     DatabaseMetaData dbMeta = con.getMetaData();
     String connURL = dbMeta.getURL();
     LocalPrimaryCache lpc = new LocalPrimaryCache(con.getCatalog(), dbMeta);
+    dialect = SqlDialect.getDialect(dbMeta);
 
     for(int i = 1; i <= numberOfColumns(); i++)
     {
@@ -491,13 +598,8 @@ public final class Schema
 
       if(metaTableName.length() > 0 && connURL != null)
       {
-        Schema tableSchema = null;
         String keyValue = makeKeyHash(connURL, metaSchemaName, metaTableName);
-
-        synchronized(schemaCache)
-        {
-          tableSchema = (Schema) schemaCache.get(keyValue);
-        }
+        Schema tableSchema = schemaCache.getIfPresent(keyValue);
 
         if(tableSchema != null)
         {
@@ -557,6 +659,11 @@ public final class Schema
       }
     }
 
+    buildTableHash();
+  }
+
+  private void buildTableHash()
+  {
     tableHash.clear();
     for(int i = 1; i <= numberOfColumns(); i++)
     {
@@ -572,6 +679,31 @@ public final class Schema
     }
   }
 
+  /**
+   * Popola lo schema con colonne già note (vedi SchemaSnapshot).
+   * @param cols colonne (1 based; l'elemento 0 è ignorato)
+   * @param single vero se le colonne sono di una sola tabella
+   * @param sqlDialect dialetto del database
+   */
+  void populate(Column[] cols, boolean single, SqlDialect sqlDialect)
+  {
+    numberOfColumns = cols.length - 1;
+    columns = cols;
+    singleTable = single;
+    dialect = sqlDialect;
+    columnNumberByName.clear();
+    resetReaders();
+    sqlTemplates.clear();
+
+    for(int i = 1; i <= numberOfColumns; i++)
+    {
+      columnNumberByName.put(cols[i].name(), i);
+      columnNumberByName.put(cols[i].getTableName() + "." + cols[i].name(), i);
+    }
+
+    buildTableHash();
+  }
+
   private String getSecureTableName(ResultSetMetaData meta, int i, String tableName)
   {
     String metaTableName;
@@ -635,7 +767,10 @@ public final class Schema
   {
     List cols = new ArrayList();
     columnNumberByName.clear();
+    resetReaders();
+    sqlTemplates.clear();
     LocalPrimaryCache lpc = new LocalPrimaryCache(catalog, databaseMetaData);
+    dialect = SqlDialect.getDialect(databaseMetaData);
 
     while(dbMeta.next())
     {
@@ -711,6 +846,15 @@ public final class Schema
     this.schemaName = schemaName;
   }
 
+  /**
+   * Dialetto del database da cui è stato letto lo schema.
+   * @return dialetto oppure null se lo schema non è stato popolato
+   */
+  public SqlDialect getDialect()
+  {
+    return dialect;
+  }
+
   public String getFullTableName()
      throws DataSetException
   {
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.commonlib5.utils.Pair;
+
+/**
+ * Cache degli Schema delle tabelle (vedi Schema.schema()).
+ * Le chiavi sono quelle di Schema.makeKeyHash() (url della connessione, schema, tabella).
+ * Il caricamento di uno schema blocca solo i thread che chiedono la stessa chiave:
+ * il primo esegue la lettura dal db, gli altri ne attendono il risultato;
+ * se il caricamento fallisce l'errore va al primo e gli altri ritentano.
+ * Il numero di schemi conservati è limitato da maxSize: superato il limite
+ * vengono rimossi quelli usati meno di recente.
+ * Gli schemi possono essere invalidati per tabella o per url di connessione
+ * (ad esempio dopo una ALTER TABLE o per un tenant dismesso);
+ * chi ha già ottenuto uno schema invalidato continua ad usarlo.
+ *
+ * @author Nicola De Nisco
+ */
+public class SchemaCache
+{
+  /** numero massimo di schemi di default */
+  public static final int DEFAULT_MAX_SIZE = 4096;
+
+  /**
+   * Lettura di uno schema dal db.
+   */
+  @FunctionalInterface
+  public interface Loader
+  {
+    Schema load()
+       throws SQLException, DataSetException;
+  }
+
+  private static class Entry
+  {
+    final CountDownLatch loaded = new CountDownLatch(1);
+    volatile Schema value;
+    volatile long lastAccess;
+
+    Entry(Schema value)
+    {
+      this.value = value;
+      this.lastAccess = TICK.incrementAndGet();
+      if(value != null)
+        loaded.countDown();
+    }
+
+    boolean isLoaded()
+    {
+      return loaded.getCount() == 0;
+    }
+  }
+
+  /** orologio logico per l'ordine di utilizzo */
+  private static final AtomicLong TICK = new AtomicLong();
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(256);
+  private final Object evictLock = new Object();
+  private volatile int maxSize;
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder(),
+     loads = new LongAdder(), loadFailures = new LongAdder(), loadNanos = new LongAdder(),
+     evictions = new LongAdder(), invalidations = new LongAdder();
+
+  public SchemaCache()
+  {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxSize numero massimo di schemi conservati (0 nessun limite)
+   */
+  public SchemaCache(int maxSize)
+  {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Ritorna lo schema dalla cache caricandolo se non presente.
+   * @param key chiave (vedi Schema.makeKeyHash())
+   * @param loader lettura dello schema dal db
+   * @return lo schema
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public Schema get(String key, Loader loader)
+     throws SQLException, DataSetException
+  {
+    while(true)
+    {
+      Entry e = entries.get(key);
+
+      if(e == null)
+      {
+        Entry ne = new Entry(null);
+        if((e = entries.putIfAbsent(key, ne)) == null)
+        {
+          misses.increment();
+          return load(key, ne, loader);
+        }
+      }
+
+      if(!e.isLoaded())
+      {
+        try
+        {
+          e.loaded.await();
+        }
+        catch(InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          throw new DataSetException("Interrupted while waiting schema " + key);
+        }
+      }
+
+      Schema s = e.value;
+      if(s != null)
+      {
+        hits.increment();
+        e.lastAccess = TICK.incrementAndGet();
+        return s;
+      }
+
+      // caricamento fallito in un altro thread: si ritenta
+    }
+  }
+
+  private Schema load(String key, Entry e, Loader loader)
+     throws SQLException, DataSetException
+  {
+    long start = System.nanoTime();
+    try
+    {
+      Schema s = loader.load();
+      if(s == null)
+        throw new DataSetException("Couldn't retrieve schema for " + key);
+
+      e.value = s;
+      loads.increment();
+      return s;
+    }
+    finally
+    {
+      loadNanos.add(System.nanoTime() - start);
+
+      if(e.value == null)
+      {
+        loadFailures.increment();
+        entries.remove(key, e);
+      }
+
+      e.loaded.countDown();
+      evictIfNeeded();
+    }
+  }
+
+  /**
+   * Ritorna lo schema solo se già caricato; non attende caricamenti in corso.
+   * @param key chiave (vedi Schema.makeKeyHash())
+   * @return lo schema oppure null
+   */
+  public Schema getIfPresent(String key)
+  {
+    Entry e = entries.get(key);
+    if(e == null || e.value == null)
+      return null;
+
+    e.lastAccess = TICK.incrementAndGet();
+    return e.value;
+  }
+
+  /**
+   * Inserisce uno schema già costruito (vedi Schema.initSchemas()).
+   * @param key chiave (vedi Schema.makeKeyHash())
+   * @param schema lo schema
+   */
+  public void put(String key, Schema schema)
+  {
+    Entry old = entries.put(key, new Entry(schema));
+    if(old != null && !old.isLoaded())
+    {
+      // chi attende il caricamento in corso ritenta e trova il nuovo schema
+      old.loaded.countDown();
+    }
+
+    evictIfNeeded();
+  }
+
+  /**
+   * Inserisce uno schema già costruito solo se la chiave non è presente.
+   * @param key chiave (vedi Schema.makeKeyHash())
+   * @param schema lo schema
+   * @return vero se inserito
+   */
+  public boolean putIfAbsent(String key, Schema schema)
+  {
+    if(entries.putIfAbsent(key, new Entry(schema)) != null)
+      return false;
+
+    evictIfNeeded();
+    return true;
+  }
+
+  /**
+   * Copia degli schemi caricati per un url di connessione (vedi SchemaSnapshot).
+   * @param connURL url della connessione
+   * @return mappa chiave / schema
+   */
+  Map<String, Schema> export(String connURL)
+  {
+    String prefix = connURL + "|";
+    TreeMap<String, Schema> rv = new TreeMap<>();
+
+    for(Map.Entry<String, Entry> me : entries.entrySet())
+    {
+      Schema s = me.getValue().value;
+      if(s != null && me.getKey().startsWith(prefix))
+        rv.put(me.getKey(), s);
+    }
+
+    return rv;
+  }
+
+  /**
+   * Rimuove gli schemi usati meno di recente oltre maxSize.
+   * Viene rimosso un 10% in più per non ripetere la scansione ad ogni inserimento.
+   */
+  private void evictIfNeeded()
+  {
+    int max = maxSize;
+    if(max <= 0 || entries.size() <= max)
+      return;
+
+    synchronized(evictLock)
+    {
+      int toRemove = entries.size() - max + max / 10;
+      if(toRemove <= 0 || entries.size() <= max)
+        return;
+
+      ArrayList<Map.Entry<String, Entry>> loaded = new ArrayList<>(entries.size());
+      for(Map.Entry<String, Entry> me : entries.entrySet())
+      {
+        if(me.getValue().isLoaded())
+          loaded.add(me);
+      }
+
+      loaded.sort((e1, e2) -> Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+
+      for(int i = 0; i < loaded.size() && toRemove > 0; i++)
+      {
+        Map.Entry<String, Entry> me = loaded.get(i);
+        if(entries.remove(me.getKey(), me.getValue()))
+        {
+          evictions.increment();
+          toRemove--;
+        }
+      }
+    }
+  }
+
+  /**
+   * Invalida lo schema di una tabella.
+   * @param connURL url della connessione
+   * @param schemaName nome dello schema; null per la tabella in qualsiasi schema
+   * @param tableName nome della tabella
+   * @return numero di schemi rimossi
+   */
+  public int invalidate(String connURL, String schemaName, String tableName)
+  {
+    String prefix = connURL + "|";
+    int count = 0;
+
+    for(String key : entries.keySet())
+    {
+      if(!key.startsWith(prefix))
+        continue;
+
+      // i nomi di schema e tabella vengono confrontati ignorando maiuscole/minuscole
+      int sep = key.indexOf('|', prefix.length());
+      if(sep == -1 || !key.substring(sep + 1).equalsIgnoreCase(tableName))
+        continue;
+      if(schemaName != null && !key.substring(prefix.length(), sep).equalsIgnoreCase(schemaName))
+        continue;
+
+      if(remove(key))
+        count++;
+    }
+
+    return count;
+  }
+
+  /**
+   * Invalida lo schema di una tabella della connessione.
+   * @param conn connessione
+   * @param tableName nome della tabella, eventualmente nella forma SCHEMA.TABELLA
+   * @return numero di schemi rimossi
+   * @throws SQLException
+   */
+  public int invalidate(Connection conn, String tableName)
+     throws SQLException
+  {
+    Pair<String, String> ts = VillageUtils.getCorrectSchema("", tableName);
+    return invalidate(conn.getMetaData().getURL(), ts.first.isEmpty() ? null : ts.first, ts.second);
+  }
+
+  /**
+   * Invalida tutti gli schemi di un url di connessione.
+   * @param connURL url della connessione
+   * @return numero di schemi rimossi
+   */
+  public int invalidateUrl(String connURL)
+  {
+    String prefix = connURL + "|";
+    int count = 0;
+
+    for(String key : entries.keySet())
+    {
+      if(key.startsWith(prefix) && remove(key))
+        count++;
+    }
+
+    return count;
+  }
+
+  /**
+   * Svuota la cache.
+   */
+  public void invalidateAll()
+  {
+    for(String key : entries.keySet())
+      remove(key);
+  }
+
+  private boolean remove(String key)
+  {
+    Entry e = entries.remove(key);
+    if(e == null)
+      return false;
+
+    invalidations.increment();
+    return true;
+  }
+
+  public int size()
+  {
+    return entries.size();
+  }
+
+  public int getMaxSize()
+  {
+    return maxSize;
+  }
+
+  /**
+   * Numero massimo di schemi conservati.
+   * @param maxSize numero di schemi (0 nessun limite)
+   */
+  public void setMaxSize(int maxSize)
+  {
+    this.maxSize = maxSize;
+    evictIfNeeded();
+  }
+
+  public long getHits()
+  {
+    return hits.sum();
+  }
+
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+
+  public long getLoads()
+  {
+    return loads.sum();
+  }
+
+  public long getLoadFailures()
+  {
+    return loadFailures.sum();
+  }
+
+  /**
+   * Tempo totale speso nei caricamenti (riusciti o falliti).
+   * @return millisecondi
+   */
+  public long getLoadMillis()
+  {
+    return loadNanos.sum() / 1000000L;
+  }
+
+  /**
+   * Tempo medio di un caricamento.
+   * @return millisecondi
+   */
+  public double getAverageLoadMillis()
+  {
+    long n = loads.sum() + loadFailures.sum();
+    return n == 0 ? 0 : loadNanos.sum() / 1000000.0 / n;
+  }
+
+  public long getEvictions()
+  {
+    return evictions.sum();
+  }
+
+  public long getInvalidations()
+  {
+    return invalidations.sum();
+  }
+
+  /**
+   * Azzera le statistiche.
+   */
+  public void resetStats()
+  {
+    hits.reset();
+    misses.reset();
+    loads.reset();
+    loadFailures.reset();
+    loadNanos.reset();
+    evictions.reset();
+    invalidations.reset();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SchemaCache{size=%d, max=%d, hits=%d, misses=%d, loads=%d, failures=%d, avgLoad=%.1fms, evictions=%d, invalidations=%d}",
+       size(), maxSize, getHits(), getMisses(), getLoads(), getLoadFailures(), getAverageLoadMillis(),
+       getEvictions(), getInvalidations());
+  }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.commonlib5.utils.StringOper;
+
+/**
+ * Caricamento iniziale degli schemi di tutte le tabelle (vedi Schema.initSchemas()).
+ * Invece di una getColumns() e una getPrimaryKeys() per ogni tabella
+ * le colonne vengono lette con una sola getColumns() per ogni schema del db
+ * e le chiavi primarie con una sola getPrimaryKeys() per schema, se il driver
+ * accetta il nome tabella null; altrimenti le chiavi vengono lette tabella per tabella.
+ * Gli schemi costruiti vanno nella cache di Schema e le chiavi in LocalPrimaryCache.
+ * Con setConnectionSupplier() gli schemi del db vengono distribuiti su più
+ * connessioni lavorate in parallelo (utile per cataloghi con molti schemi).
+ * I tempi delle singole fasi sono disponibili dopo run();
+ * in parallelo sono la somma dei tempi dei singoli thread.
+ * <pre>
+ * SchemaInitializer si = new SchemaInitializer();
+ * si.setSchemaPattern("stp");
+ * si.run(conn);
+ * log.info(si.toString());
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class SchemaInitializer
+{
+  private String schemaPattern = null, tablePattern = null;
+  private String[] tableTypes = Schema.TABLES_FILTER;
+  private Supplier<Connection> connSupplier = null;
+  private int parallelism = 1;
+
+  // risultati dell'ultima run()
+  private final LongAdder tables = new LongAdder(), columns = new LongAdder(), schemas = new LongAdder(),
+     keysFallback = new LongAdder();
+  private final LongAdder columnsNanos = new LongAdder(), keysNanos = new LongAdder(), buildNanos = new LongAdder();
+  private long tablesNanos, totalNanos;
+
+  private static class ColumnInfo
+  {
+    String name, typeName;
+    int type, position;
+    boolean nullable;
+  }
+
+  /**
+   * Carica gli schemi delle tabelle indicate dai filtri.
+   * @param conn connessione (usata per l'elenco delle tabelle e, senza parallelismo, per tutto il resto)
+   * @return numero di tabelle caricate
+   * @throws SQLException
+   */
+  public int run(Connection conn)
+     throws SQLException
+  {
+    long start = System.nanoTime();
+    tables.reset();
+    columns.reset();
+    schemas.reset();
+    keysFallback.reset();
+    columnsNanos.reset();
+    keysNanos.reset();
+    buildNanos.reset();
+
+    DatabaseMetaData dbMeta = conn.getMetaData();
+    String catalog = conn.getCatalog();
+
+    // elenco delle tabelle raggruppate per schema
+    Map<String, Set<String>> tablesBySchema = new TreeMap<>();
+    Map<String, String> schemaTable = new HashMap<>();
+    try(ResultSet rs = dbMeta.getTables(catalog, schemaPattern, tablePattern, tableTypes))
+    {
+      while(rs.next())
+      {
+        String schemaName = StringOper.okStr(rs.getString("TABLE_SCHEM"));
+        String tableName = StringOper.okStr(rs.getString("TABLE_NAME"));
+        tablesBySchema.computeIfAbsent(schemaName, (k) -> new HashSet<>()).add(tableName);
+        schemaTable.put(tableName, schemaName);
+      }
+    }
+    Schema.updateSchemaTable(schemaTable);
+    tablesNanos = System.nanoTime() - start;
+
+    if(connSupplier == null || parallelism <= 1 || tablesBySchema.size() <= 1)
+    {
+      for(Map.Entry<String, Set<String>> e : tablesBySchema.entrySet())
+        loadSchema(dbMeta, catalog, e.getKey(), e.getValue());
+    }
+    else
+    {
+      runParallel(tablesBySchema);
+    }
+
+    totalNanos = System.nanoTime() - start;
+    return tables.intValue();
+  }
+
+  private void runParallel(Map<String, Set<String>> tablesBySchema)
+     throws SQLException
+  {
+    ConcurrentLinkedQueue<Map.Entry<String, Set<String>>> queue = new ConcurrentLinkedQueue<>(tablesBySchema.entrySet());
+    int threads = Math.min(parallelism, tablesBySchema.size());
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try
+    {
+      List<Future<Void>> futures = new ArrayList<>(threads);
+      for(int i = 0; i < threads; i++)
+      {
+        futures.add(pool.submit(() ->
+        {
+          // ogni thread lavora con la sua connessione
+          try(Connection c = connSupplier.get())
+          {
+            DatabaseMetaData md = c.getMetaData();
+            String catalog = c.getCatalog();
+
+            Map.Entry<String, Set<String>> e;
+            while((e = queue.poll()) != null)
+              loadSchema(md, catalog, e.getKey(), e.getValue());
+          }
+          return null;
+        }));
+      }
+
+      try
+      {
+        for(Future<Void> f : futures)
+          f.get();
+      }
+      catch(ExecutionException ex)
+      {
+        futures.forEach((f) -> f.cancel(true));
+        Throwable t = ex.getCause();
+        if(t instanceof SQLException)
+          throw (SQLException) t;
+        throw new SQLException(t.getMessage(), t);
+      }
+      catch(InterruptedException ex)
+      {
+        futures.forEach((f) -> f.cancel(true));
+        Thread.currentThread().interrupt();
+        throw new SQLException("Schema initialization interrupted.", ex);
+      }
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Carica colonne e chiavi primarie di tutte le tabelle di uno schema del db.
+   */
+  private void loadSchema(DatabaseMetaData dbMeta, String catalog, String schemaName, Set<String> tableNames)
+     throws SQLException
+  {
+    String connURL = dbMeta.getURL();
+    String schemaArg = schemaName.isEmpty() ? null : schemaName;
+
+    // colonne di tutte le tabelle dello schema
+    long start = System.nanoTime();
+    Map<String, List<ColumnInfo>> colsByTable = new HashMap<>(tableNames.size() * 2);
+    try(ResultSet rs = dbMeta.getColumns(catalog, schemaArg, tablePattern, null))
+    {
+      while(rs.next())
+      {
+        // il nome dello schema è un pattern: '_' potrebbe selezionare altri schemi
+        String tableName = rs.getString(3);
+        if(!schemaName.equals(StringOper.okStr(rs.getString(2))) || !tableNames.contains(tableName))
+          continue;
+
+        ColumnInfo ci = new ColumnInfo();
+        ci.name = rs.getString(4);
+        ci.type = rs.getInt(5);
+        ci.typeName = rs.getString(6);
+        ci.nullable = rs.getInt(11) == DatabaseMetaData.columnNullable;
+        ci.position = rs.getInt(17);
+        colsByTable.computeIfAbsent(tableName, (k) -> new ArrayList<>()).add(ci);
+      }
+    }
+    columnsNanos.add(System.nanoTime() - start);
+
+    // chiavi primarie
+    start = System.nanoTime();
+    Map<String, Map<String, Integer>> pks = bulkPrimaryKeys(dbMeta, catalog, schemaArg, schemaName, tableNames);
+    if(pks == null)
+    {
+      pks = new HashMap<>(colsByTable.size() * 2);
+      for(String tableName : colsByTable.keySet())
+      {
+        pks.put(tableName, readPrimaryKeys(dbMeta, catalog, schemaArg, tableName));
+        keysFallback.increment();
+      }
+    }
+    keysNanos.add(System.nanoTime() - start);
+
+    // costruzione degli schemi
+    start = System.nanoTime();
+    SqlDialect dialect = SqlDialect.getDialect(dbMeta);
+    SchemaCache cache = Schema.getSchemaCache();
+    Map<String, Map<String, Integer>> lpcKeys = new HashMap<>(colsByTable.size() * 2);
+
+    for(Map.Entry<String, List<ColumnInfo>> e : colsByTable.entrySet())
+    {
+      String tableName = e.getKey();
+      List<ColumnInfo> lsCols = e.getValue();
+      lsCols.sort((c1, c2) -> Integer.compare(c1.position, c2.position));
+      Map<String, Integer> tablepks = pks.getOrDefault(tableName, new HashMap<>());
+
+      Column[] cols = new Column[lsCols.size() + 1];
+      for(int i = 0; i < lsCols.size(); i++)
+      {
+        ColumnInfo ci = lsCols.get(i);
+        cols[i + 1] = new Column();
+        cols[i + 1].populate(tableName, ci.name, ci.typeName, ci.type, ci.nullable, tablepks.getOrDefault(ci.name, 0));
+      }
+
+      Schema schema = new Schema();
+      schema.setSchemaName(schemaName);
+      schema.setTableName(tableName);
+      schema.setAttributes("*");
+      schema.populate(cols, true, dialect);
+      cache.put(Schema.makeKeyHash(connURL, schemaName, tableName), schema);
+
+      lpcKeys.put(LocalPrimaryCache.makeKey(connURL, schemaName, tableName), tablepks);
+      columns.add(lsCols.size());
+      tables.increment();
+    }
+
+    LocalPrimaryCache.importKeys(lpcKeys);
+    schemas.increment();
+    buildNanos.add(System.nanoTime() - start);
+  }
+
+  /**
+   * Legge le chiavi primarie di tutto lo schema con una sola chiamata.
+   * @return chiavi per tabella oppure null se il driver non lo permette
+   */
+  private Map<String, Map<String, Integer>> bulkPrimaryKeys(DatabaseMetaData dbMeta, String catalog,
+     String schemaArg, String schemaName, Set<String> tableNames)
+  {
+    Map<String, Map<String, Integer>> rv = new HashMap<>(tableNames.size() * 2);
+
+    try(ResultSet rs = dbMeta.getPrimaryKeys(catalog, schemaArg, null))
+    {
+      boolean any = false;
+      while(rs.next())
+      {
+        any = true;
+        String tableName = rs.getString("TABLE_NAME");
+        if(!schemaName.equals(StringOper.okStr(rs.getString("TABLE_SCHEM"))) || !tableNames.contains(tableName))
+          continue;
+
+        rv.computeIfAbsent(tableName, (k) -> new HashMap<>()).put(rs.getString("COLUMN_NAME"), rs.getInt("KEY_SEQ"));
+      }
+
+      // nessuna riga: il driver potrebbe aver ignorato la richiesta senza tabella
+      return any ? rv : null;
+    }
+    catch(SQLException ex)
+    {
+      // il driver richiede il nome della tabella
+      return null;
+    }
+  }
+
+  private Map<String, Integer> readPrimaryKeys(DatabaseMetaData dbMeta, String catalog, String schemaArg, String tableName)
+     throws SQLException
+  {
+    Map<String, Integer> tablepks = new HashMap<>();
+    try(ResultSet rs = dbMeta.getPrimaryKeys(catalog, schemaArg, tableName))
+    {
+      while(rs.next())
+        tablepks.put(rs.getString("COLUMN_NAME"), rs.getInt("KEY_SEQ"));
+    }
+    return tablepks;
+  }
+
+  public String getSchemaPattern()
+  {
+    return schemaPattern;
+  }
+
+  /**
+   * Filtro sugli schemi del db (pattern di DatabaseMetaData.getTables()).
+   * @param schemaPattern pattern oppure null per tutti gli schemi
+   */
+  public void setSchemaPattern(String schemaPattern)
+  {
+    this.schemaPattern = schemaPattern;
+  }
+
+  public String getTablePattern()
+  {
+    return tablePattern;
+  }
+
+  /**
+   * Filtro sulle tabelle (pattern di DatabaseMetaData.getTables()).
+   * @param tablePattern pattern oppure null per tutte le tabelle
+   */
+  public void setTablePattern(String tablePattern)
+  {
+    this.tablePattern = tablePattern;
+  }
+
+  /**
+   * Tipi di tabella da caricare (default Schema.TABLES_FILTER).
+   * @param tableTypes ad esempio Schema.TABLES_VIEWS_FILTER
+   */
+  public void setTableTypes(String[] tableTypes)
+  {
+    this.tableTypes = tableTypes;
+  }
+
+  /**
+   * Attiva il caricamento in parallelo degli schemi del db.
+   * Ogni thread ottiene una connessione dal supplier e la chiude al termine.
+   * @param connSupplier fornitore di connessioni allo stesso db
+   * @param parallelism numero di thread (e di connessioni)
+   */
+  public void setConnectionSupplier(Supplier<Connection> connSupplier, int parallelism)
+  {
+    this.connSupplier = connSupplier;
+    this.parallelism = parallelism;
+  }
+
+  public int getTables()
+  {
+    return tables.intValue();
+  }
+
+  public int getColumns()
+  {
+    return columns.intValue();
+  }
+
+  /**
+   * Numero di schemi del db elaborati.
+   * @return numero di schemi
+   */
+  public int getSchemas()
+  {
+    return schemas.intValue();
+  }
+
+  /**
+   * Tabelle le cui chiavi primarie sono state lette singolarmente.
+   * @return numero di tabelle
+   */
+  public int getKeysFallbackTables()
+  {
+    return keysFallback.intValue();
+  }
+
+  public long getTablesMillis()
+  {
+    return tablesNanos / 1000000L;
+  }
+
+  public long getColumnsMillis()
+  {
+    return columnsNanos.sum() / 1000000L;
+  }
+
+  public long getKeysMillis()
+  {
+    return keysNanos.sum() / 1000000L;
+  }
+
+  public long getBuildMillis()
+  {
+    return buildNanos.sum() / 1000000L;
+  }
+
+  public long getTotalMillis()
+  {
+    return totalNanos / 1000000L;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SchemaInitializer{schemas=%d, tables=%d, columns=%d, keysFallback=%d,"
+       + " tables=%dms, columns=%dms, keys=%dms, build=%dms, total=%dms}",
+       getSchemas(), getTables(), getColumns(), getKeysFallbackTables(),
+       getTablesMillis(), getColumnsMillis(), getKeysMillis(), getBuildMillis(), getTotalMillis());
+  }
+}
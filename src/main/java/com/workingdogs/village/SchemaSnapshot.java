@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.commonlib5.utils.StringOper;
+
+/**
+ * Salvataggio su file delle cache dei metadati per un avvio veloce.
+ * Vengono salvati gli schemi della cache di Schema, la corrispondenza
+ * tabella/schema delle stesse tabelle e le chiavi primarie di LocalPrimaryCache
+ * per un url di connessione;
+ * al successivo avvio load() ripristina le cache senza interrogare i metadati del db.
+ * Il file contiene un'impronta della struttura del db (vedi fingerprint()):
+ * se al caricamento l'impronta non corrisponde il file viene ignorato e
+ * gli schemi vengono riletti dal db al primo utilizzo di ogni tabella,
+ * come senza snapshot; un nuovo save() aggiorna il file.
+ * <pre>
+ * File f = new File(workDir, "village-schema.bin");
+ * SchemaSnapshot.load(conn, f);
+ * ...
+ * SchemaSnapshot.save(conn, f); // ad esempio allo shutdown
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class SchemaSnapshot
+{
+  /** versione del formato del file */
+  public static final int VERSION = 1;
+
+  /** caricamento non eseguito: file assente, illeggibile o di un altro db */
+  public static final int LOAD_NONE = -1;
+  /** caricamento non eseguito: la struttura del db è cambiata */
+  public static final int LOAD_STALE = -2;
+
+  private static final int MAGIC = 0x56534E50; // VSNP
+
+  private SchemaSnapshot()
+  {
+  }
+
+  /**
+   * Salva le cache dei metadati relative alla connessione.
+   * Il file viene scritto in un file temporaneo e poi rinominato,
+   * quindi un errore non lascia un file incompleto.
+   * @param conn connessione
+   * @param file file di destinazione
+   * @return numero di schemi salvati
+   * @throws SQLException
+   * @throws IOException
+   * @throws DataSetException
+   */
+  public static int save(Connection conn, File file)
+     throws SQLException, IOException, DataSetException
+  {
+    String connURL = conn.getMetaData().getURL();
+    String fingerprint = fingerprint(conn);
+    Map<String, Schema> schemas = Schema.getSchemaCache().export(connURL);
+    schemas.values().removeIf((s) -> !s.isSingleTable());
+
+    // la corrispondenza tabella/schema è globale: solo le tabelle degli schemi salvati
+    TreeSet<String> tables = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    for(Schema s : schemas.values())
+      tables.add(s.getTableName());
+    Map<String, String> schemaTable = Schema.exportSchemaTable();
+    schemaTable.keySet().retainAll(tables);
+
+    Map<String, Map<String, Integer>> keys = LocalPrimaryCache.exportKeys(connURL);
+
+    File tmp = new File(file.getPath() + ".tmp");
+    try(DataOutputStream out = new DataOutputStream(
+       new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)))))
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(connURL);
+      out.writeUTF(fingerprint);
+      out.writeLong(System.currentTimeMillis());
+
+      out.writeInt(schemaTable.size());
+      for(Map.Entry<String, String> e : schemaTable.entrySet())
+      {
+        out.writeUTF(e.getKey());
+        writeString(out, e.getValue());
+      }
+
+      out.writeInt(keys.size());
+      for(Map.Entry<String, Map<String, Integer>> e : keys.entrySet())
+      {
+        out.writeUTF(e.getKey());
+        out.writeInt(e.getValue().size());
+        for(Map.Entry<String, Integer> k : e.getValue().entrySet())
+        {
+          out.writeUTF(k.getKey());
+          out.writeInt(k.getValue());
+        }
+      }
+
+      out.writeInt(schemas.size());
+      for(Map.Entry<String, Schema> e : schemas.entrySet())
+      {
+        Schema s = e.getValue();
+        out.writeUTF(e.getKey());
+        writeString(out, s.getSchemaName());
+        writeString(out, s.getTableName());
+        writeString(out, s.attributes());
+        out.writeBoolean(s.isSingleTable());
+
+        out.writeInt(s.numberOfColumns());
+        for(int i = 1; i <= s.numberOfColumns(); i++)
+        {
+          Column c = s.getColumns()[i];
+          out.writeUTF(c.name());
+          writeString(out, c.getTableName());
+          writeString(out, c.typeName());
+          out.writeInt(c.typeEnum());
+          out.writeBoolean(c.nullAllowed());
+          out.writeInt(c.getPrimaryIndex());
+        }
+      }
+    }
+
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    return schemas.size();
+  }
+
+  /**
+   * Carica le cache dei metadati salvate con save().
+   * Le tabelle già presenti nelle cache non vengono modificate.
+   * @param conn connessione
+   * @param file file salvato con save()
+   * @return numero di schemi caricati oppure LOAD_NONE o LOAD_STALE
+   * @throws SQLException
+   */
+  public static int load(Connection conn, File file)
+     throws SQLException
+  {
+    if(!file.canRead())
+      return LOAD_NONE;
+
+    DatabaseMetaData dbMeta = conn.getMetaData();
+    String connURL = dbMeta.getURL();
+    SqlDialect dialect = SqlDialect.getDialect(dbMeta);
+
+    Map<String, String> schemaTable = new HashMap<>();
+    Map<String, Map<String, Integer>> keys = new HashMap<>();
+    Map<String, Schema> schemas = new HashMap<>();
+
+    try(DataInputStream in = new DataInputStream(
+       new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)))))
+    {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION || !connURL.equals(in.readUTF()))
+        return LOAD_NONE;
+
+      // l'impronta viene calcolata solo se il file è utilizzabile
+      if(!fingerprint(conn).equals(in.readUTF()))
+        return LOAD_STALE;
+
+      in.readLong();
+
+      int n = in.readInt();
+      for(int i = 0; i < n; i++)
+      {
+        String table = in.readUTF();
+        schemaTable.put(table, readString(in));
+      }
+
+      n = in.readInt();
+      for(int i = 0; i < n; i++)
+      {
+        String key = in.readUTF();
+        int nk = in.readInt();
+        Map<String, Integer> tablepks = new HashMap<>(nk * 2);
+        for(int k = 0; k < nk; k++)
+        {
+          String col = in.readUTF();
+          tablepks.put(col, in.readInt());
+        }
+        keys.put(key, tablepks);
+      }
+
+      n = in.readInt();
+      for(int i = 0; i < n; i++)
+      {
+        String key = in.readUTF();
+        Schema s = new Schema();
+        s.setSchemaName(readString(in));
+        s.setTableName(readString(in));
+        s.setAttributes(readString(in));
+        boolean single = in.readBoolean();
+
+        Column[] cols = new Column[in.readInt() + 1];
+        for(int c = 1; c < cols.length; c++)
+        {
+          String name = in.readUTF();
+          String tableName = readString(in);
+          String typeName = readString(in);
+          int type = in.readInt();
+          boolean nullable = in.readBoolean();
+          int primaryIndex = in.readInt();
+
+          cols[c] = new Column();
+          cols[c].populate(tableName, name, typeName, type, nullable, primaryIndex);
+        }
+
+        s.populate(cols, single, dialect);
+        schemas.put(key, s);
+      }
+    }
+    catch(IOException ex)
+    {
+      // file troncato o di un formato diverso: come se non ci fosse
+      return LOAD_NONE;
+    }
+
+    Schema.importSchemaTable(schemaTable);
+    LocalPrimaryCache.importKeys(keys);
+
+    SchemaCache cache = Schema.getSchemaCache();
+    int loaded = 0;
+    for(Map.Entry<String, Schema> e : schemas.entrySet())
+    {
+      if(cache.putIfAbsent(e.getKey(), e.getValue()))
+        loaded++;
+    }
+
+    return loaded;
+  }
+
+  /**
+   * Calcola l'impronta della struttura del db.
+   * Comprende prodotto e versione del db, l'elenco delle tabelle e
+   * dove disponibile un riassunto delle colonne (vedi SqlDialect.getDdlFingerprintQuery()).
+   * Sui db senza riassunto delle colonne la modifica delle colonne di una tabella
+   * esistente non cambia l'impronta: dopo una ALTER TABLE va invalidata la tabella
+   * con Schema.getSchemaCache().invalidate() prima di salvare un nuovo snapshot.
+   * @param conn connessione
+   * @return impronta
+   * @throws SQLException
+   */
+  public static String fingerprint(Connection conn)
+     throws SQLException
+  {
+    DatabaseMetaData dbMeta = conn.getMetaData();
+    StringBuilder sb = new StringBuilder(1024);
+    sb.append(dbMeta.getDatabaseProductName()).append(' ').append(dbMeta.getDatabaseProductVersion());
+
+    List<String> tables = new ArrayList<>();
+    try(ResultSet rs = dbMeta.getTables(conn.getCatalog(), null, null, Schema.TABLES_VIEWS_FILTER))
+    {
+      while(rs.next())
+        tables.add(StringOper.okStr(rs.getString("TABLE_SCHEM")) + "." + rs.getString("TABLE_NAME")
+           + ":" + rs.getString("TABLE_TYPE"));
+    }
+
+    Collections.sort(tables);
+    sb.append('|').append(tables.size());
+    for(String t : tables)
+      sb.append('|').append(t);
+
+    String sql = SqlDialect.getDialect(dbMeta).getDdlFingerprintQuery();
+    if(sql != null)
+    {
+      try(Statement st = conn.createStatement();
+         ResultSet rs = st.executeQuery(sql))
+      {
+        if(rs.next())
+        {
+          for(int i = 1; i <= rs.getMetaData().getColumnCount(); i++)
+            sb.append('|').append(rs.getString(i));
+        }
+      }
+    }
+
+    return tables.size() + ":" + digest(sb.toString());
+  }
+
+  private static String digest(String s)
+  {
+    try
+    {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder(hash.length * 2);
+      for(byte b : hash)
+        sb.append(String.format("%02x", b));
+      return sb.toString();
+    }
+    catch(NoSuchAlgorithmException ex)
+    {
+      // SHA-256 è sempre disponibile
+      return Integer.toHexString(s.hashCode());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+     throws IOException
+  {
+    out.writeBoolean(s != null);
+    if(s != null)
+      out.writeUTF(s);
+  }
+
+  private static String readString(DataInputStream in)
+     throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
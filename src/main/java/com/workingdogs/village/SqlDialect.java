@@ -0,0 +1,687 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Differenze di sintassi SQL fra i vari database.
+ * Il tipo di database viene determinato dai metadati della connessione
+ * (vedi le costanti in Enums) e da questo dipendono le forme SQL
+ * utilizzate per le funzionalità non standard (paginazione, ecc.).
+ * Il dialetto viene calcolato una sola volta per url di connessione.
+ *
+ * @author Nicola De Nisco
+ */
+public class SqlDialect
+{
+  /** paginazione non supportata: i record vengono saltati lato client */
+  public static final int PAGING_NONE = 0;
+
+  /** paginazione con LIMIT n OFFSET m */
+  public static final int PAGING_LIMIT_OFFSET = 1;
+
+  /** paginazione standard SQL:2008 con OFFSET m ROWS FETCH NEXT n ROWS ONLY */
+  public static final int PAGING_OFFSET_FETCH = 2;
+
+  /** paginazione Oracle (prima della 12c) con ROWNUM */
+  public static final int PAGING_ROWNUM = 3;
+
+  private final int dbType, majorVersion, minorVersion, paging;
+
+  /** clausole al livello più esterno che impediscono la riscrittura di buildPagedQuery() */
+  private static final String[] UNPAGEABLE_CLAUSES =
+  {
+    "LIMIT", "OFFSET", "FETCH", "TOP", "FOR UPDATE", "FOR READ ONLY", "FOR FETCH ONLY",
+    "WITH UR", "WITH CS", "WITH RS", "WITH RR"
+  };
+
+  /** cache dei dialetti per url di connessione */
+  private static final HashMap<String, SqlDialect> dialectCache = new HashMap<>();
+
+  public SqlDialect(DatabaseMetaData dbMeta)
+     throws SQLException
+  {
+    this(detectType(dbMeta.getDatabaseProductName()),
+       dbMeta.getDatabaseMajorVersion(), dbMeta.getDatabaseMinorVersion());
+  }
+
+  SqlDialect(int dbType, int majorVersion)
+  {
+    this(dbType, majorVersion, 0);
+  }
+
+  SqlDialect(int dbType, int majorVersion, int minorVersion)
+  {
+    this.dbType = dbType;
+    this.majorVersion = majorVersion;
+    this.minorVersion = minorVersion;
+    this.paging = detectPaging(dbType, majorVersion);
+  }
+
+  /**
+   * Ritorna il dialetto per la connessione indicata.
+   * @param con connessione al db
+   * @return dialetto (mai null)
+   * @throws SQLException
+   */
+  public static SqlDialect getDialect(Connection con)
+     throws SQLException
+  {
+    return getDialect(con.getMetaData());
+  }
+
+  /**
+   * Ritorna il dialetto per i metadati di connessione indicati.
+   * @param dbMeta metadati della connessione
+   * @return dialetto (mai null)
+   * @throws SQLException
+   */
+  public static SqlDialect getDialect(DatabaseMetaData dbMeta)
+     throws SQLException
+  {
+    String connURL = dbMeta.getURL();
+
+    synchronized(dialectCache)
+    {
+      SqlDialect rv = dialectCache.get(connURL);
+      if(rv == null)
+      {
+        rv = new SqlDialect(dbMeta);
+        dialectCache.put(connURL, rv);
+      }
+      return rv;
+    }
+  }
+
+  /**
+   * Determina il tipo di database dal nome prodotto.
+   * @param productName nome ritornato da DatabaseMetaData.getDatabaseProductName()
+   * @return una delle costanti di Enums (UNKNOWN se non riconosciuto)
+   */
+  public static int detectType(String productName)
+  {
+    String pn = productName == null ? "" : productName.toLowerCase(Locale.ROOT);
+
+    if(pn.contains("postgresql"))
+      return Enums.POSTGRESQL;
+    if(pn.contains("mysql") || pn.contains("mariadb"))
+      return Enums.MYSQL;
+    if(pn.contains("derby"))
+      return Enums.DERBY;
+    if(pn.equals("h2"))
+      return Enums.H2;
+    if(pn.contains("hsql"))
+      return Enums.HSQLDB;
+    if(pn.startsWith("db2"))
+      return Enums.DB2;
+    if(pn.contains("oracle"))
+      return Enums.ORACLE;
+    if(pn.contains("sql server"))
+      return Enums.SQLSERVER;
+    if(pn.contains("adaptive server") || pn.contains("sybase"))
+      return Enums.SYBASE;
+    if(pn.contains("sqlite"))
+      return Enums.SQLITE;
+
+    return Enums.UNKNOWN;
+  }
+
+  private static int detectPaging(int dbType, int majorVersion)
+  {
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+      case Enums.MYSQL:
+      case Enums.H2:
+      case Enums.HSQLDB:
+      case Enums.SQLITE:
+        return PAGING_LIMIT_OFFSET;
+
+      case Enums.DERBY:
+        return PAGING_OFFSET_FETCH;
+
+      case Enums.ORACLE:
+        return majorVersion >= 12 ? PAGING_OFFSET_FETCH : PAGING_ROWNUM;
+
+      case Enums.SQLSERVER:
+      case Enums.DB2:
+        return majorVersion >= 11 ? PAGING_OFFSET_FETCH : PAGING_NONE;
+
+      default:
+        return PAGING_NONE;
+    }
+  }
+
+  /**
+   * Tipo di database.
+   * @return una delle costanti di Enums
+   */
+  public int getDbType()
+  {
+    return dbType;
+  }
+
+  public int getMajorVersion()
+  {
+    return majorVersion;
+  }
+
+  public int getMinorVersion()
+  {
+    return minorVersion;
+  }
+
+  /**
+   * Tipo di paginazione supportata.
+   * @return una delle costanti PAGING_...
+   */
+  public int getPaging()
+  {
+    return paging;
+  }
+
+  public boolean supportsPaging()
+  {
+    return paging != PAGING_NONE;
+  }
+
+  /**
+   * Vero se il database accetta INSERT con più righe nella clausola VALUES.
+   * @return vero se supportato
+   */
+  public boolean supportsMultiRowInsert()
+  {
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+      case Enums.MYSQL:
+      case Enums.DERBY:
+      case Enums.H2:
+      case Enums.HSQLDB:
+      case Enums.DB2:
+      case Enums.SQLITE:
+        return true;
+
+      case Enums.SQLSERVER:
+        // VALUES con più righe dalla 2008
+        return majorVersion >= 10;
+
+      case Enums.ORACLE:
+        return majorVersion >= 23;
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Vero se il database ha una forma di inserimento o aggiornamento in un solo statement
+   * (MERGE, INSERT ... ON CONFLICT o INSERT ... ON DUPLICATE KEY UPDATE).
+   * @return vero se supportato
+   */
+  public boolean supportsUpsert()
+  {
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+        // ON CONFLICT dalla 9.5
+        return majorVersion > 9 || (majorVersion == 9 && minorVersion >= 5);
+
+      case Enums.DERBY:
+        // MERGE dalla 10.11
+        return majorVersion > 10 || (majorVersion == 10 && minorVersion >= 11);
+
+      case Enums.SQLITE:
+        // ON CONFLICT ... DO UPDATE dalla 3.24
+        return majorVersion > 3 || (majorVersion == 3 && minorVersion >= 24);
+
+      case Enums.MYSQL:
+      case Enums.H2:
+      case Enums.HSQLDB:
+      case Enums.DB2:
+      case Enums.ORACLE:
+        return true;
+
+      case Enums.SQLSERVER:
+        // MERGE dalla 2008
+        return majorVersion >= 10;
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Costruisce lo statement di inserimento o aggiornamento in base alla chiave.
+   * Le colonne non di chiave vengono aggiornate se la riga esiste;
+   * altrimenti viene inserita una riga con tutte le colonne.
+   * Secondo il database i parametri possono ripetersi (ad esempio nella MERGE di Derby
+   * la chiave compare nella ON e nella INSERT): in bind viene riportato, per ogni
+   * parametro dello statement, l'indice (0 based) della colonna in columns.
+   * @param table nome completo della tabella
+   * @param columns colonne da salvare (comprese quelle della chiave)
+   * @param keys colonne della chiave (tutte presenti in columns)
+   * @param bind piano di assegnazione dei parametri (in uscita)
+   * @return lo statement
+   * @throws DataSetException se il database non lo supporta
+   */
+  public String buildUpsert(String table, List<String> columns, List<String> keys, List<Integer> bind)
+     throws DataSetException
+  {
+    if(!supportsUpsert())
+      throw new DataSetException("Upsert is not supported by this database.");
+
+    ArrayList<String> others = new ArrayList<>();
+    for(String c : columns)
+    {
+      if(!containsIgnoreCase(keys, c))
+        others.add(c);
+    }
+
+    String colList = String.join(", ", columns);
+    String params = String.join(", ", Collections.nCopies(columns.size(), "?"));
+    StringBuilder sb = new StringBuilder(256);
+
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+      case Enums.SQLITE:
+        sb.append("INSERT INTO ").append(table).append(" ( ").append(colList)
+           .append(" ) VALUES ( ").append(params).append(" ) ON CONFLICT ( ")
+           .append(String.join(", ", keys)).append(" ) ");
+        if(others.isEmpty())
+          sb.append("DO NOTHING");
+        else
+          sb.append("DO UPDATE SET ").append(assignments(others, "EXCLUDED.", ""));
+        addRange(bind, columns.size());
+        break;
+
+      case Enums.MYSQL:
+        sb.append("INSERT INTO ").append(table).append(" ( ").append(colList)
+           .append(" ) VALUES ( ").append(params).append(" ) ON DUPLICATE KEY UPDATE ");
+        if(others.isEmpty())
+          sb.append(keys.get(0)).append(" = ").append(keys.get(0));
+        else
+          sb.append(assignments(others, "VALUES(", ")"));
+        addRange(bind, columns.size());
+        break;
+
+      case Enums.H2:
+        sb.append("MERGE INTO ").append(table).append(" ( ").append(colList)
+           .append(" ) KEY ( ").append(String.join(", ", keys)).append(" ) VALUES ( ").append(params).append(" )");
+        addRange(bind, columns.size());
+        break;
+
+      case Enums.DERBY:
+      case Enums.DB2:
+      case Enums.ORACLE:
+      {
+        // sorgente fittizia di una riga: i valori sono parametri nelle varie clausole
+        String dummy = dbType == Enums.ORACLE ? "DUAL" : "SYSIBM.SYSDUMMY1";
+        sb.append("MERGE INTO ").append(table).append(" T USING ").append(dummy).append(" ON ( ");
+        for(int i = 0; i < keys.size(); i++)
+        {
+          if(i > 0)
+            sb.append(" AND ");
+          sb.append("T.").append(keys.get(i)).append(" = ?");
+          bind.add(indexOfIgnoreCase(columns, keys.get(i)));
+        }
+        sb.append(" )");
+        if(!others.isEmpty())
+        {
+          sb.append(" WHEN MATCHED THEN UPDATE SET ");
+          for(int i = 0; i < others.size(); i++)
+          {
+            if(i > 0)
+              sb.append(", ");
+            sb.append(others.get(i)).append(" = ?");
+            bind.add(indexOfIgnoreCase(columns, others.get(i)));
+          }
+        }
+        sb.append(" WHEN NOT MATCHED THEN INSERT ( ").append(colList).append(" ) VALUES ( ").append(params).append(" )");
+        addRange(bind, columns.size());
+        break;
+      }
+
+      default:
+        // MERGE standard con sorgente VALUES (SQL Server, HSQLDB)
+        sb.append("MERGE INTO ").append(table).append(" T USING ( VALUES ( ").append(params)
+           .append(" ) ) AS S ( ").append(colList).append(" ) ON ( ");
+        for(int i = 0; i < keys.size(); i++)
+        {
+          if(i > 0)
+            sb.append(" AND ");
+          sb.append("T.").append(keys.get(i)).append(" = S.").append(keys.get(i));
+        }
+        sb.append(" )");
+        if(!others.isEmpty())
+          sb.append(" WHEN MATCHED THEN UPDATE SET ").append(assignments(others, "S.", ""));
+        sb.append(" WHEN NOT MATCHED THEN INSERT ( ").append(colList).append(" ) VALUES ( ");
+        for(int i = 0; i < columns.size(); i++)
+        {
+          if(i > 0)
+            sb.append(", ");
+          sb.append("S.").append(columns.get(i));
+        }
+        sb.append(" )");
+        if(dbType == Enums.SQLSERVER)
+          sb.append(";");
+        addRange(bind, columns.size());
+        break;
+    }
+
+    return sb.toString();
+  }
+
+  private static String assignments(List<String> cols, String prefix, String suffix)
+  {
+    StringBuilder sb = new StringBuilder();
+    for(String c : cols)
+    {
+      if(sb.length() > 0)
+        sb.append(", ");
+      sb.append(c).append(" = ").append(prefix).append(c).append(suffix);
+    }
+    return sb.toString();
+  }
+
+  private static void addRange(List<Integer> bind, int count)
+  {
+    for(int i = 0; i < count; i++)
+      bind.add(i);
+  }
+
+  private static boolean containsIgnoreCase(List<String> lista, String s)
+  {
+    return indexOfIgnoreCase(lista, s) != -1;
+  }
+
+  private static int indexOfIgnoreCase(List<String> lista, String s)
+  {
+    for(int i = 0; i < lista.size(); i++)
+    {
+      if(lista.get(i).equalsIgnoreCase(s))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Vero se il driver ritorna le chiavi generate di tutte le righe di un executeBatch()
+   * (vedi TableSaveEngine). Per gli altri database gli inserimenti con chiavi generate
+   * vengono eseguiti una riga per volta.
+   * @return vero se supportato
+   */
+  public boolean supportsBatchGeneratedKeys()
+  {
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+      case Enums.MYSQL:
+      case Enums.H2:
+      case Enums.HSQLDB:
+        return true;
+
+      default:
+        // Derby e SQLite ritornano solo l'ultima chiave, SQL Server nessuna
+        return false;
+    }
+  }
+
+  /**
+   * Vero se il database accetta condizioni IN su più colonne: (a, b) IN ((?, ?), ...).
+   * @return vero se supportato
+   */
+  public boolean supportsRowValueIn()
+  {
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+      case Enums.MYSQL:
+      case Enums.ORACLE:
+      case Enums.H2:
+      case Enums.HSQLDB:
+      case Enums.DB2:
+      case Enums.SQLITE:
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Numero massimo di elementi in una lista IN (...).
+   * @return numero di elementi
+   */
+  public int getMaxInListSize()
+  {
+    switch(dbType)
+    {
+      case Enums.ORACLE:
+        return 1000;
+      default:
+        return getMaxBindParameters();
+    }
+  }
+
+  /**
+   * Numero massimo di parametri in uno statement.
+   * I valori sono prudenziali rispetto ai limiti dei driver.
+   * @return numero di parametri
+   */
+  public int getMaxBindParameters()
+  {
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+        return 32767;
+      case Enums.MYSQL:
+        return 65535;
+      case Enums.SQLSERVER:
+      case Enums.SYBASE:
+        return 2000;
+      case Enums.SQLITE:
+        return 999;
+      case Enums.ORACLE:
+        return 65535;
+      case Enums.DERBY:
+        // statement troppo lunghi superano i limiti della classe generata da Derby
+        return 1000;
+      default:
+        return 1000;
+    }
+  }
+
+  /**
+   * Query economica che riassume la struttura delle colonne di tutte le tabelle
+   * (vedi SchemaSnapshot): ritorna una sola riga che cambia se vengono aggiunte,
+   * rimosse o modificate delle colonne.
+   * @return la query oppure null se non disponibile per questo database
+   */
+  public String getDdlFingerprintQuery()
+  {
+    switch(dbType)
+    {
+      case Enums.POSTGRESQL:
+        return "SELECT COUNT(*), SUM(('x' || SUBSTR(MD5(table_schema || '.' || table_name || '.' || column_name"
+           + " || ':' || data_type || ':' || is_nullable || ':' || ordinal_position), 1, 8))::BIT(32)::INT::BIGINT)"
+           + " FROM information_schema.columns WHERE table_schema NOT IN ('pg_catalog', 'information_schema')";
+      case Enums.MYSQL:
+        return "SELECT COUNT(*), SUM(CRC32(CONCAT_WS(':', table_name, column_name, column_type, is_nullable, ordinal_position)))"
+           + " FROM information_schema.columns WHERE table_schema = DATABASE()";
+      case Enums.H2:
+      case Enums.HSQLDB:
+        return "SELECT COUNT(*), SUM(ORDINAL_POSITION * LENGTH(COLUMN_NAME || DATA_TYPE || IS_NULLABLE))"
+           + " FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA <> 'INFORMATION_SCHEMA'";
+      case Enums.DERBY:
+        return "SELECT COUNT(*), SUM(CAST(COLUMNNUMBER AS BIGINT) * LENGTH(COLUMNNAME)) FROM SYS.SYSCOLUMNS";
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Riscrive una SELECT per ritornare solo max record a partire da start.
+   * @param sql la query originale
+   * @param start primo record da ritornare (0 based)
+   * @param max numero massimo di record (ALL_RECORDS per tutti)
+   * @return la query paginata oppure null se la paginazione non è possibile
+   */
+  public String buildPagedQuery(String sql, int start, int max)
+  {
+    sql = sql.trim();
+    if(sql.endsWith(";"))
+      sql = sql.substring(0, sql.length() - 1).trim();
+
+    if(start < 0)
+      start = 0;
+
+    if(start == 0 && max <= 0)
+      return sql;
+
+    // una query già limitata o con clausole finali (lock, isolamento)
+    // non può essere riscritta: i record verranno saltati lato client
+    for(String kw : UNPAGEABLE_CLAUSES)
+    {
+      if(findOuterKeyword(sql, kw) != -1)
+        return null;
+    }
+
+    StringBuilder sb = new StringBuilder(sql.length() + 64);
+
+    switch(paging)
+    {
+      case PAGING_LIMIT_OFFSET:
+        sb.append(sql);
+        if(max > 0)
+          sb.append(" LIMIT ").append(max);
+        else if(dbType == Enums.MYSQL)
+          sb.append(" LIMIT 18446744073709551615");
+        else if(dbType == Enums.SQLITE)
+          sb.append(" LIMIT -1");
+        if(start > 0)
+          sb.append(" OFFSET ").append(start);
+        break;
+
+      case PAGING_OFFSET_FETCH:
+        sb.append(sql);
+        // SQL Server accetta OFFSET solo dopo un ORDER BY
+        if(dbType == Enums.SQLSERVER && findOuterKeyword(sql, "ORDER BY") == -1)
+          sb.append(" ORDER BY (SELECT NULL)");
+        sb.append(" OFFSET ").append(start).append(" ROWS");
+        if(max > 0)
+          sb.append(" FETCH NEXT ").append(max).append(" ROWS ONLY");
+        break;
+
+      case PAGING_ROWNUM:
+        // la colonna rn_ viene accodata alle altre e quindi ignorata da Record
+        sb.append("SELECT * FROM (SELECT q_.*, ROWNUM rn_ FROM (").append(sql).append(") q_");
+        if(max > 0)
+          sb.append(" WHERE ROWNUM <= ").append(start + max);
+        sb.append(") WHERE rn_ > ").append(start);
+        break;
+
+      default:
+        return null;
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Cerca una parola chiave al livello più esterno della query.
+   * Vengono ignorate le stringhe, gli identificatori quotati e le sottoquery fra parentesi.
+   * @param sql la query
+   * @param keyword parola chiave (eventualmente composta da più parole separate da uno spazio)
+   * @return posizione della parola chiave oppure -1 se non presente
+   */
+  public static int findOuterKeyword(String sql, String keyword)
+  {
+    String[] words = keyword.split(" ");
+    int depth = 0, len = sql.length();
+
+    for(int i = 0; i < len; i++)
+    {
+      char c = sql.charAt(i);
+
+      if(c == '\'' || c == '"')
+      {
+        int end = sql.indexOf(c, i + 1);
+        if(end == -1)
+          return -1;
+        i = end;
+        continue;
+      }
+
+      if(c == '(')
+      {
+        depth++;
+        continue;
+      }
+
+      if(c == ')')
+      {
+        depth--;
+        continue;
+      }
+
+      if(depth == 0 && (i == 0 || !isIdentifierChar(sql.charAt(i - 1)))
+         && matchWords(sql, i, words))
+        return i;
+    }
+
+    return -1;
+  }
+
+  private static boolean matchWords(String sql, int pos, String[] words)
+  {
+    for(String w : words)
+    {
+      if(!sql.regionMatches(true, pos, w, 0, w.length()))
+        return false;
+
+      pos += w.length();
+      if(pos < sql.length() && isIdentifierChar(sql.charAt(pos)))
+        return false;
+
+      while(pos < sql.length() && Character.isWhitespace(sql.charAt(pos)))
+        pos++;
+    }
+
+    return true;
+  }
+
+  private static boolean isIdentifierChar(char c)
+  {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SqlDialect{" + "dbType=" + dbType + ", majorVersion=" + majorVersion + ", minorVersion=" + minorVersion + ", paging=" + paging + '}';
+  }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Statement SQL di salvataggio o refresh di un record con il suo piano di assegnazione dei parametri.
+ * Il testo dipende solo dal tipo di statement, dalla KeyDef e dall'insieme
+ * delle colonne modificate; viene quindi costruito una volta sola e conservato
+ * nello Schema (vedi Schema.getSqlTemplate()).
+ *
+ * @author Nicola De Nisco
+ */
+public final class SqlTemplate
+{
+  /** tipo per lo statement di refresh (SELECT per chiave) */
+  public static final int REFRESH = 0;
+
+  private final int type;
+  private final String sql;
+  private final int[] bindColumns;
+  private final String[] keyNames;
+
+  /** INSERT con più righe per numero di righe (vedi getMultiRowInsert()) */
+  private final ConcurrentHashMap<Integer, String> multiRowInserts = new ConcurrentHashMap<>();
+
+  /** DELETE o SELECT per più chiavi per numero di righe (vedi getBulkDelete() e getBulkRefresh()) */
+  private final ConcurrentHashMap<Integer, String> bulkStatements = new ConcurrentHashMap<>();
+
+  private SqlTemplate(int type, String sql, int[] bindColumns)
+  {
+    this(type, sql, bindColumns, null);
+  }
+
+  private SqlTemplate(int type, String sql, int[] bindColumns, String[] keyNames)
+  {
+    this.type = type;
+    this.sql = sql.intern();
+    this.bindColumns = bindColumns;
+    this.keyNames = keyNames;
+  }
+
+  /**
+   * Tipo dello statement.
+   * @return Enums.INSERT, Enums.UPDATE, Enums.UPSERT, Enums.DELETE o REFRESH
+   */
+  public int getType()
+  {
+    return type;
+  }
+
+  public String getSql()
+  {
+    return sql;
+  }
+
+  /**
+   * Colonne (1 based) da assegnare ai parametri dello statement, nell'ordine dei parametri.
+   * @return array delle posizioni delle colonne (non modificare)
+   */
+  public int[] getBindColumns()
+  {
+    return bindColumns;
+  }
+
+  /**
+   * Ritorna la INSERT con più righe nella clausola VALUES.
+   * @param rows numero di righe
+   * @return statement con rows volte i parametri di getBindColumns()
+   * @throws DataSetException se lo statement non è una INSERT
+   */
+  public String getMultiRowInsert(int rows)
+     throws DataSetException
+  {
+    if(type != Enums.INSERT)
+      throw new DataSetException("Multi row statement is allowed only for INSERT.");
+
+    if(rows == 1)
+      return sql;
+
+    String rv = multiRowInserts.get(rows);
+    if(rv == null)
+    {
+      int pos = sql.lastIndexOf(" VALUES ");
+      String row = sql.substring(pos + 8);
+      StringBuilder sb = new StringBuilder(pos + 8 + (row.length() + 2) * rows);
+      sb.append(sql, 0, pos + 8);
+      for(int i = 0; i < rows; i++)
+      {
+        if(i > 0)
+          sb.append(", ");
+        sb.append(row);
+      }
+
+      // solo pochi numeri di righe diversi: l'ultimo blocco di ogni salvataggio
+      if(multiRowInserts.size() >= 16)
+        multiRowInserts.clear();
+
+      multiRowInserts.put(rows, rv = sb.toString());
+    }
+
+    return rv;
+  }
+
+  /**
+   * Ritorna la DELETE per più record con un'unica condizione sulle chiavi:
+   * key IN (?, ?, ...) per chiave singola; per chiave composta
+   * (k1, k2) IN ((?, ?), ...) se rowValueIn è vero, altrimenti
+   * (k1 = ? AND k2 = ?) OR (...).
+   * I parametri sono getBindColumns() ripetuti per ogni record.
+   * @param rows numero di record
+   * @param rowValueIn vero se il database accetta IN su più colonne (vedi SqlDialect.supportsRowValueIn())
+   * @return statement
+   * @throws DataSetException se lo statement non è una DELETE
+   */
+  public String getBulkDelete(int rows, boolean rowValueIn)
+     throws DataSetException
+  {
+    if(type != Enums.DELETE)
+      throw new DataSetException("Bulk statement is allowed only for DELETE.");
+
+    return getBulk(rows, rowValueIn);
+  }
+
+  /**
+   * Ritorna la SELECT di refresh per più record con un'unica condizione sulle chiavi
+   * (vedi getBulkDelete() per la forma della condizione).
+   * Le colonne sono nell'ordine dello schema come nello statement di refresh singolo.
+   * @param rows numero di record
+   * @param rowValueIn vero se il database accetta IN su più colonne (vedi SqlDialect.supportsRowValueIn())
+   * @return statement
+   * @throws DataSetException se lo statement non è un refresh
+   */
+  public String getBulkRefresh(int rows, boolean rowValueIn)
+     throws DataSetException
+  {
+    if(type != REFRESH)
+      throw new DataSetException("Bulk statement is allowed only for REFRESH.");
+
+    return getBulk(rows, rowValueIn);
+  }
+
+  private String getBulk(int rows, boolean rowValueIn)
+  {
+    if(rows == 1)
+      return sql;
+
+    Integer key = rowValueIn ? -rows : rows;
+    String rv = bulkStatements.get(key);
+    if(rv == null)
+    {
+      int pos = sql.lastIndexOf(" WHERE ");
+      StringBuilder sb = new StringBuilder(sql.length() + rows * 8 * keyNames.length);
+      sb.append(sql, 0, pos + 7);
+      appendKeyIn(sb, keyNames, rows, rowValueIn);
+
+      if(bulkStatements.size() >= 16)
+        bulkStatements.clear();
+
+      bulkStatements.put(key, rv = sb.toString());
+    }
+
+    return rv;
+  }
+
+  /**
+   * Condizione su più valori di chiave.
+   * @param sb destinazione
+   * @param keyNames colonne della chiave
+   * @param rows numero di valori
+   * @param rowValueIn usa IN su più colonne per le chiavi composte
+   */
+  static void appendKeyIn(StringBuilder sb, String[] keyNames, int rows, boolean rowValueIn)
+  {
+    if(keyNames.length == 1 || rowValueIn)
+    {
+      String row;
+      if(keyNames.length == 1)
+      {
+        sb.append(keyNames[0]);
+        row = "?";
+      }
+      else
+      {
+        sb.append("(").append(String.join(", ", keyNames)).append(")");
+        row = "(" + String.join(", ", Collections.nCopies(keyNames.length, "?")) + ")";
+      }
+
+      sb.append(" IN (");
+      for(int i = 0; i < rows; i++)
+      {
+        if(i > 0)
+          sb.append(", ");
+        sb.append(row);
+      }
+      sb.append(")");
+    }
+    else
+    {
+      String row = "(" + String.join(" = ? AND ", keyNames) + " = ?)";
+      for(int i = 0; i < rows; i++)
+      {
+        if(i > 0)
+          sb.append(" OR ");
+        sb.append(row);
+      }
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return sql;
+  }
+
+  /**
+   * Costruisce lo statement.
+   * @param schema schema della tabella
+   * @param type Enums.INSERT, Enums.UPDATE, Enums.UPSERT, Enums.DELETE o REFRESH
+   * @param kd chiave per UPDATE, UPSERT, DELETE e REFRESH
+   * @param dirty colonne modificate (1 based)
+   * @return lo statement
+   * @throws DataSetException
+   */
+  static SqlTemplate build(Schema schema, int type, KeyDef kd, BitSet dirty)
+     throws DataSetException
+  {
+    switch(type)
+    {
+      case Enums.INSERT:
+        return buildInsert(schema, dirty);
+      case Enums.UPDATE:
+        return buildUpdate(schema, kd, dirty);
+      case Enums.UPSERT:
+        return buildUpsert(schema, kd, dirty);
+      case Enums.DELETE:
+        return buildDelete(schema, kd);
+      case REFRESH:
+        return buildRefresh(schema, kd, dirty);
+      default:
+        throw new DataSetException("Not able to return save string: " + type);
+    }
+  }
+
+  private static SqlTemplate buildInsert(Schema schema, BitSet dirty)
+     throws DataSetException
+  {
+    StringBuilder iss1 = new StringBuilder(256);
+    StringBuilder iss2 = new StringBuilder(256);
+    ArrayList<Integer> bind = new ArrayList<>();
+
+    for(int i = dirty.nextSetBit(1); i >= 0; i = dirty.nextSetBit(i + 1))
+    {
+      Column col = schema.column(i);
+      if(col.readOnly())
+        continue;
+
+      if(!bind.isEmpty())
+      {
+        iss1.append(", ");
+        iss2.append(", ");
+      }
+
+      iss1.append(col.name());
+      iss2.append("?");
+      bind.add(i);
+    }
+
+    return new SqlTemplate(Enums.INSERT,
+       "INSERT INTO " + schema.getFullTableName() + " ( " + iss1 + " ) VALUES ( " + iss2 + " )", toArray(bind));
+  }
+
+  private static SqlTemplate buildUpdate(Schema schema, KeyDef kd, BitSet dirty)
+     throws DataSetException
+  {
+    if((kd == null) || (kd.size() == 0))
+    {
+      throw new DataSetException(
+         "You must specify KeyDef attributes for this TableDataSet in order to create a Record for update.");
+    }
+    else if(dirty.isEmpty())
+    {
+      throw new DataSetException("You must Record.setValue() on a column before doing an update.");
+    }
+
+    StringBuilder iss1 = new StringBuilder(256);
+    ArrayList<Integer> bind = new ArrayList<>();
+
+    for(int i = dirty.nextSetBit(1); i >= 0; i = dirty.nextSetBit(i + 1))
+    {
+      Column col = schema.column(i);
+      if(col.readOnly())
+        continue;
+
+      if(!bind.isEmpty())
+        iss1.append(", ");
+
+      iss1.append(col.name()).append(" = ?");
+      bind.add(i);
+    }
+
+    for(int i = 1; i <= kd.size(); i++)
+    {
+      String attrib = kd.getAttrib(i);
+
+      if(dirty.get(schema.index(attrib)))
+      {
+        throw new DataSetException("The value for column '" + attrib + "' is a key value and cannot be updated.");
+      }
+    }
+
+    return new SqlTemplate(Enums.UPDATE,
+       "UPDATE " + schema.getFullTableName() + " SET " + iss1 + " WHERE " + keyWhere(schema, kd, bind),
+       toArray(bind));
+  }
+
+  private static SqlTemplate buildUpsert(Schema schema, KeyDef kd, BitSet dirty)
+     throws DataSetException
+  {
+    if((kd == null) || (kd.size() == 0))
+    {
+      throw new DataSetException(
+         "You must specify KeyDef attributes for this TableDataSet in order to upsert a Record.");
+    }
+
+    SqlDialect dialect = schema.getDialect();
+    if(dialect == null)
+      throw new DataSetException("Unknown database for table " + schema.getFullTableName() + ".");
+
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<Integer> positions = new ArrayList<>();
+
+    for(int i = dirty.nextSetBit(1); i >= 0; i = dirty.nextSetBit(i + 1))
+    {
+      Column col = schema.column(i);
+      if(col.readOnly())
+        continue;
+
+      names.add(col.name());
+      positions.add(i);
+    }
+
+    for(int i = 1; i <= kd.size(); i++)
+    {
+      String attrib = kd.getAttrib(i);
+
+      if(!dirty.get(schema.index(attrib)))
+      {
+        throw new DataSetException("The value for column '" + attrib + "' is a key value and must be set for an upsert.");
+      }
+    }
+
+    ArrayList<Integer> plan = new ArrayList<>();
+    String sql = dialect.buildUpsert(schema.getFullTableName(), names, kd.getAsList(), plan);
+
+    int[] bind = new int[plan.size()];
+    for(int i = 0; i < bind.length; i++)
+      bind[i] = positions.get(plan.get(i));
+
+    return new SqlTemplate(Enums.UPSERT, sql, bind);
+  }
+
+  private static SqlTemplate buildDelete(Schema schema, KeyDef kd)
+     throws DataSetException
+  {
+    if((kd == null) || (kd.size() == 0))
+    {
+      throw new DataSetException("You must specify KeyDef attributes for this TableDataSet in order to delete a Record.");
+    }
+
+    ArrayList<Integer> bind = new ArrayList<>();
+    return new SqlTemplate(Enums.DELETE,
+       "DELETE FROM " + schema.getFullTableName() + " WHERE " + keyWhere(schema, kd, bind), toArray(bind),
+       kd.getAsList().toArray(new String[kd.size()]));
+  }
+
+  private static SqlTemplate buildRefresh(Schema schema, KeyDef kd, BitSet dirty)
+     throws DataSetException
+  {
+    if((kd == null) || (kd.size() == 0))
+    {
+      throw new DataSetException(
+         "You can only perform a getRefreshQueryString on a TableDataSet that was created with a KeyDef.");
+    }
+
+    for(int i = 1; i <= kd.size(); i++)
+    {
+      if(dirty.get(schema.index(kd.getAttrib(i))))
+      {
+        throw new DataSetException("You cannot do a refresh from the database if the value "
+           + "for a KeyDef column has been changed with a Record.setValue().");
+      }
+    }
+
+    StringBuilder iss1 = new StringBuilder(256);
+    for(int i = 1; i <= schema.numberOfColumns(); i++)
+    {
+      if(i > 1)
+        iss1.append(", ");
+      iss1.append(schema.column(i).name());
+    }
+
+    ArrayList<Integer> bind = new ArrayList<>();
+    return new SqlTemplate(REFRESH,
+       "SELECT " + iss1 + " FROM " + schema.getFullTableName() + " WHERE " + keyWhere(schema, kd, bind),
+       toArray(bind), kd.getAsList().toArray(new String[kd.size()]));
+  }
+
+  private static String keyWhere(Schema schema, KeyDef kd, List<Integer> bind)
+     throws DataSetException
+  {
+    StringBuilder iss2 = new StringBuilder(256);
+
+    for(int i = 1; i <= kd.size(); i++)
+    {
+      String attrib = kd.getAttrib(i);
+
+      if(i > 1)
+        iss2.append(" AND ");
+
+      iss2.append(attrib).append(" = ?");
+      bind.add(schema.index(attrib));
+    }
+
+    return iss2.toString();
+  }
+
+  /**
+   * Verifica se una delle colonne della chiave è fra quelle modificate.
+   */
+  static boolean isKeyDirty(Schema schema, KeyDef kd, BitSet dirty)
+     throws DataSetException
+  {
+    if(kd == null || dirty.isEmpty())
+      return false;
+
+    for(int i = 1; i <= kd.size(); i++)
+    {
+      if(dirty.get(schema.index(kd.getAttrib(i))))
+        return true;
+    }
+
+    return false;
+  }
+
+  private static int[] toArray(List<Integer> lsInt)
+  {
+    int[] rv = new int[lsInt.size()];
+    for(int i = 0; i < rv.length; i++)
+      rv[i] = lsInt.get(i);
+    return rv;
+  }
+
+  /**
+   * Chiave della cache: tipo, colonne della chiave e colonne modificate.
+   */
+  static final class Key
+  {
+    private final int type;
+    private final List<String> keyColumns;
+    private final BitSet dirty;
+    private final int hash;
+
+    Key(int type, KeyDef kd, BitSet dirty)
+    {
+      this.type = type;
+      this.keyColumns = type == Enums.INSERT || kd == null
+                           ? Collections.emptyList() : new ArrayList<>(kd.getAsList());
+      this.dirty = dirty;
+      this.hash = Objects.hash(type, keyColumns, dirty);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if(this == obj)
+        return true;
+      if(!(obj instanceof Key))
+        return false;
+
+      final Key other = (Key) obj;
+      return type == other.type && hash == other.hash
+         && dirty.equals(other.dirty) && keyColumns.equals(other.keyColumns);
+    }
+  }
+}
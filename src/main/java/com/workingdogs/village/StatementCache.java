@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache LRU dei PreparedStatement di una connessione.
+ * Usata dai salvataggi e dal refresh dei record per non preparare
+ * lo stesso statement per ogni riga.
+ * La cache si attiva per una connessione con acquire() (o DataSet.setStatementCacheSize())
+ * e si chiude con release() quando tutti quelli che l'hanno richiesta l'hanno rilasciata.
+ * Gli statement si ottengono con prepare() in un blocco try-with-resources:
+ * alla chiusura del Lease lo statement torna nella cache invece di essere chiuso.
+ * Uno statement in uso non è disponibile per altri finché non viene restituito,
+ * quindi la cache può essere usata da più thread sulla stessa connessione.
+ * Senza cache attiva prepare() prepara e chiude lo statement come sempre.
+ *
+ * @author Nicola De Nisco
+ */
+public class StatementCache
+{
+  /** cache attive per connessione */
+  private static final Map<Connection, StatementCache> registry = new IdentityHashMap<>();
+
+  private final Connection conn;
+  private final int maxSize;
+  private final LinkedHashMap<String, PreparedStatement> statements;
+  private int refCount = 0;
+  private boolean closed = false;
+  private long hits, misses, evictions;
+
+  private StatementCache(Connection conn, int maxSize)
+  {
+    this.conn = conn;
+    this.maxSize = Math.max(1, maxSize);
+    this.statements = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Attiva la cache per la connessione o ne incrementa l'uso se già attiva.
+   * Ogni acquire() deve essere seguito da un release().
+   * @param conn connessione
+   * @param maxSize numero massimo di statement conservati (usato solo alla creazione)
+   * @return la cache della connessione
+   */
+  public static StatementCache acquire(Connection conn, int maxSize)
+  {
+    synchronized(registry)
+    {
+      StatementCache sc = registry.get(conn);
+      if(sc == null)
+        registry.put(conn, sc = new StatementCache(conn, maxSize));
+
+      sc.refCount++;
+      return sc;
+    }
+  }
+
+  /**
+   * Rilascia la cache della connessione.
+   * All'ultimo rilascio gli statement conservati vengono chiusi.
+   * @param conn connessione
+   */
+  public static void release(Connection conn)
+  {
+    StatementCache sc;
+
+    synchronized(registry)
+    {
+      sc = registry.get(conn);
+      if(sc == null || --sc.refCount > 0)
+        return;
+
+      registry.remove(conn);
+    }
+
+    sc.close();
+  }
+
+  /**
+   * Chiude e rimuove la cache della connessione indipendentemente dagli acquire().
+   * Da chiamare prima di chiudere o restituire al pool la connessione.
+   * @param conn connessione
+   */
+  public static void releaseAll(Connection conn)
+  {
+    StatementCache sc;
+
+    synchronized(registry)
+    {
+      sc = registry.remove(conn);
+    }
+
+    if(sc != null)
+      sc.close();
+  }
+
+  /**
+   * Ritorna la cache attiva per la connessione.
+   * @param conn connessione
+   * @return la cache oppure null se non attiva
+   */
+  public static StatementCache get(Connection conn)
+  {
+    synchronized(registry)
+    {
+      return registry.get(conn);
+    }
+  }
+
+  /**
+   * Prepara uno statement usando la cache della connessione se attiva.
+   * @param conn connessione
+   * @param sql statement
+   * @return lease da chiudere al termine dell'uso
+   * @throws SQLException
+   */
+  public static Lease prepare(Connection conn, String sql)
+     throws SQLException
+  {
+    StatementCache sc = get(conn);
+    return sc != null ? sc.prepare(sql, null) : new Lease(null, null, conn.prepareStatement(sql));
+  }
+
+  /**
+   * Prepara uno statement che ritorna le chiavi generate usando la cache della connessione se attiva.
+   * @param conn connessione
+   * @param sql statement
+   * @param keyColumns colonne delle chiavi generate (null per Statement.RETURN_GENERATED_KEYS)
+   * @return lease da chiudere al termine dell'uso
+   * @throws SQLException
+   */
+  public static Lease prepareWithKeys(Connection conn, String sql, String[] keyColumns)
+     throws SQLException
+  {
+    StatementCache sc = get(conn);
+    if(sc != null)
+      return sc.prepare(sql, keyColumns == null ? new String[0] : keyColumns);
+
+    return new Lease(null, null, keyColumns == null
+                                    ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                                    : conn.prepareStatement(sql, keyColumns));
+  }
+
+  private Lease prepare(String sql, String[] keyColumns)
+     throws SQLException
+  {
+    String key = keyColumns == null ? sql : "KEYS" + String.join(",", keyColumns) + ":" + sql;
+    PreparedStatement stmt;
+
+    synchronized(statements)
+    {
+      stmt = closed ? null : statements.remove(key);
+      if(stmt != null)
+        hits++;
+      else
+        misses++;
+    }
+
+    if(stmt == null)
+    {
+      if(keyColumns == null)
+        stmt = conn.prepareStatement(sql);
+      else if(keyColumns.length == 0)
+        stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+      else
+        stmt = conn.prepareStatement(sql, keyColumns);
+    }
+
+    return new Lease(this, key, stmt);
+  }
+
+  /**
+   * Restituisce uno statement alla cache; se la cache è piena
+   * viene chiuso lo statement usato meno di recente.
+   */
+  private void checkin(String key, PreparedStatement stmt)
+     throws SQLException
+  {
+    try
+    {
+      stmt.clearParameters();
+      stmt.clearBatch();
+    }
+    catch(SQLException ex)
+    {
+      stmt.close();
+      return;
+    }
+
+    ArrayList<PreparedStatement> toClose = new ArrayList<>();
+
+    synchronized(statements)
+    {
+      if(closed)
+      {
+        toClose.add(stmt);
+      }
+      else
+      {
+        PreparedStatement old = statements.put(key, stmt);
+        if(old != null)
+          toClose.add(old);
+
+        Iterator<PreparedStatement> itr = statements.values().iterator();
+        while(statements.size() > maxSize && itr.hasNext())
+        {
+          toClose.add(itr.next());
+          itr.remove();
+          evictions++;
+        }
+      }
+    }
+
+    closeAll(toClose);
+  }
+
+  /**
+   * Chiude tutti gli statement conservati.
+   * Gli statement in uso vengono chiusi alla restituzione.
+   */
+  public void close()
+  {
+    ArrayList<PreparedStatement> toClose;
+
+    synchronized(statements)
+    {
+      closed = true;
+      toClose = new ArrayList<>(statements.values());
+      statements.clear();
+    }
+
+    try
+    {
+      closeAll(toClose);
+    }
+    catch(SQLException ex)
+    {
+      // la connessione potrebbe essere già chiusa
+    }
+  }
+
+  private static void closeAll(Iterable<PreparedStatement> stmts)
+     throws SQLException
+  {
+    SQLException error = null;
+
+    for(PreparedStatement ps : stmts)
+    {
+      try
+      {
+        ps.close();
+      }
+      catch(SQLException ex)
+      {
+        error = ex;
+      }
+    }
+
+    if(error != null)
+      throw error;
+  }
+
+  public Connection getConnection()
+  {
+    return conn;
+  }
+
+  public int getMaxSize()
+  {
+    return maxSize;
+  }
+
+  /**
+   * Numero di statement conservati (non in uso).
+   * @return numero di statement
+   */
+  public int size()
+  {
+    synchronized(statements)
+    {
+      return statements.size();
+    }
+  }
+
+  public long getHits()
+  {
+    synchronized(statements)
+    {
+      return hits;
+    }
+  }
+
+  public long getMisses()
+  {
+    synchronized(statements)
+    {
+      return misses;
+    }
+  }
+
+  public long getEvictions()
+  {
+    synchronized(statements)
+    {
+      return evictions;
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    synchronized(statements)
+    {
+      return "StatementCache{size=" + statements.size() + ", hits=" + hits
+         + ", misses=" + misses + ", evictions=" + evictions + '}';
+    }
+  }
+
+  /**
+   * Statement ottenuto da prepare().
+   * La chiusura restituisce lo statement alla cache (o lo chiude se la cache non è attiva).
+   */
+  public static class Lease implements AutoCloseable
+  {
+    private final StatementCache cache;
+    private final String key;
+    private PreparedStatement stmt;
+
+    private Lease(StatementCache cache, String key, PreparedStatement stmt)
+    {
+      this.cache = cache;
+      this.key = key;
+      this.stmt = stmt;
+    }
+
+    public PreparedStatement statement()
+    {
+      return stmt;
+    }
+
+    @Override
+    public void close()
+       throws SQLException
+    {
+      PreparedStatement ps = stmt;
+      stmt = null;
+
+      if(ps == null)
+        return;
+
+      if(cache == null)
+        ps.close();
+      else
+        cache.checkin(key, ps);
+    }
+  }
+}
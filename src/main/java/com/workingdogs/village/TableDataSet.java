@@ -18,13 +18,24 @@ package com.workingdogs.village;
  * specific language governing permissions and limitations
  * under the License.
  */
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import javax.sql.DataSource;
 import org.commonlib5.lambda.ConsumerThrowException;
 
 /**
@@ -75,10 +86,28 @@ public class TableDataSet
   /** the value for the sql other clause */
   private String other = null;
 
+  /** column used to split the table in fetchPartitioned() */
+  private String partitionColumn = null;
+
   // by default this is false;
   /** TODO: DOCUMENT ME! */
   private boolean refreshOnSave = false;
 
+  /** records per executeBatch() in save(); 0 saves one record at a time */
+  private int saveBatchSize = 0;
+
+  /** if true the batched save() inserts several rows per INSERT statement */
+  private boolean multiRowInsert = false;
+
+  /** if true the batched save() deletes several records per DELETE statement */
+  private boolean bulkDelete = false;
+
+  /** records between two commits in save(); 0 for no intermediate commit */
+  private int commitInterval = 0;
+
+  /** behaviour of save() when a chunk fails (TableSaveEngine.ON_ERROR_...) */
+  private int saveErrorPolicy = TableSaveEngine.ON_ERROR_FAIL;
+
   /**
    * Default constructor.
    *
@@ -192,6 +221,315 @@ public class TableDataSet
     return super.fetchRecords(start, max, consumer);
   }
 
+  /**
+   * Caricamento parallelo di tutti i record (rispettando la where) su più connessioni.
+   * L'intervallo della colonna di partizione (vedi setPartitionColumn())
+   * viene diviso in partitions fette che vengono lette in contemporanea,
+   * ognuna con una connessione ottenuta da connSupplier (e chiusa alla fine).
+   * I record vengono poi riuniti in questo DataSet nell'ordine delle fette:
+   * con keyOrder=true ogni fetta è ordinata per la colonna di partizione
+   * e quindi il risultato è ordinato per chiave, altrimenti viene usato l'ordine
+   * impostato con order() all'interno di ogni fetta.
+   * Non è utilizzabile con LobHandle.LOB_LOCATOR (vedi setLobMode()).
+   *
+   * @param connSupplier fornitore delle connessioni per le fette
+   * @param partitions numero di fette (e di connessioni contemporanee)
+   * @param keyOrder vero per ordinare i record per la colonna di partizione
+   * @return an instance of myself
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public DataSet fetchPartitioned(Supplier<Connection> connSupplier, int partitions, boolean keyOrder)
+     throws SQLException, DataSetException
+  {
+    if((lastFetchSize() > 0) && (records != null))
+      throw new DataSetException("You must call DataSet.clearRecords() before executing DataSet.fetchPartitioned() again!");
+
+    List<List<Record>> slices = runPartitioned(connSupplier, partitions, keyOrder, null);
+
+    int total = 0;
+    for(List<Record> lr : slices)
+      total += lr.size();
+
+    records = new ArrayList<>(total);
+    for(List<Record> lr : slices)
+      records.addAll(lr);
+
+    setLastFetchSize(total);
+    setAllRecordsRetrieved(true);
+    return this;
+  }
+
+  /**
+   * Come fetchPartitioned(Supplier, int, boolean) ma le connessioni vengono
+   * richieste al DataSource (e restituite alla fine).
+   *
+   * @param dataSource sorgente delle connessioni
+   * @param partitions numero di fette
+   * @param keyOrder vero per ordinare i record per la colonna di partizione
+   * @return an instance of myself
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public DataSet fetchPartitioned(DataSource dataSource, int partitions, boolean keyOrder)
+     throws SQLException, DataSetException
+  {
+    return fetchPartitioned(dataSourceSupplier(dataSource), partitions, keyOrder);
+  }
+
+  /**
+   * Caricamento parallelo con consumer: i record non vengono conservati nel DataSet
+   * ma passati al consumer direttamente dai thread di lettura.
+   * Il consumer deve essere thread safe; l'ordine dei record non è garantito.
+   *
+   * @param connSupplier fornitore delle connessioni per le fette
+   * @param partitions numero di fette
+   * @param consumer consumer dei record (thread safe)
+   * @return an instance of myself
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public DataSet fetchPartitioned(Supplier<Connection> connSupplier, int partitions, ConsumerThrowException<Record> consumer)
+     throws SQLException, DataSetException
+  {
+    runPartitioned(connSupplier, partitions, false, consumer);
+    return this;
+  }
+
+  public DataSet fetchPartitioned(DataSource dataSource, int partitions, ConsumerThrowException<Record> consumer)
+     throws SQLException, DataSetException
+  {
+    return fetchPartitioned(dataSourceSupplier(dataSource), partitions, consumer);
+  }
+
+  private static Supplier<Connection> dataSourceSupplier(DataSource dataSource)
+  {
+    return () ->
+    {
+      try
+      {
+        return dataSource.getConnection();
+      }
+      catch(SQLException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    };
+  }
+
+  private List<List<Record>> runPartitioned(Supplier<Connection> connSupplier, int partitions,
+     boolean keyOrder, ConsumerThrowException<Record> consumer)
+     throws SQLException, DataSetException
+  {
+    if((this.other != null) && (this.other.length() > 0))
+      throw new DataSetException("Partitioned fetch is not supported with the OTHER clause.");
+
+    // i locator non sopravvivono alla chiusura delle connessioni delle fette
+    if(getLobMode() == LobHandle.LOB_LOCATOR)
+      throw new DataSetException("Partitioned fetch is not supported with LOB_LOCATOR; use LOB_MATERIALIZE or LOB_SPILL.");
+
+    String keyCol = getPartitionColumn();
+    String userWhere = (this.where != null) && (this.where.length() > 0) ? "(" + this.where + ") AND " : "";
+
+    // intervallo dei valori della chiave
+    long lo, hi;
+    String sqlRange = "SELECT MIN(" + keyCol + "), MAX(" + keyCol + ") FROM " + schema.getFullTableName()
+       + (userWhere.isEmpty() ? "" : " WHERE " + this.where);
+    try(Statement st = conn.createStatement();
+       ResultSet rs = st.executeQuery(sqlRange))
+    {
+      rs.next();
+      BigDecimal min = rs.getBigDecimal(1), max = rs.getBigDecimal(2);
+
+      if(min == null)
+      {
+        // nessun valore della chiave: una sola fetta per eventuali null
+        lo = hi = 0;
+        partitions = 1;
+      }
+      else
+      {
+        lo = min.setScale(0, RoundingMode.FLOOR).longValueExact();
+        hi = max.setScale(0, RoundingMode.CEILING).longValueExact();
+      }
+    }
+    catch(ArithmeticException ex)
+    {
+      throw new DataSetException("Partition column " + keyCol + " is out of range.", ex);
+    }
+
+    long span = hi - lo + 1;
+    if(span <= 0)
+      partitions = 1; // overflow: tutto in una fetta
+    else if(partitions > span)
+      partitions = (int) span;
+    if(partitions < 1)
+      partitions = 1;
+
+    long width = span <= 0 ? 0 : (span + partitions - 1) / partitions;
+    if(width > 0)
+      partitions = (int) ((span + width - 1) / width); // niente fette vuote in coda
+    String sqlOrder = keyOrder ? keyCol
+                         : (this.order != null) && (this.order.length() > 0) ? this.order : null;
+
+    ExecutorService pool = Executors.newFixedThreadPool(partitions);
+    try
+    {
+      List<Future<List<Record>>> futures = new ArrayList<>(partitions);
+
+      for(int i = 0; i < partitions; i++)
+      {
+        final boolean first = i == 0, last = i == partitions - 1;
+        final long from = lo + i * width;
+        final long to = last ? hi : from + width;
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("SELECT ").append(schema.attributes())
+           .append(" FROM ").append(schema.getFullTableName())
+           .append(" WHERE ").append(userWhere)
+           .append("(").append(keyCol).append(" >= ? AND ").append(keyCol).append(last ? " <= ?" : " < ?");
+        if(first)
+          sb.append(" OR ").append(keyCol).append(" IS NULL");
+        sb.append(")");
+        if(sqlOrder != null)
+          sb.append(" ORDER BY ").append(sqlOrder);
+
+        final String sql = sb.toString();
+        futures.add(pool.submit(() -> fetchSlice(connSupplier, sql, from, to, consumer)));
+      }
+
+      List<List<Record>> rv = new ArrayList<>(partitions);
+      try
+      {
+        for(Future<List<Record>> f : futures)
+          rv.add(f.get());
+      }
+      catch(ExecutionException ex)
+      {
+        futures.forEach((f) -> f.cancel(true));
+        Throwable t = ex.getCause();
+        if(t instanceof UncheckedDataSetException && t.getCause() != null)
+          t = t.getCause();
+        if(t instanceof SQLException)
+          throw (SQLException) t;
+        if(t instanceof DataSetException)
+          throw (DataSetException) t;
+        throw new DataSetException(t.getMessage(), t);
+      }
+      catch(InterruptedException ex)
+      {
+        futures.forEach((f) -> f.cancel(true));
+        Thread.currentThread().interrupt();
+        throw new DataSetException("Partitioned fetch interrupted.", ex);
+      }
+
+      return rv;
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  private List<Record> fetchSlice(Supplier<Connection> connSupplier, String sql, long from, long to,
+     ConsumerThrowException<Record> consumer)
+     throws Exception
+  {
+    List<Record> rv = new ArrayList<>();
+    ValueReader[] readers = schema.getReaders(getLobMode());
+    int numCols = schema.numberOfColumns();
+
+    try(Connection c = connSupplier.get();
+       PreparedStatement ps = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+    {
+      if(getFetchSize() != 0)
+        ps.setFetchSize(getFetchSize());
+
+      ps.setLong(1, from);
+      ps.setLong(2, to);
+
+      try(ResultSet rs = ps.executeQuery())
+      {
+        while(rs.next())
+        {
+          Object[] raw = new Object[numCols + 1];
+          for(int i = 1; i <= numCols; i++)
+            raw[i] = readers[i].read(rs, i);
+
+          // i record appartengono a questo DataSet anche se letti da un'altra connessione
+          Record rec = new Record(this, raw);
+
+          if(consumer == null)
+            rv.add(rec);
+          else
+            consumer.accept(rec);
+        }
+      }
+    }
+
+    return rv;
+  }
+
+  /**
+   * Colonna usata per dividere la tabella nel caricamento parallelo.
+   * Se non impostata viene usata la chiave primaria (deve essere di una sola colonna).
+   *
+   * @return nome della colonna
+   * @throws DataSetException se la colonna non è definita o non è numerica
+   */
+  public String getPartitionColumn()
+     throws DataSetException
+  {
+    String colName = partitionColumn;
+
+    if(colName == null)
+    {
+      KeyDef kd = keydef();
+      if(kd == null || kd.size() != 1)
+        throw new DataSetException("Partitioned fetch needs a partition column or a single column KeyDef.");
+
+      colName = kd.getAttrib(1);
+    }
+
+    switch(schema.column(colName).typeEnum())
+    {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return colName;
+    }
+
+    throw new DataSetException("Partition column " + colName + " must be numeric.");
+  }
+
+  /**
+   * Imposta la colonna numerica usata per dividere la tabella nel caricamento parallelo.
+   *
+   * @param partitionColumn nome della colonna (null per usare la chiave primaria)
+   */
+  public void setPartitionColumn(String partitionColumn)
+  {
+    this.partitionColumn = partitionColumn;
+  }
+
+  /**
+   * La clausola OTHER può contenere già una limitazione dei record
+   * (LIMIT, FETCH FIRST, ecc.): in questo caso la paginazione lato db
+   * non viene applicata.
+   */
+  @Override
+  protected boolean openPagedResultset(int start, int max)
+     throws SQLException, DataSetException
+  {
+    if((this.other != null) && (this.other.length() > 0))
+      return false;
+
+    return super.openPagedResultset(start, max);
+  }
+
   @Override
   public void clear()
      throws DataSetException
@@ -247,20 +585,72 @@ public class TableDataSet
   {
     int j = 0;
 
-    for(Record rec : records)
+    if(useSaveEngine())
     {
-      rec.save(conn);
-      j++;
+      // conteggio prima della rimozione dei record cancellati (come il salvataggio per record)
+      j = records.size();
+      j -= saveWithResult(conn, intransaction).getFailed();
     }
+    else
+    {
+      for(Record rec : records)
+      {
+        rec.save(conn);
+        j++;
+      }
 
-    // now go through and remove any records
-    // that were previously marked as a zombie by the
-    // delete process
-    removeDeletedRecords();
+      // now go through and remove any records
+      // that were previously marked as a zombie by the
+      // delete process
+      removeDeletedRecords();
+    }
 
     return j;
   }
 
+  /**
+   * Salva tutti i record con TableSaveEngine e ne ritorna il risultato.
+   * Usa le impostazioni di setSaveBatchSize(), setMultiRowInsert(),
+   * setCommitInterval() e setSaveErrorPolicy().
+   * Se intransaction è falso e sono attivi il commit periodico o una politica
+   * di errore diversa da ON_ERROR_FAIL la transazione viene gestita dal salvataggio;
+   * altrimenti non viene eseguito nessun commit.
+   *
+   * @param conn connessione
+   * @param intransaction vero se il salvataggio avviene in una transazione del chiamante
+   * @return risultato con record salvati e scartati, commit e tempi
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public SaveResult saveWithResult(Connection conn, boolean intransaction)
+     throws SQLException, DataSetException
+  {
+    TableSaveEngine engine = new TableSaveEngine(this, conn);
+    if(saveBatchSize > 0)
+      engine.setBatchSize(saveBatchSize);
+    else
+      engine.setBatchSize(bulkDelete ? TableSaveEngine.DEFAULT_BATCH_SIZE : 1);
+    engine.setMultiRowInsert(multiRowInsert);
+    engine.setBulkDelete(bulkDelete);
+    engine.setInTransaction(intransaction);
+    engine.setCommitInterval(commitInterval);
+    engine.setErrorPolicy(saveErrorPolicy);
+
+    try
+    {
+      return engine.save(records);
+    }
+    finally
+    {
+      removeDeletedRecords();
+    }
+  }
+
+  private boolean useSaveEngine()
+  {
+    return saveBatchSize > 0 || bulkDelete || commitInterval > 0 || saveErrorPolicy != TableSaveEngine.ON_ERROR_FAIL;
+  }
+
   /**
    * Removes any records that are marked as a zombie.
    *
@@ -272,13 +662,8 @@ public class TableDataSet
     if(records == null)
       throw new DataSetException("Cache records is empty: use fetchRecord.");
 
-    for(Record rec : new ArrayList<>(records))
-    {
-      if(rec.isAZombie())
-      {
-        removeRecord(rec);
-      }
-    }
+    // un solo passaggio di compattazione invece di removeRecord() per ogni zombie
+    records.removeIf(Record::isAZombie);
   }
 
   /**
@@ -391,14 +776,95 @@ public class TableDataSet
     if(records == null)
       throw new DataSetException("Cache records is empty: use fetchRecord.");
 
-    for(Record rec : records)
-    {
-      rec.refresh(conn);
-    }
+    // una SELECT per blocco di record invece di una per record
+    TableRefreshEngine engine = new TableRefreshEngine(this, conn);
+    if(saveBatchSize > 0)
+      engine.setBatchSize(saveBatchSize);
+    engine.refresh(records);
+  }
+
+  public int getSaveBatchSize()
+  {
+    return saveBatchSize;
+  }
+
+  /**
+   * Attiva il salvataggio a blocchi in save().
+   * I record da salvare vengono raggruppati per tipo di salvataggio
+   * e colonne modificate ed eseguiti con executeBatch() in blocchi
+   * di saveBatchSize record (vedi TableSaveEngine).
+   * @param saveBatchSize record per blocco; 0 (default) salva un record per volta
+   */
+  public void setSaveBatchSize(int saveBatchSize)
+  {
+    this.saveBatchSize = saveBatchSize;
+  }
+
+  public boolean isMultiRowInsert()
+  {
+    return multiRowInsert;
+  }
+
+  /**
+   * Nel salvataggio a blocchi (vedi setSaveBatchSize()) inserisce i record nuovi
+   * con le stesse colonne valorizzate con una sola INSERT ... VALUES (..), (..), ...
+   * I record con setPreferInsertAndGetGeneratedKeys() vengono comunque inseriti uno per volta.
+   * @param multiRowInsert vero per attivare
+   */
+  public void setMultiRowInsert(boolean multiRowInsert)
+  {
+    this.multiRowInsert = multiRowInsert;
+  }
+
+  public boolean isBulkDelete()
+  {
+    return bulkDelete;
+  }
+
+  /**
+   * Cancella i record marcati con markToBeDeleted() con DELETE ... WHERE key IN (...)
+   * a blocchi di saveBatchSize record (vedi TableSaveEngine.setBulkDelete()).
+   * Con saveBatchSize a 0 viene usata la dimensione TableSaveEngine.DEFAULT_BATCH_SIZE.
+   * @param bulkDelete vero per attivare
+   */
+  public void setBulkDelete(boolean bulkDelete)
+  {
+    this.bulkDelete = bulkDelete;
+  }
+
+  public int getCommitInterval()
+  {
+    return commitInterval;
+  }
+
+  /**
+   * Commit periodico in save() quando non è in una transazione del chiamante.
+   * @param commitInterval record fra due commit; 0 (default) nessun commit intermedio
+   */
+  public void setCommitInterval(int commitInterval)
+  {
+    this.commitInterval = commitInterval;
+  }
+
+  public int getSaveErrorPolicy()
+  {
+    return saveErrorPolicy;
+  }
+
+  /**
+   * Comportamento di save() in caso di errore in un blocco (vedi TableSaveEngine.setErrorPolicy()).
+   * I record scartati sono riportati da saveWithResult().
+   * @param saveErrorPolicy una delle costanti TableSaveEngine.ON_ERROR_...
+   */
+  public void setSaveErrorPolicy(int saveErrorPolicy)
+  {
+    this.saveErrorPolicy = saveErrorPolicy;
   }
 
   /**
    * Setting this causes each Record to refresh itself when a save() is performed on it.
+   * Con il salvataggio a blocchi (vedi setSaveBatchSize()) i record salvati
+   * vengono riletti tutti insieme alla fine con TableRefreshEngine.
    *
    * <P>
    * Default value is false.
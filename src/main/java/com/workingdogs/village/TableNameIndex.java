@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import static com.workingdogs.village.Schema.TABLES_FILTER;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.commonlib5.utils.Pair;
+
+/**
+ * Indice dei nomi di schemi e tabelle di un catalogo, indipendente da maiuscole/minuscole.
+ * Usato da LocalPrimaryCache per ottenere i nomi nel case conosciuto dal db
+ * senza scorrere getSchemas() e getTables() ad ogni tabella non in cache.
+ * L'elenco degli schemi viene letto alla prima richiesta, le tabelle
+ * uno schema per volta alla prima richiesta di una tabella dello schema.
+ * Un nome sconosciuto provoca la rilettura dello schema (o dell'elenco degli schemi)
+ * per trovare le tabelle create dopo il caricamento; se anche dopo la rilettura
+ * il nome non esiste non viene ricercato di nuovo per MISSING_TTL_MILLIS.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableNameIndex
+{
+  /** tempo per cui un nome non trovato non provoca altre riletture */
+  public static final long MISSING_TTL_MILLIS = 30000;
+
+  /** indici per url di connessione e catalogo */
+  private static final ConcurrentHashMap<String, TableNameIndex> indexes = new ConcurrentHashMap<>();
+
+  /** chiave delle tabelle di tutti gli schemi (ricerca senza schema) */
+  private static final String ALL_SCHEMAS = "\u0000";
+
+  private final String catalog;
+
+  // nome in minuscolo -> nome del db
+  private volatile Map<String, String> schemas;
+  private final ConcurrentHashMap<String, Map<String, Pair<String, String>>> tables = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Long> missing = new ConcurrentHashMap<>();
+  private final LongAdder lookups = new LongAdder(), reloads = new LongAdder();
+
+  private TableNameIndex(String catalog)
+  {
+    this.catalog = catalog;
+  }
+
+  /**
+   * Ritorna l'indice del catalogo.
+   * @param connURL url della connessione
+   * @param catalog catalogo (può essere null)
+   * @return l'indice
+   */
+  public static TableNameIndex get(String connURL, String catalog)
+  {
+    return indexes.computeIfAbsent(connURL + "|" + catalog, (k) -> new TableNameIndex(catalog));
+  }
+
+  /**
+   * Scarta gli indici di un url di connessione (ad esempio dopo modifiche al db).
+   * @param connURL url della connessione
+   */
+  public static void invalidate(String connURL)
+  {
+    String prefix = connURL + "|";
+    indexes.keySet().removeIf((k) -> k.startsWith(prefix));
+  }
+
+  /**
+   * Corregge il case di schema e tabella.
+   * Se lo schema non è indicato o non esiste la tabella viene cercata in tutti gli schemi.
+   * @param dbMeta metadati della connessione
+   * @param schemaName nome dello schema (anche vuoto o null)
+   * @param tableName nome della tabella
+   * @return schema e tabella nel case del db oppure null se la tabella non esiste
+   * @throws SQLException
+   */
+  public Pair<String, String> resolve(DatabaseMetaData dbMeta, String schemaName, String tableName)
+     throws SQLException
+  {
+    String rvs = null;
+
+    if(schemaName != null && !schemaName.isEmpty())
+    {
+      String key = lower(schemaName);
+      rvs = getSchemas(dbMeta, false).get(key);
+
+      if(rvs == null && canReload("S" + key))
+      {
+        rvs = getSchemas(dbMeta, true).get(key);
+        if(rvs == null)
+          missing.put("S" + key, System.currentTimeMillis());
+      }
+    }
+
+    String skey = rvs == null ? ALL_SCHEMAS : rvs;
+    String tkey = lower(tableName);
+    Pair<String, String> rv = getTables(dbMeta, skey, false).get(tkey);
+
+    if(rv == null && canReload("T" + skey + "|" + tkey))
+    {
+      rv = getTables(dbMeta, skey, true).get(tkey);
+      if(rv == null)
+        missing.put("T" + skey + "|" + tkey, System.currentTimeMillis());
+    }
+
+    lookups.increment();
+    return rv;
+  }
+
+  private boolean canReload(String missingKey)
+  {
+    Long when = missing.get(missingKey);
+    if(when == null)
+      return true;
+
+    if(System.currentTimeMillis() - when < MISSING_TTL_MILLIS)
+      return false;
+
+    missing.remove(missingKey, when);
+    return true;
+  }
+
+  private Map<String, String> getSchemas(DatabaseMetaData dbMeta, boolean reload)
+     throws SQLException
+  {
+    Map<String, String> rv = schemas;
+    if(rv != null && !reload)
+      return rv;
+
+    synchronized(this)
+    {
+      // ripete il controllo: un altro thread potrebbe averlo appena caricato
+      if(!reload && schemas != null)
+        return schemas;
+
+      rv = new HashMap<>();
+      try(ResultSet rsc = dbMeta.getSchemas())
+      {
+        while(rsc.next())
+        {
+          if(catalog != null && !catalog.equalsIgnoreCase(rsc.getString("TABLE_CATALOG")))
+            continue;
+
+          String name = rsc.getString("TABLE_SCHEM");
+          rv.putIfAbsent(lower(name), name);
+        }
+      }
+
+      reloads.increment();
+      return schemas = rv;
+    }
+  }
+
+  private Map<String, Pair<String, String>> getTables(DatabaseMetaData dbMeta, String schemaName, boolean reload)
+     throws SQLException
+  {
+    Map<String, Pair<String, String>> rv = tables.get(schemaName);
+    if(rv != null && !reload)
+      return rv;
+
+    synchronized(this)
+    {
+      if(!reload && (rv = tables.get(schemaName)) != null)
+        return rv;
+
+      rv = new HashMap<>();
+      String pattern = ALL_SCHEMAS.equals(schemaName) ? null : schemaName;
+      try(ResultSet rSet = dbMeta.getTables(catalog, pattern, null, TABLES_FILTER))
+      {
+        while(rSet.next())
+        {
+          if(!rSet.getString("TABLE_TYPE").equals("TABLE"))
+            continue;
+
+          String schema = rSet.getString("TABLE_SCHEM");
+          String name = rSet.getString("TABLE_NAME");
+
+          // lo schema è un pattern: '_' potrebbe selezionare altri schemi
+          if(pattern != null && !pattern.equals(schema))
+            continue;
+
+          // come nella ricerca sequenziale vale la prima tabella trovata
+          rv.putIfAbsent(lower(name), new Pair<>(schema, name));
+        }
+      }
+
+      reloads.increment();
+      tables.put(schemaName, rv);
+      return rv;
+    }
+  }
+
+  private static String lower(String s)
+  {
+    return s == null ? "" : s.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Numero di ricerche eseguite.
+   * @return ricerche
+   */
+  public long getLookups()
+  {
+    return lookups.sum();
+  }
+
+  /**
+   * Numero di letture dei metadati (elenco schemi o tabelle di uno schema).
+   * @return letture
+   */
+  public long getReloads()
+  {
+    return reloads.sum();
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Refresh a blocchi dei record di una tabella.
+ * Invece di una SELECT per ogni record vengono eseguite SELECT con una
+ * condizione IN sulle chiavi (vedi SqlTemplate.getBulkRefresh()) per blocchi
+ * di batchSize record; le righe lette vengono associate ai record
+ * confrontando i valori della chiave e decodificate nei Value esistenti.
+ * Valgono le stesse regole di Record.refresh(): i record da cancellare vengono
+ * ignorati, quelli da inserire o con la chiave modificata non possono essere riletti.
+ * Se per alcuni record non viene trovata la riga (cancellata dal db oppure
+ * con una chiave che il db confronta diversamente, ad esempio per una collation
+ * che ignora maiuscole/minuscole) gli altri record vengono comunque riletti
+ * e alla fine viene sollevata una DataSetException, come Record.refresh().
+ *
+ * @author Nicola De Nisco
+ */
+public class TableRefreshEngine
+{
+  /** dimensione di default dei blocchi */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  private final TableDataSet tds;
+  private final Connection conn;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int unmatched;
+
+  public TableRefreshEngine(TableDataSet tds, Connection conn)
+  {
+    this.tds = tds;
+    this.conn = conn;
+  }
+
+  /**
+   * Rilegge i record indicati.
+   * @param records record da rileggere
+   * @return numero di record riletti
+   * @throws DataSetException anche se per alcuni record non è stata trovata la riga
+   * @throws SQLException
+   */
+  public int refresh(Collection<Record> records)
+     throws DataSetException, SQLException
+  {
+    KeyDef kd = tds.keydef();
+    if((kd == null) || (kd.size() == 0))
+    {
+      throw new DataSetException(
+         "You can only perform a getRefreshQueryString on a TableDataSet that was created with a KeyDef.");
+    }
+
+    List<Record> todo = new ArrayList<>(records.size());
+    SqlTemplate tpl = null;
+
+    for(Record rec : records)
+    {
+      if(rec.dataset() != tds)
+        throw new DataSetException("Record does not belong to table " + tds.tableName() + ".");
+
+      if(rec.isAZombie() || rec.toBeSavedWithDelete())
+        continue;
+
+      if(rec.toBeSavedWithInsert() || rec.toBeSavedWithUpsert())
+        throw new DataSetException("There is no way to refresh a record which has been created with addRecord().");
+
+      // verifica anche che la chiave non sia stata modificata
+      tpl = rec.refreshTemplate();
+      todo.add(rec);
+    }
+
+    if(todo.isEmpty())
+      return 0;
+
+    Schema schema = tds.schema();
+    int[] keyPos = tpl.getBindColumns();
+    SqlDialect dialect = SqlDialect.getDialect(conn);
+    boolean rowValueIn = dialect.supportsRowValueIn();
+    int size = Math.max(1, Math.min(Math.min(batchSize, dialect.getMaxBindParameters() / keyPos.length),
+       dialect.getMaxInListSize()));
+
+    int refreshed = 0;
+    unmatched = 0;
+    for(int from = 0; from < todo.size(); from += size)
+      refreshed += refreshChunk(schema, tpl, keyPos, rowValueIn, todo.subList(from, Math.min(from + size, todo.size())));
+
+    if(unmatched > 0)
+      throw new DataSetException(unmatched + " of " + todo.size() + " records of table "
+         + tds.tableName() + " have not been refreshed: row not found.");
+
+    return refreshed;
+  }
+
+  private int refreshChunk(Schema schema, SqlTemplate tpl, int[] keyPos, boolean rowValueIn, List<Record> chunk)
+     throws DataSetException, SQLException
+  {
+    // lo stesso record può comparire più volte: una sola chiave nella SELECT
+    Map<List<Object>, List<Record>> byKey = new HashMap<>(chunk.size() * 2);
+    for(Record rec : chunk)
+    {
+      Object[] key = new Object[keyPos.length];
+      for(int k = 0; k < keyPos.length; k++)
+      {
+        Object val = rec.rawValue(keyPos[k]);
+        if(val == null)
+          throw new DataSetException("You cannot execute an update with a null value for a KeyDef.");
+        key[k] = val;
+      }
+
+      byKey.computeIfAbsent(normalizeKey(key), (k) -> new ArrayList<>(1)).add(rec);
+    }
+
+    int refreshed = 0;
+    HashSet<List<Object>> matched = new HashSet<>(byKey.size() * 2);
+    try(StatementCache.Lease lease = StatementCache.prepare(conn, tpl.getBulkRefresh(byKey.size(), rowValueIn)))
+    {
+      PreparedStatement stmt = lease.statement();
+
+      int ps = 1;
+      for(List<Record> lsRec : byKey.values())
+      {
+        Record rec = lsRec.get(0);
+        for(int k = 0; k < keyPos.length; k++)
+          rec.getValue(keyPos[k]).setPreparedStatementValue(stmt, ps++);
+      }
+
+      final ValueReader[] readers = schema.getReaders(LobHandle.LOB_MATERIALIZE);
+      try(ResultSet rs = stmt.executeQuery())
+      {
+        Object[] key = new Object[keyPos.length];
+        while(rs.next())
+        {
+          for(int k = 0; k < keyPos.length; k++)
+            key[k] = readers[keyPos[k]].read(rs, keyPos[k]);
+
+          List<Object> nk = normalizeKey(key);
+          List<Record> lsRec = byKey.get(nk);
+          if(lsRec == null || !matched.add(nk))
+            continue;
+
+          for(Record rec : lsRec)
+          {
+            rec.reload(rs);
+            refreshed++;
+          }
+        }
+      }
+    }
+
+    for(Map.Entry<List<Object>, List<Record>> e : byKey.entrySet())
+    {
+      if(!matched.contains(e.getKey()))
+        unmatched += e.getValue().size();
+    }
+
+    return refreshed;
+  }
+
+  /**
+   * Chiave confrontabile indipendentemente dal tipo Java usato per i numeri
+   * (ad esempio Integer impostato con setValue() e BigDecimal letto dal db),
+   * dal tipo usato per date e ore (java.util.Date, Date o Timestamp)
+   * e dagli spazi finali delle stringhe.
+   */
+  private static List<Object> normalizeKey(Object[] key)
+  {
+    Object[] rv = new Object[key.length];
+    for(int i = 0; i < key.length; i++)
+    {
+      Object o = key[i];
+      if(o instanceof Number)
+        rv[i] = new BigDecimal(o.toString()).stripTrailingZeros();
+      else if(o instanceof byte[])
+        rv[i] = Arrays.toString((byte[]) o);
+      else if(o instanceof String)
+        rv[i] = rtrim((String) o);
+      else if(o instanceof java.util.Date)
+        rv[i] = ((java.util.Date) o).getTime();
+      else
+        rv[i] = o;
+    }
+    return Arrays.asList(rv);
+  }
+
+  /**
+   * I CHAR vengono confrontati dal db ignorando gli spazi finali.
+   */
+  private static String rtrim(String s)
+  {
+    int len = s.length();
+    while(len > 0 && s.charAt(len - 1) == ' ')
+      len--;
+    return s.substring(0, len);
+  }
+
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  /**
+   * Numero massimo di record per ogni SELECT.
+   * Il limite effettivo dipende anche dal numero massimo di parametri del database.
+   * @param batchSize dimensione dei blocchi
+   */
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize = batchSize;
+  }
+}
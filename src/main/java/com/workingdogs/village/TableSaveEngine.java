@@ -0,0 +1,758 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Salvataggio a blocchi dei record di una tabella.
+ * I record da salvare vengono raggruppati per tipo di salvataggio e testo SQL
+ * (quindi per insieme di colonne modificate); ogni gruppo viene eseguito
+ * con addBatch()/executeBatch() in blocchi di batchSize record.
+ * Il numero di righe riportato dal db per ogni record aggiorna lo stato
+ * del record come il salvataggio singolo (record pulito, AFTERINSERT/AFTERUPDATE, ZOMBIE).
+ * I gruppi vengono eseguiti nell'ordine: cancellazioni, aggiornamenti, upsert, inserimenti.
+ * I record con setPreferInsertAndGetGeneratedKeys() attivo vengono inseriti a blocchi
+ * se il driver ritorna le chiavi generate di un executeBatch(), altrimenti uno per volta.
+ * Con setMultiRowInsert() gli inserimenti diventano INSERT con più righe nella clausola VALUES
+ * (se il database lo permette, vedi SqlDialect.supportsMultiRowInsert()).
+ * Con setBulkDelete() le cancellazioni diventano DELETE con una condizione IN sulle chiavi.
+ * Con TableDataSet.setRefreshOnSave() i record salvati a blocchi vengono riletti
+ * alla fine con TableRefreshEngine invece che uno per volta.
+ * <p>
+ * Transazioni: se il salvataggio non è dentro una transazione del chiamante
+ * (setInTransaction(false)) e sono attivi il commit periodico (setCommitInterval())
+ * o una politica di errore diversa da ON_ERROR_FAIL, la transazione viene gestita
+ * qui: autocommit disattivato, commit ogni commitInterval record e alla fine,
+ * rollback in caso di errore. Dentro la transazione del chiamante non viene mai
+ * eseguito commit o rollback completo; vengono usati solo i savepoint.
+ * Dopo un rollback i record non confermati tornano allo stato precedente il salvataggio.
+ * </p>
+ *
+ * @author Nicola De Nisco
+ */
+public class TableSaveEngine
+{
+  /** dimensione di default dei blocchi */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  /** un errore interrompe il salvataggio (default) */
+  public static final int ON_ERROR_FAIL = 0;
+
+  /** il blocco che fallisce viene annullato con un savepoint e scartato */
+  public static final int ON_ERROR_SKIP_CHUNK = 1;
+
+  /** il blocco che fallisce viene annullato e ripetuto un record per volta scartando solo i record in errore */
+  public static final int ON_ERROR_RETRY_ROWS = 2;
+
+  private final TableDataSet tds;
+  private final Connection conn;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private boolean multiRowInsert = false;
+  private boolean bulkDelete = false;
+  private boolean inTransaction = false;
+  private int commitInterval = 0;
+  private int errorPolicy = ON_ERROR_FAIL;
+
+  // stato del salvataggio in corso
+  private SaveResult result;
+  private boolean manageTransaction, useSavepoints, trackState;
+  private int rowsSinceCommit;
+  private final ArrayList<Snapshot> uncommitted = new ArrayList<>();
+  private final ArrayList<Record> toRefresh = new ArrayList<>();
+
+  public TableSaveEngine(TableDataSet tds, Connection conn)
+  {
+    this.tds = tds;
+    this.conn = conn;
+  }
+
+  /**
+   * Salva i record indicati.
+   * Con ON_ERROR_FAIL un errore interrompe il salvataggio: se la transazione
+   * è gestita qui viene annullato tutto quello che non è già stato confermato
+   * da un commit; altrimenti i record già eseguiti dal db hanno lo stato aggiornato
+   * e gli altri restano da salvare.
+   * @param records record da salvare (quelli che non lo richiedono vengono ignorati)
+   * @return risultato del salvataggio
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  public SaveResult save(Collection<Record> records)
+     throws DataSetException, SQLException
+  {
+    long start = System.nanoTime();
+    result = new SaveResult();
+    rowsSinceCommit = 0;
+    uncommitted.clear();
+    toRefresh.clear();
+
+    Map<String, List<Record>> deletes = new LinkedHashMap<>();
+    Map<String, List<Record>> updates = new LinkedHashMap<>();
+    Map<String, List<Record>> upserts = new LinkedHashMap<>();
+    Map<String, List<Record>> inserts = new LinkedHashMap<>();
+    Map<String, List<Record>> keyInserts = new LinkedHashMap<>();
+
+    for(Record rec : records)
+    {
+      if(rec.dataset() != tds)
+        throw new DataSetException("Record does not belong to table " + tds.tableName() + ".");
+
+      if(!rec.needsToBeSaved())
+        continue;
+
+      Map<String, List<Record>> groups;
+      if(rec.toBeSavedWithInsert() && rec.isPreferInsertAndGetGeneratedKeys())
+        groups = keyInserts;
+      else if(rec.toBeSavedWithDelete())
+        groups = deletes;
+      else if(rec.toBeSavedWithUpdate())
+        groups = updates;
+      else if(rec.toBeSavedWithUpsert())
+        groups = upserts;
+      else
+        groups = inserts;
+
+      groups.computeIfAbsent(rec.getSaveString(), (sql) -> new ArrayList<>()).add(rec);
+    }
+
+    boolean autoCommit = conn.getAutoCommit();
+    manageTransaction = !inTransaction && (commitInterval > 0 || errorPolicy != ON_ERROR_FAIL);
+    useSavepoints = errorPolicy != ON_ERROR_FAIL && (manageTransaction || !autoCommit);
+    trackState = manageTransaction || useSavepoints;
+
+    if(manageTransaction && autoCommit)
+      conn.setAutoCommit(false);
+
+    try
+    {
+      if(bulkDelete && !deletes.isEmpty())
+        executeBulkDeletes(deletes);
+      else
+        executeGroups(deletes);
+
+      executeGroups(updates);
+      executeGroups(upserts);
+
+      if(multiRowInsert && !inserts.isEmpty() && SqlDialect.getDialect(conn).supportsMultiRowInsert())
+        executeMultiRowInserts(inserts);
+      else
+        executeGroups(inserts);
+
+      executeKeyInserts(keyInserts);
+
+      if(!toRefresh.isEmpty())
+        refreshSaved();
+
+      if(manageTransaction)
+        commit();
+    }
+    catch(DataSetException | SQLException | RuntimeException ex)
+    {
+      if(manageTransaction)
+      {
+        try
+        {
+          conn.rollback();
+        }
+        catch(SQLException ignore)
+        {
+          // viene rilanciato l'errore originale
+        }
+
+        restore(uncommitted);
+        uncommitted.clear();
+      }
+      throw ex;
+    }
+    finally
+    {
+      if(manageTransaction && autoCommit)
+        conn.setAutoCommit(true);
+
+      result.elapsedNanos = System.nanoTime() - start;
+    }
+
+    return result;
+  }
+
+  private void executeGroups(Map<String, List<Record>> groups)
+     throws DataSetException, SQLException
+  {
+    for(Map.Entry<String, List<Record>> e : groups.entrySet())
+    {
+      String sql = e.getKey();
+      List<Record> group = e.getValue();
+      int size = Math.max(1, batchSize);
+
+      for(int from = 0; from < group.size(); from += size)
+        runChunk(group.subList(from, Math.min(from + size, group.size())), (chunk) -> executeBatch(sql, chunk));
+    }
+  }
+
+  private int executeBatch(String sql, List<Record> chunk)
+     throws DataSetException, SQLException
+  {
+    try(StatementCache.Lease lease = StatementCache.prepare(conn, sql))
+    {
+      PreparedStatement stmt = lease.statement();
+
+      for(Record rec : chunk)
+      {
+        rec.bindSaveValues(stmt);
+        stmt.addBatch();
+      }
+
+      int[] counts;
+      try
+      {
+        counts = stmt.executeBatch();
+      }
+      catch(BatchUpdateException ex)
+      {
+        // aggiorna i record eseguiti prima dell'errore
+        int[] partial = ex.getUpdateCounts();
+        if(partial != null)
+          applyCounts(chunk, partial);
+        throw ex;
+      }
+
+      return applyCounts(chunk, counts);
+    }
+  }
+
+  /**
+   * Esegue gli inserimenti che devono ritornare le chiavi generate.
+   * Se il driver ritorna le chiavi di un executeBatch() (vedi SqlDialect.supportsBatchGeneratedKeys())
+   * gli inserimenti sono eseguiti a blocchi e le chiavi assegnate ai record nell'ordine;
+   * altrimenti ogni record viene salvato da solo con Record.saveWithInsertAndGetGeneratedKeys().
+   */
+  private void executeKeyInserts(Map<String, List<Record>> groups)
+     throws DataSetException, SQLException
+  {
+    boolean batchKeys = !groups.isEmpty() && SqlDialect.getDialect(conn).supportsBatchGeneratedKeys();
+
+    for(Map.Entry<String, List<Record>> e : groups.entrySet())
+    {
+      String sql = e.getKey();
+      List<Record> group = e.getValue();
+      String[] keyColumns = group.get(0).generatedKeyColumns();
+
+      if(!batchKeys || keyColumns.length == 0)
+      {
+        for(Record rec : group)
+        {
+          runChunk(Collections.singletonList(rec), (chunk) ->
+          {
+            chunk.get(0).save(conn);
+            return 1;
+          });
+        }
+        continue;
+      }
+
+      int size = Math.max(1, batchSize);
+      for(int from = 0; from < group.size(); from += size)
+        runChunk(group.subList(from, Math.min(from + size, group.size())),
+           (chunk) -> executeBatchWithKeys(sql, keyColumns, chunk));
+    }
+  }
+
+  private int executeBatchWithKeys(String sql, String[] keyColumns, List<Record> chunk)
+     throws DataSetException, SQLException
+  {
+    try(StatementCache.Lease lease = StatementCache.prepareWithKeys(conn, sql, keyColumns))
+    {
+      PreparedStatement stmt = lease.statement();
+
+      for(Record rec : chunk)
+      {
+        rec.bindSaveValues(stmt);
+        stmt.addBatch();
+      }
+
+      // in caso di errore le chiavi non sono disponibili: i record restano tutti da salvare
+      int[] counts = stmt.executeBatch();
+
+      // una riga di chiavi per ogni riga inserita, nell'ordine del blocco
+      int keys = 0;
+      try(ResultSet rs = stmt.getGeneratedKeys())
+      {
+        for(int i = 0; i < chunk.size() && i < counts.length && rs != null; i++)
+        {
+          if(counts[i] == 0 || counts[i] == Statement.EXECUTE_FAILED)
+            continue;
+
+          if(!rs.next())
+            break;
+
+          chunk.get(i).applyGeneratedKeys(rs, keyColumns);
+          keys++;
+        }
+      }
+
+      int saved = applyCounts(chunk, counts);
+
+      if(keys < saved)
+        throw new SQLException("The driver returned " + keys + " generated keys for " + saved + " inserted rows.");
+
+      return saved;
+    }
+  }
+
+  /**
+   * Esegue gli inserimenti con INSERT di più righe.
+   * Le righe per statement sono limitate da batchSize e dal numero
+   * massimo di parametri del database.
+   */
+  private void executeMultiRowInserts(Map<String, List<Record>> groups)
+     throws DataSetException, SQLException
+  {
+    int maxParams = SqlDialect.getDialect(conn).getMaxBindParameters();
+
+    for(List<Record> group : groups.values())
+    {
+      SqlTemplate tpl = group.get(0).saveTemplate();
+      int params = tpl.getBindColumns().length;
+
+      if(params == 0)
+      {
+        executeGroups(Collections.singletonMap(tpl.getSql(), group));
+        continue;
+      }
+
+      int size = Math.max(1, Math.min(batchSize, maxParams / params));
+
+      for(int from = 0; from < group.size(); from += size)
+      {
+        runChunk(group.subList(from, Math.min(from + size, group.size())), (chunk) ->
+        {
+          try(StatementCache.Lease lease = StatementCache.prepare(conn, tpl.getMultiRowInsert(chunk.size())))
+          {
+            PreparedStatement stmt = lease.statement();
+
+            int offset = 0;
+            for(Record rec : chunk)
+            {
+              rec.bindSaveValues(stmt, offset);
+              offset += params;
+            }
+
+            // lo statement è unico: se non fallisce tutte le righe sono state inserite
+            stmt.executeUpdate();
+          }
+
+          int[] counts = new int[chunk.size()];
+          Arrays.fill(counts, 1);
+          return applyCounts(chunk, counts);
+        });
+      }
+    }
+  }
+
+  /**
+   * Esegue le cancellazioni con una DELETE per più chiavi (vedi SqlTemplate.getBulkDelete()).
+   * Le righe per statement sono limitate da batchSize, dal numero massimo di parametri
+   * e dalla lunghezza massima delle liste IN del database.
+   */
+  private void executeBulkDeletes(Map<String, List<Record>> groups)
+     throws DataSetException, SQLException
+  {
+    SqlDialect dialect = SqlDialect.getDialect(conn);
+    boolean rowValueIn = dialect.supportsRowValueIn();
+
+    for(List<Record> group : groups.values())
+    {
+      SqlTemplate tpl = group.get(0).saveTemplate();
+      int params = tpl.getBindColumns().length;
+      int size = Math.max(1, Math.min(Math.min(batchSize, dialect.getMaxBindParameters() / params),
+         dialect.getMaxInListSize()));
+
+      for(int from = 0; from < group.size(); from += size)
+      {
+        runChunk(group.subList(from, Math.min(from + size, group.size())), (chunk) ->
+        {
+          int count;
+          try(StatementCache.Lease lease = StatementCache.prepare(conn, tpl.getBulkDelete(chunk.size(), rowValueIn)))
+          {
+            PreparedStatement stmt = lease.statement();
+
+            int offset = 0;
+            for(Record rec : chunk)
+            {
+              rec.bindSaveValues(stmt, offset);
+              offset += params;
+            }
+
+            count = stmt.executeUpdate();
+          }
+
+          // come per la DELETE singola una chiave già cancellata non è un errore
+          // ma più righe di quante sono le chiavi indicano una chiave non univoca
+          if(count > chunk.size())
+            throw new SQLException("There were " + count + " rows deleted with " + chunk.size() + " key values.");
+
+          int[] counts = new int[chunk.size()];
+          Arrays.fill(counts, 1);
+          return applyCounts(chunk, counts);
+        });
+      }
+    }
+  }
+
+  /**
+   * Esegue un blocco applicando savepoint, politica di errore e commit periodico.
+   */
+  private void runChunk(List<Record> chunk, ChunkAction action)
+     throws DataSetException, SQLException
+  {
+    List<Snapshot> snaps = trackState ? snapshot(chunk) : null;
+    Savepoint sp = useSavepoints ? conn.setSavepoint() : null;
+
+    try
+    {
+      result.saved += execute(chunk, action);
+      result.chunks++;
+      releaseQuietly(sp);
+    }
+    catch(DataSetException | SQLException ex)
+    {
+      if(sp == null)
+      {
+        if(snaps != null)
+          uncommitted.addAll(snaps);
+        throw ex;
+      }
+
+      conn.rollback(sp);
+      restore(snaps);
+      result.failedChunks++;
+      result.errors.add(ex);
+
+      if(errorPolicy == ON_ERROR_RETRY_ROWS)
+        retryRows(chunk);
+      else
+        result.failedRecords.addAll(chunk);
+
+      checkCommit(chunk.size());
+      return;
+    }
+
+    if(snaps != null)
+      uncommitted.addAll(snaps);
+
+    checkCommit(chunk.size());
+  }
+
+  /**
+   * Esegue un blocco e chiude gli stream dei LOB passati agli statement.
+   */
+  private int execute(List<Record> chunk, ChunkAction action)
+     throws DataSetException, SQLException
+  {
+    try
+    {
+      return action.execute(chunk);
+    }
+    finally
+    {
+      for(Record rec : chunk)
+        rec.releaseLobStreams();
+    }
+  }
+
+  /**
+   * Ripete un blocco fallito un record per volta; i record in errore vengono scartati.
+   */
+  private void retryRows(List<Record> chunk)
+     throws SQLException
+  {
+    for(Record rec : chunk)
+    {
+      Snapshot snap = new Snapshot(rec);
+      Savepoint sp = conn.setSavepoint();
+
+      try
+      {
+        rec.save(conn);
+        releaseQuietly(sp);
+        result.saved++;
+        uncommitted.add(snap);
+      }
+      catch(DataSetException | SQLException ex)
+      {
+        conn.rollback(sp);
+        snap.restore();
+        result.failedRecords.add(rec);
+        result.errors.add(ex);
+      }
+    }
+  }
+
+  private void checkCommit(int rows)
+     throws SQLException
+  {
+    rowsSinceCommit += rows;
+
+    if(manageTransaction && commitInterval > 0 && rowsSinceCommit >= commitInterval)
+      commit();
+  }
+
+  private void commit()
+     throws SQLException
+  {
+    long start = System.nanoTime();
+    conn.commit();
+    result.addCommit(System.nanoTime() - start);
+    uncommitted.clear();
+    rowsSinceCommit = 0;
+  }
+
+  private void releaseQuietly(Savepoint sp)
+  {
+    if(sp == null)
+      return;
+
+    try
+    {
+      conn.releaseSavepoint(sp);
+    }
+    catch(SQLException | UnsupportedOperationException ex)
+    {
+      // alcuni driver non permettono il rilascio esplicito
+    }
+  }
+
+  private static List<Snapshot> snapshot(List<Record> chunk)
+  {
+    ArrayList<Snapshot> rv = new ArrayList<>(chunk.size());
+    for(Record rec : chunk)
+      rv.add(new Snapshot(rec));
+    return rv;
+  }
+
+  private static void restore(List<Snapshot> snaps)
+  {
+    for(Snapshot s : snaps)
+      s.restore();
+  }
+
+  /**
+   * Rilegge in blocco i record salvati (vedi TableDataSet.setRefreshOnSave()).
+   * Il refresh azzera il tipo di salvataggio che viene quindi ripristinato.
+   */
+  private void refreshSaved()
+     throws DataSetException, SQLException
+  {
+    ArrayList<Record> lsRec = new ArrayList<>(toRefresh.size());
+    ArrayList<Integer> types = new ArrayList<>(toRefresh.size());
+
+    for(Record rec : toRefresh)
+    {
+      // i record di un blocco annullato sono tornati allo stato precedente
+      int type = rec.getSaveType();
+      if(type == Enums.AFTERINSERT || type == Enums.AFTERUPDATE || type == Enums.AFTERUPSERT)
+      {
+        lsRec.add(rec);
+        types.add(type);
+      }
+    }
+
+    TableRefreshEngine tre = new TableRefreshEngine(tds, conn);
+    tre.setBatchSize(batchSize);
+    tre.refresh(lsRec);
+
+    for(int i = 0; i < lsRec.size(); i++)
+      lsRec.get(i).setSaveType(types.get(i));
+
+    toRefresh.clear();
+  }
+
+  /**
+   * Riporta sui record i conteggi di executeBatch().
+   * SUCCESS_NO_INFO vale come una riga; i record con EXECUTE_FAILED
+   * o senza conteggio restano da salvare.
+   */
+  private int applyCounts(List<Record> chunk, int[] counts)
+     throws DataSetException, SQLException
+  {
+    SQLException error = null;
+    boolean refresh = tds.refreshOnSave();
+    int saved = 0;
+
+    for(int i = 0; i < chunk.size() && i < counts.length; i++)
+    {
+      if(counts[i] == Statement.EXECUTE_FAILED)
+        continue;
+
+      try
+      {
+        Record rec = chunk.get(i);
+        rec.saveCompleted(counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i], false);
+        if(refresh && !rec.isAZombie())
+          toRefresh.add(rec);
+        saved++;
+      }
+      catch(SQLException ex)
+      {
+        if(error == null)
+          error = ex;
+      }
+    }
+
+    if(error != null)
+      throw error;
+
+    return saved;
+  }
+
+  public boolean isMultiRowInsert()
+  {
+    return multiRowInsert;
+  }
+
+  /**
+   * Attiva le INSERT con più righe nella clausola VALUES.
+   * Ogni statement contiene al massimo batchSize righe e comunque non più
+   * parametri di SqlDialect.getMaxBindParameters().
+   * Se il database non le supporta vengono usate le INSERT a blocchi.
+   * @param multiRowInsert vero per attivare
+   */
+  public void setMultiRowInsert(boolean multiRowInsert)
+  {
+    this.multiRowInsert = multiRowInsert;
+  }
+
+  public boolean isBulkDelete()
+  {
+    return bulkDelete;
+  }
+
+  /**
+   * Attiva le DELETE per più chiavi: key IN (...) o l'equivalente per le chiavi composte.
+   * Ogni statement cancella al massimo batchSize record.
+   * @param bulkDelete vero per attivare
+   */
+  public void setBulkDelete(boolean bulkDelete)
+  {
+    this.bulkDelete = bulkDelete;
+  }
+
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  /**
+   * Numero massimo di record per ogni executeBatch().
+   * @param batchSize dimensione dei blocchi
+   */
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize = batchSize;
+  }
+
+  public boolean isInTransaction()
+  {
+    return inTransaction;
+  }
+
+  /**
+   * Indica se il salvataggio avviene dentro una transazione del chiamante.
+   * In questo caso non vengono mai eseguiti commit o rollback completi.
+   * @param inTransaction vero se la transazione è gestita dal chiamante
+   */
+  public void setInTransaction(boolean inTransaction)
+  {
+    this.inTransaction = inTransaction;
+  }
+
+  public int getCommitInterval()
+  {
+    return commitInterval;
+  }
+
+  /**
+   * Commit periodico (solo fuori dalla transazione del chiamante).
+   * Il commit avviene al termine del blocco che supera il numero di record indicato.
+   * @param commitInterval record fra due commit; 0 per nessun commit periodico
+   */
+  public void setCommitInterval(int commitInterval)
+  {
+    this.commitInterval = commitInterval;
+  }
+
+  public int getErrorPolicy()
+  {
+    return errorPolicy;
+  }
+
+  /**
+   * Comportamento in caso di errore in un blocco.
+   * Le politiche diverse da ON_ERROR_FAIL usano un savepoint per ogni blocco
+   * e richiedono quindi una transazione: quella del chiamante (con autocommit disattivato)
+   * oppure quella gestita dal salvataggio.
+   * I record scartati sono riportati in SaveResult.getFailedRecords().
+   * @param errorPolicy una delle costanti ON_ERROR_...
+   */
+  public void setErrorPolicy(int errorPolicy)
+  {
+    this.errorPolicy = errorPolicy;
+  }
+
+  @FunctionalInterface
+  private interface ChunkAction
+  {
+    int execute(List<Record> chunk)
+       throws DataSetException, SQLException;
+  }
+
+  /**
+   * Stato di salvataggio di un record prima dell'esecuzione del suo blocco.
+   */
+  private static class Snapshot
+  {
+    private final Record rec;
+    private final int saveType;
+    private final boolean[] clean;
+
+    Snapshot(Record rec)
+    {
+      this.rec = rec;
+      this.saveType = rec.getSaveType();
+      this.clean = rec.cleanFlags();
+    }
+
+    void restore()
+    {
+      rec.restoreSaveState(saveType, clean);
+    }
+  }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Scrittura in sola aggiunta su una tabella (log, telemetria, importazioni).
+ * Le righe scritte vengono accumulate fino a flushRows e poi inserite
+ * a blocchi con TableSaveEngine; dopo ogni flush vengono scartate,
+ * quindi la memoria usata non dipende dal numero di righe scritte.
+ * Se i flush falliscono (ad esempio con il db non raggiungibile) le righe restano
+ * in attesa fino a getMaxPendingRows(): oltre questo limite le scritture vengono
+ * rifiutate con DataSetException finché un flush non va a buon fine.
+ * Il flush avviene anche se la riga più vecchia in attesa supera flushMillis:
+ * la soglia di tempo viene verificata ad ogni scrittura e da flushIfDue(),
+ * che può essere chiamata periodicamente quando le scritture sono rare.
+ * La close() esegue il flush delle righe in attesa: va sempre chiamata
+ * (try-with-resources) altrimenti le ultime righe vanno perse.
+ * Come la connessione anche il writer non va usato da più thread contemporaneamente.
+ * <pre>
+ * try(TableWriter tw = new TableWriter(conn, "log_eventi"))
+ * {
+ *   tw.setFlushRows(2000);
+ *   for(...)
+ *     tw.write(ts, livello, messaggio);
+ * }
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class TableWriter implements AutoCloseable
+{
+  /** righe per flush di default */
+  public static final int DEFAULT_FLUSH_ROWS = 1000;
+
+  private final Connection conn;
+  private final String tableName;
+  private final TableDataSet tds;
+  private final Schema schema;
+  private int flushRows = DEFAULT_FLUSH_ROWS;
+  private long flushMillis = 0;
+  private boolean inTransaction = false;
+  private boolean closed = false;
+
+  // righe in attesa (nei record di tds)
+  private int pending = 0;
+  private long firstPendingNanos = 0;
+
+  // contatori
+  private final long startNanos = System.nanoTime();
+  private long rowsWritten, rowsFlushed, rowsFailed, flushes, flushNanos;
+  private SaveResult lastResult;
+
+  /**
+   * Crea il writer per la tabella indicata.
+   * @param conn connessione
+   * @param tableName nome della tabella (eventualmente con lo schema)
+   * @throws SQLException
+   * @throws DataSetException
+   */
+  public TableWriter(Connection conn, String tableName)
+     throws SQLException, DataSetException
+  {
+    this.conn = conn;
+    this.tableName = tableName;
+    this.tds = new TableDataSet(conn, tableName);
+    this.schema = tds.schema();
+    tds.setSaveBatchSize(flushRows);
+    tds.setCommitInterval(flushRows);
+    tds.setMultiRowInsert(true);
+  }
+
+  /**
+   * Scrive una riga copiando i valori non nulli delle colonne con lo stesso nome.
+   * Il record può provenire da un qualsiasi DataSet; le colonne che non
+   * esistono nella tabella vengono ignorate.
+   * @param src record sorgente
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  public void write(Record src)
+     throws DataSetException, SQLException
+  {
+    Record rec = newRow();
+    Schema srcSchema = src.schema();
+
+    for(int i = 1; i <= srcSchema.numberOfColumns(); i++)
+    {
+      String name = srcSchema.column(i).name();
+      if(!schema.hasColumn(name))
+        continue;
+
+      Value val = src.getValue(i);
+      if(!val.isNull())
+        rec.setObject(schema.index(name), val.getValue());
+    }
+
+    written();
+  }
+
+  /**
+   * Scrive una riga con i valori indicati per nome di colonna.
+   * Le colonne assenti (o con valore null) prendono il default del db.
+   * @param row valori per nome di colonna
+   * @throws DataSetException se una colonna non esiste
+   * @throws SQLException
+   */
+  public void write(Map<String, Object> row)
+     throws DataSetException, SQLException
+  {
+    Record rec = newRow();
+
+    for(Map.Entry<String, Object> e : row.entrySet())
+    {
+      int pos = schema.index(e.getKey());
+      if(e.getValue() != null)
+        rec.setObject(pos, e.getValue());
+    }
+
+    written();
+  }
+
+  /**
+   * Scrive una riga con i valori indicati nell'ordine delle colonne della tabella.
+   * Possono essere indicate meno colonne di quelle della tabella;
+   * i valori null prendono il default del db.
+   * @param values valori per posizione
+   * @throws DataSetException se i valori sono più delle colonne
+   * @throws SQLException
+   */
+  public void write(Object... values)
+     throws DataSetException, SQLException
+  {
+    if(values.length > schema.numberOfColumns())
+      throw new DataSetException("Too many values: table " + tableName
+         + " has only " + schema.numberOfColumns() + " columns.");
+
+    Record rec = newRow();
+
+    for(int i = 0; i < values.length; i++)
+    {
+      if(values[i] != null)
+        rec.setObject(i + 1, values[i]);
+    }
+
+    written();
+  }
+
+  private Record newRow()
+     throws DataSetException, SQLException
+  {
+    if(closed)
+      throw new DataSetException("TableWriter is closed.");
+
+    if(pending >= getMaxPendingRows())
+      throw new DataSetException("Too many rows waiting for a successful flush on table "
+         + tableName + " (" + pending + "): write rejected.");
+
+    if(pending == 0)
+      firstPendingNanos = System.nanoTime();
+
+    return tds.addRecord();
+  }
+
+  private void written()
+     throws DataSetException, SQLException
+  {
+    pending++;
+    rowsWritten++;
+
+    if(pending >= flushRows)
+      flush();
+    else
+      flushIfDue();
+  }
+
+  /**
+   * Esegue il flush se la riga più vecchia in attesa ha superato flushMillis.
+   * @return vero se il flush è stato eseguito
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  public boolean flushIfDue()
+     throws DataSetException, SQLException
+  {
+    if(pending == 0 || flushMillis <= 0)
+      return false;
+
+    if((System.nanoTime() - firstPendingNanos) / 1000000L < flushMillis)
+      return false;
+
+    flush();
+    return true;
+  }
+
+  /**
+   * Inserisce le righe in attesa.
+   * Se non è in una transazione del chiamante (setInTransaction()) ogni flush
+   * viene confermato con un commit.
+   * In caso di errore le righe non inserite restano in attesa per il flush successivo
+   * (al massimo getMaxPendingRows(), poi write() rifiuta le nuove righe);
+   * con una politica di errore diversa da ON_ERROR_FAIL (setErrorPolicy())
+   * le righe in errore vengono invece scartate e contate in getRowsFailed().
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  public void flush()
+     throws DataSetException, SQLException
+  {
+    if(pending == 0)
+      return;
+
+    long start = System.nanoTime();
+    try
+    {
+      lastResult = tds.saveWithResult(conn, inTransaction);
+      rowsFlushed += lastResult.getSaved();
+      rowsFailed += lastResult.getFailed();
+      flushes++;
+      tds.clearRecords();
+      pending = 0;
+    }
+    finally
+    {
+      flushNanos += System.nanoTime() - start;
+
+      if(pending > 0)
+      {
+        // tiene solo le righe non ancora inserite
+        tds.records.removeIf((rec) -> !rec.needsToBeSaved());
+        pending = tds.records.size();
+        firstPendingNanos = System.nanoTime();
+      }
+    }
+  }
+
+  /**
+   * Esegue il flush delle righe in attesa e chiude il writer.
+   * Il writer viene chiuso anche se il flush fallisce.
+   * La connessione non viene chiusa.
+   * @throws DataSetException
+   * @throws SQLException
+   */
+  @Override
+  public void close()
+     throws DataSetException, SQLException
+  {
+    if(closed)
+      return;
+
+    try
+    {
+      flush();
+    }
+    finally
+    {
+      closed = true;
+
+      try
+      {
+        tds.close();
+      }
+      catch(IOException ex)
+      {
+        // il flush è già stato eseguito
+      }
+    }
+  }
+
+  public boolean isClosed()
+  {
+    return closed;
+  }
+
+  public int getFlushRows()
+  {
+    return flushRows;
+  }
+
+  /**
+   * Numero di righe in attesa che provoca il flush (e dimensione dei blocchi di inserimento).
+   * @param flushRows numero di righe (almeno 1)
+   */
+  public void setFlushRows(int flushRows)
+  {
+    this.flushRows = Math.max(1, flushRows);
+    tds.setSaveBatchSize(this.flushRows);
+    tds.setCommitInterval(inTransaction ? 0 : this.flushRows);
+  }
+
+  public long getFlushMillis()
+  {
+    return flushMillis;
+  }
+
+  /**
+   * Tempo massimo di attesa della riga più vecchia prima del flush.
+   * @param flushMillis millisecondi; 0 (default) nessuna soglia di tempo
+   */
+  public void setFlushMillis(long flushMillis)
+  {
+    this.flushMillis = flushMillis;
+  }
+
+  public boolean isInTransaction()
+  {
+    return inTransaction;
+  }
+
+  /**
+   * Indica se il writer lavora dentro una transazione del chiamante:
+   * in questo caso i flush non eseguono commit.
+   * @param inTransaction vero se la transazione è gestita dal chiamante
+   */
+  public void setInTransaction(boolean inTransaction)
+  {
+    this.inTransaction = inTransaction;
+    tds.setCommitInterval(inTransaction ? 0 : flushRows);
+  }
+
+  /**
+   * Usa INSERT con più righe se il database lo permette (default vero).
+   * @param multiRowInsert vero per attivare
+   */
+  public void setMultiRowInsert(boolean multiRowInsert)
+  {
+    tds.setMultiRowInsert(multiRowInsert);
+  }
+
+  /**
+   * Comportamento in caso di errore (vedi TableSaveEngine.setErrorPolicy()).
+   * @param errorPolicy una delle costanti TableSaveEngine.ON_ERROR_...
+   */
+  public void setErrorPolicy(int errorPolicy)
+  {
+    tds.setSaveErrorPolicy(errorPolicy);
+  }
+
+  public Schema getSchema()
+  {
+    return schema;
+  }
+
+  /**
+   * Righe in attesa del flush.
+   * @return numero di righe
+   */
+  public int getPendingRows()
+  {
+    return pending;
+  }
+
+  /**
+   * Numero massimo di righe in attesa: raggiunto dopo flush falliti,
+   * le scritture successive vengono rifiutate.
+   * @return il doppio di getFlushRows()
+   */
+  public int getMaxPendingRows()
+  {
+    return 2 * flushRows;
+  }
+
+  /**
+   * Righe scritte (in attesa, inserite o scartate).
+   * @return numero di righe
+   */
+  public long getRowsWritten()
+  {
+    return rowsWritten;
+  }
+
+  /**
+   * Righe inserite nel db.
+   * @return numero di righe
+   */
+  public long getRowsFlushed()
+  {
+    return rowsFlushed;
+  }
+
+  /**
+   * Righe scartate per errore (solo con politiche di errore diverse da ON_ERROR_FAIL).
+   * @return numero di righe
+   */
+  public long getRowsFailed()
+  {
+    return rowsFailed;
+  }
+
+  public long getFlushes()
+  {
+    return flushes;
+  }
+
+  /**
+   * Tempo totale speso nei flush.
+   * @return millisecondi
+   */
+  public long getFlushMillisTotal()
+  {
+    return flushNanos / 1000000L;
+  }
+
+  /**
+   * Velocità di inserimento considerando solo il tempo dei flush.
+   * @return righe al secondo
+   */
+  public double getFlushRowsPerSecond()
+  {
+    return flushNanos == 0 ? 0 : rowsFlushed * 1000000000.0 / flushNanos;
+  }
+
+  /**
+   * Velocità di inserimento dalla creazione del writer.
+   * @return righe al secondo
+   */
+  public double getRowsPerSecond()
+  {
+    long elapsed = System.nanoTime() - startNanos;
+    return elapsed == 0 ? 0 : rowsFlushed * 1000000000.0 / elapsed;
+  }
+
+  /**
+   * Risultato dell'ultimo flush riuscito.
+   * @return risultato oppure null se nessun flush
+   */
+  public SaveResult getLastResult()
+  {
+    return lastResult;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("TableWriter{table=%s, written=%d, flushed=%d, failed=%d, pending=%d, flushes=%d, rows/s=%.0f}",
+       tableName, rowsWritten, rowsFlushed, rowsFailed, pending, flushes, getRowsPerSecond());
+  }
+}
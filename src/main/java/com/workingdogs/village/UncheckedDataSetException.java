@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+/**
+ * Eccezione non controllata che trasporta un errore SQL o di DataSet
+ * dove le interfacce standard non permettono eccezioni controllate
+ * (Iterator, Spliterator, Stream).
+ * La causa originale è disponibile con getCause().
+ *
+ * @author Nicola De Nisco
+ */
+public class UncheckedDataSetException
+   extends RuntimeException
+{
+  private static final long serialVersionUID = 4821766107313318823L;
+
+  public UncheckedDataSetException(Throwable cause)
+  {
+    super(cause.getMessage(), cause);
+  }
+
+  public UncheckedDataSetException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
+}
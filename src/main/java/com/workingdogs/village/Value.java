@@ -18,8 +18,11 @@ package com.workingdogs.village;
  * specific language governing permissions and limitations
  * under the License.
  */
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigDecimal;
-import java.sql.Blob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -79,125 +82,7 @@ public class Value
       return;
     }
 
-    switch(type())
-    {
-      case Types.BIT:
-
-        String tmp = rs.getString(columnNumber);
-
-        if(tmp == null)
-        {
-          valueObject = Boolean.FALSE;
-        }
-        else if(isTrue(tmp))
-        {
-          valueObject = Boolean.TRUE;
-        }
-        else
-        {
-          valueObject = Boolean.FALSE;
-        }
-
-        break;
-
-      case Types.TINYINT:
-        valueObject = rs.getByte(columnNumber);
-
-        break;
-
-      case Types.BIGINT:
-        valueObject = rs.getLong(columnNumber);
-
-        break;
-
-      case Types.SMALLINT:
-        valueObject = rs.getShort(columnNumber);
-
-        break;
-
-      case Types.INTEGER:
-        valueObject = rs.getInt(columnNumber);
-
-        break;
-
-      case Types.REAL:
-        valueObject = rs.getFloat(columnNumber);
-
-        break;
-
-      case Types.FLOAT:
-      case Types.DOUBLE:
-        valueObject = rs.getDouble(columnNumber);
-
-        break;
-
-      case Types.NUMERIC:
-      case Types.DECIMAL:
-
-        String number = rs.getString(columnNumber);
-
-        if(number == null)
-        {
-          valueObject = null;
-        }
-        else
-        {
-          valueObject = new BigDecimal(number);
-        }
-
-        break;
-
-      case Types.LONGVARBINARY:
-      case Types.VARBINARY:
-      case Types.BINARY:
-        valueObject = rs.getBytes(columnNumber);
-
-        break;
-
-      case Types.BLOB:
-        Blob blob = rs.getBlob(columnNumber);
-        valueObject = blob != null ? blob.getBytes(1, (int) blob.length()) : null;
-
-        break;
-
-      case Types.LONGVARCHAR:
-      case Types.CHAR:
-      case Types.VARCHAR:
-      case Types.OTHER:
-        valueObject = rs.getString(columnNumber);
-
-        break;
-
-      case Types.DATE:
-        valueObject = rs.getDate(columnNumber);
-
-        break;
-
-      case Types.TIME:
-        valueObject = rs.getTime(columnNumber);
-
-        break;
-
-      case Types.TIMESTAMP:
-        valueObject = rs.getTimestamp(columnNumber);
-
-        break;
-
-      case Types.NULL:
-        valueObject = null;
-
-        break;
-
-      default:
-        valueObject = rs.getString(columnNumber);
-
-        break;
-    }
-
-    if(rs.wasNull())
-    {
-      valueObject = null;
-    }
+    this.valueObject = ValueReader.forType(type).read(rs, columnNumber);
   }
 
   public Value(int columnNumber, Column col, int type, Object val)
@@ -270,6 +155,20 @@ public class Value
       return;
     }
 
+    if(isLob())
+    {
+      // il contenuto passa come stream senza caricarlo in memoria
+      LobHandle lob = (LobHandle) valueObject;
+      if(!lob.isCharacter())
+        stmt.setBinaryStream(stmtNumber, lob.bindInputStream(), lob.length());
+      else if(type() == Types.NCLOB || type() == Types.NCHAR
+         || type() == Types.NVARCHAR || type() == Types.LONGNVARCHAR)
+        stmt.setNCharacterStream(stmtNumber, lob.bindReader(), lob.length());
+      else
+        stmt.setCharacterStream(stmtNumber, lob.bindReader(), lob.length());
+      return;
+    }
+
     switch(type())
     {
       case Types.BIT:
@@ -377,12 +276,75 @@ public class Value
     {
       return new String((byte[]) valueObject);
     }
+    else if(isLob())
+    {
+      try
+      {
+        return ((LobHandle) valueObject).getString();
+      }
+      catch(SQLException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    }
     else
     {
       return valueObject.toString();
     }
   }
 
+  /**
+   * Ritorna uno stream per leggere il valore senza caricarlo in memoria.
+   * Lo stream è effettivo solo per i LOB letti come LobHandle (vedi DataSet.setLobMode());
+   * per gli altri valori viene costruito sul contenuto già in memoria.
+   * @return stream oppure null se il valore è null
+   * @throws DataSetException
+   */
+  public InputStream asInputStream()
+     throws DataSetException
+  {
+    if(isNull())
+      return null;
+
+    try
+    {
+      if(isLob())
+        return ((LobHandle) valueObject).getInputStream();
+    }
+    catch(SQLException ex)
+    {
+      throw new BadConversionException(columnNumber, column, ex);
+    }
+
+    return new ByteArrayInputStream(asBytes());
+  }
+
+  /**
+   * Ritorna un reader per leggere il valore senza caricarlo in memoria.
+   * Lo stream è effettivo solo per i LOB letti come LobHandle (vedi DataSet.setLobMode());
+   * per gli altri valori viene costruito sul contenuto già in memoria.
+   * @return reader oppure null se il valore è null
+   * @throws DataSetException
+   */
+  public Reader asReader()
+     throws DataSetException
+  {
+    if(isNull())
+      return null;
+
+    try
+    {
+      if(isLob())
+        return ((LobHandle) valueObject).getReader();
+    }
+    catch(SQLException ex)
+    {
+      throw new BadConversionException(columnNumber, column, ex);
+    }
+
+    return new StringReader(asString());
+  }
+
   public String asOkString()
   {
     return StringOper.okStr(asString());
@@ -762,6 +724,10 @@ public class Value
       {
         return ((String) valueObject).getBytes();
       }
+      else if(isLob())
+      {
+        return ((LobHandle) valueObject).getBytes();
+      }
     }
     catch(Exception e)
     {
@@ -1482,6 +1448,34 @@ public class Value
     return valueObject == null;
   }
 
+  /**
+   * Is the value a LobHandle (see DataSet.setLobMode())
+   *
+   * @return true if is LobHandle
+   */
+  public boolean isLob()
+  {
+    return valueObject instanceof LobHandle;
+  }
+
+  /**
+   * Chiude lo stream del LOB passato allo statement di salvataggio.
+   */
+  void releaseLobStream()
+  {
+    if(isLob())
+      ((LobHandle) valueObject).releaseBindStream();
+  }
+
+  /**
+   * Chiude il LobHandle (locator o file temporaneo).
+   */
+  void closeLob()
+  {
+    if(isLob())
+      ((LobHandle) valueObject).close();
+  }
+
   /**
    * Is the value a isString
    *
@@ -1554,7 +1548,7 @@ public class Value
    *
    * @return true if (true || t | yes | y | 1)
    */
-  private boolean isTrue(String value)
+  static boolean isTrue(String value)
   {
     return (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("t")
        || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("si")
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Lettore del valore di una colonna dal resultset.
+ * Ogni lettore è specializzato per un tipo JDBC e produce lo stesso oggetto
+ * che viene conservato in Value (Integer per INTEGER, BigDecimal per NUMERIC, ecc.).
+ * Lo Schema prepara una volta sola l'array dei lettori (vedi Schema.getReaders())
+ * che viene poi usato per tutte le righe.
+ *
+ * @author Nicola De Nisco
+ */
+@FunctionalInterface
+public interface ValueReader
+{
+  /**
+   * Legge il valore della colonna dalla riga corrente.
+   * @param rs resultset posizionato sulla riga
+   * @param columnNumber colonna (1 based)
+   * @return il valore oppure null se SQL NULL
+   * @throws SQLException
+   */
+  public Object read(ResultSet rs, int columnNumber)
+     throws SQLException;
+
+  /**
+   * Ritorna il lettore per il tipo indicato e la modalità di lettura dei LOB.
+   * @param type tipo della colonna (java.sql.Types)
+   * @param lobMode una delle costanti LobHandle.LOB_...
+   * @return il lettore (mai null)
+   */
+  public static ValueReader forType(int type, int lobMode)
+  {
+    if(lobMode != LobHandle.LOB_MATERIALIZE)
+    {
+      boolean spill = lobMode == LobHandle.LOB_SPILL;
+
+      switch(type)
+      {
+        case Types.BLOB:
+          return spill ? BLOB_SPILL : BLOB_LOCATOR;
+        case Types.CLOB:
+          return spill ? CLOB_SPILL : CLOB_LOCATOR;
+        case Types.NCLOB:
+          return spill ? NCLOB_SPILL : NCLOB_LOCATOR;
+      }
+    }
+
+    return forType(type);
+  }
+
+  /**
+   * Ritorna il lettore per il tipo indicato.
+   * I lettori sono senza stato e possono essere condivisi.
+   * @param type tipo della colonna (java.sql.Types)
+   * @return il lettore (mai null)
+   */
+  public static ValueReader forType(int type)
+  {
+    switch(type)
+    {
+      case Types.BIT:
+        return BIT;
+      case Types.TINYINT:
+        return TINYINT;
+      case Types.BIGINT:
+        return BIGINT;
+      case Types.SMALLINT:
+        return SMALLINT;
+      case Types.INTEGER:
+        return INTEGER;
+      case Types.REAL:
+        return REAL;
+      case Types.FLOAT:
+      case Types.DOUBLE:
+        return DOUBLE;
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        return NUMERIC;
+      case Types.LONGVARBINARY:
+      case Types.VARBINARY:
+      case Types.BINARY:
+        return BINARY;
+      case Types.BLOB:
+        return BLOB;
+      case Types.DATE:
+        return DATE;
+      case Types.TIME:
+        return TIME;
+      case Types.TIMESTAMP:
+        return TIMESTAMP;
+      case Types.NULL:
+        return NULL;
+      default:
+        return STRING;
+    }
+  }
+
+  // per i tipi primitivi wasNull() serve solo quando il driver ritorna 0/false
+  public static final ValueReader BIT = (rs, col) ->
+  {
+    String tmp = rs.getString(col);
+    return tmp == null ? null : Value.isTrue(tmp);
+  };
+
+  public static final ValueReader TINYINT = (rs, col) ->
+  {
+    byte v = rs.getByte(col);
+    return v == 0 && rs.wasNull() ? null : v;
+  };
+
+  public static final ValueReader SMALLINT = (rs, col) ->
+  {
+    short v = rs.getShort(col);
+    return v == 0 && rs.wasNull() ? null : v;
+  };
+
+  public static final ValueReader INTEGER = (rs, col) ->
+  {
+    int v = rs.getInt(col);
+    return v == 0 && rs.wasNull() ? null : v;
+  };
+
+  public static final ValueReader BIGINT = (rs, col) ->
+  {
+    long v = rs.getLong(col);
+    return v == 0 && rs.wasNull() ? null : v;
+  };
+
+  public static final ValueReader REAL = (rs, col) ->
+  {
+    float v = rs.getFloat(col);
+    return v == 0 && rs.wasNull() ? null : v;
+  };
+
+  public static final ValueReader DOUBLE = (rs, col) ->
+  {
+    double v = rs.getDouble(col);
+    return v == 0 && rs.wasNull() ? null : v;
+  };
+
+  // i getter che ritornano oggetti ritornano già null per SQL NULL
+  public static final ValueReader NUMERIC = (rs, col) -> rs.getBigDecimal(col);
+
+  public static final ValueReader BINARY = (rs, col) -> rs.getBytes(col);
+
+  public static final ValueReader BLOB = (rs, col) ->
+  {
+    Blob blob = rs.getBlob(col);
+    return blob != null ? blob.getBytes(1, (int) blob.length()) : null;
+  };
+
+  // LOB come riferimento (vedi LobHandle)
+  public static final ValueReader BLOB_LOCATOR = (rs, col) ->
+  {
+    Blob blob = rs.getBlob(col);
+    return blob != null ? LobHandle.of(blob) : null;
+  };
+
+  public static final ValueReader BLOB_SPILL = (rs, col) ->
+  {
+    Blob blob = rs.getBlob(col);
+    return blob != null ? LobHandle.spill(blob) : null;
+  };
+
+  public static final ValueReader CLOB_LOCATOR = (rs, col) ->
+  {
+    Clob clob = rs.getClob(col);
+    return clob != null ? LobHandle.of(clob) : null;
+  };
+
+  public static final ValueReader CLOB_SPILL = (rs, col) ->
+  {
+    Clob clob = rs.getClob(col);
+    return clob != null ? LobHandle.spill(clob) : null;
+  };
+
+  public static final ValueReader NCLOB_LOCATOR = (rs, col) ->
+  {
+    Clob clob = rs.getNClob(col);
+    return clob != null ? LobHandle.of(clob) : null;
+  };
+
+  public static final ValueReader NCLOB_SPILL = (rs, col) ->
+  {
+    Clob clob = rs.getNClob(col);
+    return clob != null ? LobHandle.spill(clob) : null;
+  };
+
+  public static final ValueReader STRING = (rs, col) -> rs.getString(col);
+
+  public static final ValueReader DATE = (rs, col) -> rs.getDate(col);
+
+  public static final ValueReader TIME = (rs, col) -> rs.getTime(col);
+
+  public static final ValueReader TIMESTAMP = (rs, col) -> rs.getTimestamp(col);
+
+  public static final ValueReader NULL = (rs, col) -> null;
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class ColumnarDataSetTest
+{
+  public final DerbyTestHelper th = new DerbyTestHelper();
+  public static final String SQL = "SELECT * FROM stp.transcode ORDER BY app, codice_vero";
+
+  public ColumnarDataSetTest()
+  {
+  }
+
+  @Before
+  public void setUp()
+     throws Exception
+  {
+    th.init();
+    if(!th.existTable("stp.transcode"))
+      th.buildDb1();
+  }
+
+  @After
+  public void tearDown()
+     throws Exception
+  {
+    th.shutdown();
+  }
+
+  /**
+   * I record ricostruiti dalle colonne devono essere uguali a quelli di QueryDataSet.
+   */
+  @Test
+  public void testSameAsQueryDataSet()
+     throws Exception
+  {
+    System.out.println("ColumnarDataSet vs QueryDataSet");
+    List<Record> expected = QueryDataSet.fetchAllRecords(th.con, SQL);
+
+    try(ColumnarDataSet cds = new ColumnarDataSet(th.con, SQL))
+    {
+      cds.fetchRecords();
+      assertEquals(th.getTotalRecords(), cds.size());
+      assertEquals(expected.size(), cds.size());
+
+      for(int row = 0; row < cds.size(); row++)
+      {
+        Record re = expected.get(row);
+        Record rc = cds.getRecord(row);
+        assertEquals(re.size(), rc.size());
+
+        for(int col = 1; col <= re.size(); col++)
+        {
+          assertEquals(re.getValue(col).getValue(), rc.getValue(col).getValue());
+          assertEquals(re.getValue(col).isNull(), cds.isNull(row, col));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testColumnAccess()
+     throws Exception
+  {
+    System.out.println("accesso per colonne");
+    try(ColumnarDataSet cds = new ColumnarDataSet(th.con, SQL))
+    {
+      cds.fetchRecords();
+
+      int app = cds.schema().index("app");
+      int validita = cds.schema().index("validita");
+      int statoRec = cds.schema().index("stato_rec");
+
+      assertEquals("a", cds.getString(0, app));
+      assertEquals("CODVERO1", cds.getValue(0, "codice_vero").asString());
+      assertTrue(cds.isNull(0, validita));
+      assertNull(cds.getObject(0, validita));
+
+      // valori distinti della colonna app: a, c, d
+      assertEquals(3, cds.getDictionarySize(app));
+      assertEquals(-1, cds.getDictionarySize(statoRec));
+
+      int sum = 0;
+      for(int row = 0; row < cds.size(); row++)
+        sum += cds.getInt(row, statoRec);
+      assertEquals(6, sum);
+
+      int count = 0;
+      for(Record r : cds)
+      {
+        assertNotNull(r.getValue("codice_app").asString());
+        count++;
+      }
+      assertEquals(th.getTotalRecords(), count);
+      assertEquals(th.getTotalRecords(), cds.stream().parallel().count());
+
+      cds.clearRecords();
+      assertEquals(0, cds.size());
+    }
+  }
+
+  @Test
+  public void testDictionaryLimit()
+     throws Exception
+  {
+    System.out.println("limite del dizionario");
+    try(ColumnarDataSet ref = new ColumnarDataSet(th.con, SQL);
+       ColumnarDataSet cds = new ColumnarDataSet(th.con, SQL))
+    {
+      ref.fetchRecords();
+      cds.setMaxDictionarySize(2);
+      cds.fetchRecords();
+
+      // codice_vero ha un valore diverso per ogni riga
+      int codVero = cds.schema().index("codice_vero");
+      assertEquals(2, cds.getDictionarySize(codVero));
+      assertEquals(ref.size(), cds.size());
+      assertEquals(ref.size(), ref.getDictionarySize(codVero));
+
+      for(int row = 0; row < cds.size(); row++)
+      {
+        assertEquals(ref.getString(row, codVero), cds.getString(row, codVero));
+        assertEquals(ref.isNull(row, codVero), cds.isNull(row, codVero));
+      }
+    }
+  }
+
+  @Test
+  public void testFetchPartial()
+     throws Exception
+  {
+    System.out.println("fetch parziale");
+    try(ColumnarDataSet cds = new ColumnarDataSet(th.con, SQL))
+    {
+      cds.fetchRecords(2, 3);
+      assertEquals(3, cds.size());
+      assertEquals("CODVERO3", cds.getValue(0, "codice_vero").asString());
+
+      try
+      {
+        cds.getRecord(3);
+        fail("record fuori range");
+      }
+      catch(DataSetException ex)
+      {
+        // atteso
+      }
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lettura e scrittura di BLOB/CLOB come stream.
+ *
+ * @author Nicola De Nisco
+ */
+public class LobHandleTest
+{
+  public final DerbyTestHelper th = new DerbyTestHelper();
+
+  public static final String LOB_TABLE = "stp.lob_test";
+  public static final int LOB_SIZE = 200000;
+
+  private byte[] data;
+  private String text;
+
+  public LobHandleTest()
+  {
+  }
+
+  @Before
+  public void setUp()
+     throws Exception
+  {
+    th.init();
+    buildLobTable();
+  }
+
+  @After
+  public void tearDown()
+     throws Exception
+  {
+    th.shutdown();
+  }
+
+  @Test
+  public void testMaterialize()
+     throws Exception
+  {
+    System.out.println("LOB_MATERIALIZE");
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + LOB_TABLE + " WHERE id=1"))
+    {
+      qds.fetchRecords();
+      Record r = qds.getRecord(0);
+      assertFalse(r.getValue("dati").isLob());
+      assertArrayEquals(data, r.getValue("dati").asBytes());
+      assertEquals(text, r.getValue("testo").asString());
+    }
+  }
+
+  @Test
+  public void testLocator()
+     throws Exception
+  {
+    System.out.println("LOB_LOCATOR");
+    // i locator sono validi solo all'interno della transazione
+    th.con.setAutoCommit(false);
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + LOB_TABLE + " WHERE id=1"))
+    {
+      qds.setLobMode(LobHandle.LOB_LOCATOR);
+      qds.fetchRecords();
+      Record r = qds.getRecord(0);
+
+      Value dati = r.getValue("dati");
+      assertTrue(dati.isLob());
+      assertEquals(LOB_SIZE, ((LobHandle) dati.getValue()).length());
+      assertArrayEquals(data, readAll(dati.asInputStream()));
+
+      Value testo = r.getValue("testo");
+      assertTrue(testo.isLob());
+      assertTrue(((LobHandle) testo.getValue()).isCharacter());
+      assertEquals(text, readAll(testo.asReader()));
+      assertEquals(text, testo.asString());
+      assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), readAll(testo.asInputStream()));
+
+      ((LobHandle) dati.getValue()).close();
+      ((LobHandle) testo.getValue()).close();
+    }
+    finally
+    {
+      th.con.commit();
+      th.con.setAutoCommit(true);
+    }
+  }
+
+  @Test
+  public void testSpill()
+     throws Exception
+  {
+    System.out.println("LOB_SPILL");
+    LobHandle dati, testo;
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + LOB_TABLE + " WHERE id=1"))
+    {
+      qds.setLobMode(LobHandle.LOB_SPILL);
+      qds.fetchRecords();
+      Record r = qds.getRecord(0);
+      dati = (LobHandle) r.getValue("dati").getValue();
+      testo = (LobHandle) r.getValue("testo").getValue();
+
+      assertTrue(dati.isSpilled());
+      assertEquals(LOB_SIZE, dati.length());
+      MappedByteBuffer mb = dati.map();
+      assertEquals(LOB_SIZE, mb.remaining());
+      assertEquals(data[12345], mb.get(12345));
+      assertArrayEquals(data, dati.getBytes());
+      assertEquals(text, testo.getString());
+    }
+
+    // la chiusura del dataset cancella i file temporanei
+    assertFalse(dati.isSpilled());
+    assertFalse(testo.isSpilled());
+  }
+
+  @Test
+  public void testInvalidLobMode()
+     throws Exception
+  {
+    System.out.println("modalità LOB non valida");
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + LOB_TABLE + " WHERE id=1"))
+    {
+      try
+      {
+        qds.setLobMode(3);
+        fail("modalità non valida");
+      }
+      catch(DataSetException ex)
+      {
+        // atteso
+      }
+
+      assertEquals(LobHandle.LOB_MATERIALIZE, qds.getLobMode());
+    }
+  }
+
+  @Test
+  public void testSaveStream()
+     throws Exception
+  {
+    System.out.println("salvataggio LobHandle");
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + LOB_TABLE + " WHERE id=1");
+       TableDataSet tds = new TableDataSet(th.con, LOB_TABLE))
+    {
+      qds.setLobMode(LobHandle.LOB_SPILL);
+      qds.fetchRecords();
+      Record src = qds.getRecord(0);
+
+      // copia della riga: i LOB passano al db come stream dai file temporanei
+      Record r = tds.addRecord();
+      r.setValue("id", 2);
+      r.setValue("dati", src.getValue("dati"));
+      r.setValue("testo", src.getValue("testo"));
+      r.save();
+    }
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + LOB_TABLE + " WHERE id=2"))
+    {
+      qds.fetchRecords();
+      Record r = qds.getRecord(0);
+      assertArrayEquals(data, r.getValue("dati").asBytes());
+      assertEquals(text, r.getValue("testo").asString());
+    }
+  }
+
+  private static byte[] readAll(InputStream in)
+     throws Exception
+  {
+    try(InputStream is = in)
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while((n = is.read(buffer)) != -1)
+        out.write(buffer, 0, n);
+      return out.toByteArray();
+    }
+  }
+
+  private static String readAll(Reader in)
+     throws Exception
+  {
+    try(Reader rd = in)
+    {
+      StringBuilder sb = new StringBuilder();
+      char[] buffer = new char[4096];
+      int n;
+      while((n = rd.read(buffer)) != -1)
+        sb.append(buffer, 0, n);
+      return sb.toString();
+    }
+  }
+
+  private void buildLobTable()
+     throws Exception
+  {
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("DROP TABLE " + LOB_TABLE);
+    }
+    catch(SQLException ex)
+    {
+      // la tabella non esiste
+    }
+
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE " + LOB_TABLE
+         + " (id INTEGER NOT NULL PRIMARY KEY, dati BLOB(1M), testo CLOB(1M))");
+    }
+
+    data = new byte[LOB_SIZE];
+    StringBuilder sb = new StringBuilder(LOB_SIZE);
+    for(int i = 0; i < LOB_SIZE; i++)
+    {
+      data[i] = (byte) (i * 31);
+      sb.append((char) ('a' + (i % 26)));
+    }
+    text = sb.toString();
+
+    try(PreparedStatement ps = th.con.prepareStatement("INSERT INTO " + LOB_TABLE + " VALUES (1, ?, ?)"))
+    {
+      ps.setBinaryStream(1, new ByteArrayInputStream(data), data.length);
+      ps.setCharacterStream(2, new StringReader(text), text.length());
+      ps.executeUpdate();
+    }
+  }
+}
@@ -17,9 +17,20 @@
 package com.workingdogs.village;
 
 import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.commonlib5.utils.Pair;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -98,4 +109,146 @@ public class LocalPrimaryCacheTest
     int result = instance.findInPrimary(metaSchemaName, metaTableName, metaColumnName);
     assertEquals(expResult, result);
   }
+
+  @Test
+  public void testTableNameIndex()
+     throws Exception
+  {
+    System.out.println("tableNameIndex");
+    DatabaseMetaData meta = th.con.getMetaData();
+    TableNameIndex.invalidate(meta.getURL());
+    TableNameIndex idx = TableNameIndex.get(meta.getURL(), th.con.getCatalog());
+
+    Pair<String, String> p = idx.resolve(meta, "stp", "transcode");
+    assertEquals("STP", p.first);
+    assertEquals("TRANSCODE", p.second);
+    long reloads = idx.getReloads();
+
+    // le ricerche successive non leggono i metadati
+    p = idx.resolve(meta, "Stp", "TransCode");
+    assertEquals("TRANSCODE", p.second);
+    assertEquals(reloads, idx.getReloads());
+
+    // una tabella creata dopo il caricamento viene trovata rileggendo lo schema
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE stp.idx_tmp (id INTEGER NOT NULL PRIMARY KEY)");
+    }
+    try
+    {
+      p = idx.resolve(meta, "stp", "idx_tmp");
+      assertEquals("IDX_TMP", p.second);
+      assertEquals(reloads + 1, idx.getReloads());
+
+      LocalPrimaryCache instance = new LocalPrimaryCache(th.con.getCatalog(), meta);
+      assertEquals(1, instance.findInPrimary("stp", "idx_tmp", "ID"));
+    }
+    finally
+    {
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("DROP TABLE stp.idx_tmp");
+      }
+    }
+
+    // un nome inesistente provoca una sola rilettura
+    reloads = idx.getReloads();
+    assertNull(idx.resolve(meta, "stp", "non_esiste"));
+    assertNull(idx.resolve(meta, "stp", "non_esiste"));
+    assertEquals(reloads + 1, idx.getReloads());
+  }
+
+  @Test
+  public void testConcurrentLoadAndTtl()
+     throws Exception
+  {
+    System.out.println("concurrentLoadAndTtl");
+    DatabaseMetaData meta = th.con.getMetaData();
+    LocalPrimaryCache.invalidate(meta.getURL());
+
+    // più thread sulla stessa tabella: una sola lettura dal db
+    long loads = LocalPrimaryCache.getLoads();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try
+    {
+      List<Callable<Integer>> tasks = new ArrayList<>();
+      for(int i = 0; i < 8; i++)
+        tasks.add(() -> new LocalPrimaryCache(th.con.getCatalog(), meta).findInPrimary("stp", "transcode", "codice_vero"));
+
+      for(Future<Integer> f : pool.invokeAll(tasks))
+        assertEquals(3, (int) f.get());
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+    assertEquals(loads + 1, LocalPrimaryCache.getLoads());
+
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE stp.nopk_tmp (id INTEGER, descr VARCHAR(32))");
+    }
+    try
+    {
+      LocalPrimaryCache instance = new LocalPrimaryCache(th.con.getCatalog(), meta);
+
+      // tabella senza chiave primaria: resta in cache
+      loads = LocalPrimaryCache.getLoads();
+      assertEquals(0, instance.findInPrimary("stp", "nopk_tmp", "id"));
+      assertEquals(0, instance.findInPrimary("STP", "NOPK_TMP", "ID"));
+      assertEquals(loads + 1, LocalPrimaryCache.getLoads());
+
+      // con la scadenza la chiave aggiunta viene vista senza riavvio
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("ALTER TABLE stp.nopk_tmp ALTER COLUMN id NOT NULL");
+        st.executeUpdate("ALTER TABLE stp.nopk_tmp ADD CONSTRAINT nopk_tmp_pkey PRIMARY KEY (id)");
+      }
+
+      LocalPrimaryCache.setNegativeTtlMillis(1);
+      Thread.sleep(10);
+      assertEquals(1, instance.findInPrimary("stp", "nopk_tmp", "id"));
+      assertEquals(loads + 2, LocalPrimaryCache.getLoads());
+    }
+    finally
+    {
+      LocalPrimaryCache.setNegativeTtlMillis(0);
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("DROP TABLE stp.nopk_tmp");
+      }
+    }
+  }
+
+  /**
+   * Le classi derivate che ridefiniscono il vecchio creaInfoPerTabella()
+   * vengono ancora chiamate e ricevono una mappa che ignora maiuscole/minuscole.
+   * @throws java.lang.Exception
+   */
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testLegacyOverride()
+     throws Exception
+  {
+    System.out.println("legacyOverride");
+    DatabaseMetaData meta = th.con.getMetaData();
+    LocalPrimaryCache.invalidate(meta.getURL());
+
+    final List<Integer> seen = new ArrayList<>();
+    LocalPrimaryCache instance = new LocalPrimaryCache(th.con.getCatalog(), meta)
+    {
+      @Override
+      protected Map<String, Integer> creaInfoPerTabella(String key, Pair<String, String> nomi, String metaColumnName)
+         throws SQLException
+      {
+        Map<String, Integer> rv = super.creaInfoPerTabella(key, nomi, metaColumnName);
+        seen.add(rv.get("APP"));
+        return rv;
+      }
+    };
+
+    assertEquals(2, instance.findInPrimary("STP", "TRANSCODE", "TIPO"));
+    assertEquals(1, seen.size());
+    assertEquals(Integer.valueOf(1), seen.get(0));
+  }
 }
@@ -18,7 +18,10 @@ package com.workingdogs.village;
 
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.commonlib5.utils.Pair;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -163,6 +166,64 @@ public class QueryDataSetTest
     }
   }
 
+  @Test
+  public void testSqlPaging()
+     throws Exception
+  {
+    System.out.println("testSqlPaging");
+    final String sSQL = "SELECT * FROM stp.transcode ORDER BY codice_vero";
+    List<Record> all = QueryDataSet.fetchAllRecords(th.con, sSQL);
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL))
+    {
+      // senza paginazione la query viene eseguita dal costruttore
+      assertNotNull(qds.resultSet);
+    }
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL, true))
+    {
+      // con la paginazione il costruttore prepara la query senza eseguirla
+      assertTrue(qds.isSqlPaging());
+      assertNull(qds.resultSet);
+
+      qds.fetchRecords(4, 5);
+      assertEquals(5, qds.size());
+
+      for(int i = 0; i < qds.size(); i++)
+        assertEquals(all.get(i + 4).getValue("codice_vero").asString(),
+           qds.getRecord(i).getValue("codice_vero").asString());
+    }
+  }
+
+  @Test
+  public void testStreaming()
+     throws Exception
+  {
+    System.out.println("testStreaming");
+    final String sSQL = "SELECT * FROM stp.transcode";
+
+    int count1 = 0, count2 = 0;
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL, 5))
+    {
+      assertTrue(qds.isStreaming());
+      assertEquals(ResultSet.TYPE_FORWARD_ONLY, qds.resultSet().getType());
+
+      for(Record r : qds)
+        count1++;
+
+      // la seconda iterazione deve rieseguire la query
+      for(Record r : qds)
+        count2++;
+
+      int[] count3 = new int[1];
+      qds.fetchRecords(0, DataSet.ALL_RECORDS, (r) -> count3[0]++);
+      assertEquals(th.getTotalRecords(), count3[0]);
+    }
+
+    assertEquals(th.getTotalRecords(), count1);
+    assertEquals(th.getTotalRecords(), count2);
+  }
+
   @Test
   public void testIterable()
      throws Exception
@@ -190,4 +251,143 @@ public class QueryDataSetTest
     assertEquals(th.getTotalRecords(), count1);
     assertEquals(th.getTotalRecords(), count2);
   }
+
+  @Test
+  public void testStream()
+     throws Exception
+  {
+    System.out.println("stream");
+    final String sSQL = "SELECT * FROM stp.transcode ORDER BY app, codice_vero";
+    List<String> expected = new ArrayList<>();
+    for(Record r : QueryDataSet.fetchAllRecords(th.con, sSQL))
+      expected.add(r.getValue("codice_vero").asString());
+
+    try(Stream<Record> st = QueryDataSet.stream(th.con, sSQL))
+    {
+      List<String> codes = st.map((r) -> r.toString()).collect(Collectors.toList());
+      assertEquals(th.getTotalRecords(), codes.size());
+    }
+
+    // in parallelo l'ordine viene comunque rispettato
+    try(Stream<Record> st = QueryDataSet.stream(th.con, sSQL))
+    {
+      List<String> codes = st.parallel().map((r) ->
+      {
+        try
+        {
+          return r.getValue("codice_vero").asString();
+        }
+        catch(DataSetException ex)
+        {
+          throw new UncheckedDataSetException(ex);
+        }
+      }).collect(Collectors.toList());
+      assertEquals(expected, codes);
+    }
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL))
+    {
+      try(Stream<Record> st = qds.stream())
+      {
+        assertEquals(th.getTotalRecords(), st.count());
+      }
+
+      // dopo fetchRecords lo stream è sulla lista dei record
+      qds.fetchRecords();
+      assertEquals(th.getTotalRecords(), qds.stream().count());
+    }
+  }
+
+  @Test
+  public void testPipelinedFetch()
+     throws Exception
+  {
+    System.out.println("pipelined fetch");
+    final String sSQL = "SELECT * FROM stp.transcode ORDER BY app, codice_vero";
+    List<String> expected = new ArrayList<>();
+    for(Record r : QueryDataSet.fetchAllRecords(th.con, sSQL))
+      expected.add(r.getValue("codice_vero").asString());
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL))
+    {
+      qds.setPipelineBatchSize(2);
+      qds.setPipelineQueueSize(1);
+
+      List<String> codes = new ArrayList<>();
+      qds.fetchRecords(0, DataSet.ALL_RECORDS, (r) -> codes.add(r.getValue("codice_vero").asString()));
+      assertEquals(expected, codes);
+      assertEquals(th.getTotalRecords(), qds.lastFetchSize());
+      assertTrue(qds.allRecordsRetrieved());
+    }
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL))
+    {
+      qds.setPipelineBatchSize(4);
+
+      List<String> codes = new ArrayList<>();
+      qds.fetchRecords(3, 5, (r) -> codes.add(r.getValue("codice_vero").asString()));
+      assertEquals(expected.subList(3, 8), codes);
+    }
+
+    // un errore del consumer interrompe la lettura e viene rilanciato
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL))
+    {
+      qds.setPipelineBatchSize(2);
+
+      int[] count = new int[1];
+      try
+      {
+        qds.fetchRecords(0, DataSet.ALL_RECORDS, (r) ->
+        {
+          if(++count[0] == 3)
+            throw new IllegalStateException("stop");
+        });
+        fail("eccezione attesa");
+      }
+      catch(DataSetException ex)
+      {
+        assertTrue(ex.getCause() instanceof IllegalStateException);
+      }
+      assertEquals(3, count[0]);
+    }
+  }
+
+  @Test
+  public void testReuseRecords()
+     throws Exception
+  {
+    System.out.println("reuse records");
+    final String sSQL = "SELECT * FROM stp.transcode ORDER BY app, codice_vero";
+    List<String> expected = new ArrayList<>();
+    for(Record r : QueryDataSet.fetchAllRecords(th.con, sSQL))
+      expected.add(r.getValue("codice_vero").asString());
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, sSQL))
+    {
+      qds.setReuseRecords(true);
+
+      List<Record> seen = new ArrayList<>();
+      List<Record> copies = new ArrayList<>();
+      List<String> codes = new ArrayList<>();
+      qds.fetchRecords(0, DataSet.ALL_RECORDS, (r) ->
+      {
+        if(!seen.contains(r))
+          seen.add(r);
+        codes.add(r.getValue("codice_vero").asString());
+        copies.add(r.copy());
+      });
+
+      // sempre lo stesso record, aggiornato per ogni riga
+      assertEquals(1, seen.size());
+      assertEquals(expected, codes);
+      assertEquals(th.getTotalRecords(), qds.lastFetchSize());
+
+      // le copie non cambiano con le righe successive
+      List<String> copied = new ArrayList<>();
+      for(Record r : copies)
+        copied.add(r.getValue("codice_vero").asString());
+      assertEquals(expected, copied);
+      assertTrue(copies.get(0).recordIsClean());
+    }
+  }
 }
@@ -16,10 +16,20 @@
  */
 package com.workingdogs.village;
 
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Supplier;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -82,4 +92,151 @@ public class SchemaTest
       assertEquals(3, s.getPrimaryKeys().size());
     }
   }
+
+  @Test
+  public void testSchemaCache()
+     throws Exception
+  {
+    System.out.println("testSchemaCache");
+    SchemaCache cache = Schema.getSchemaCache();
+
+    Schema s1 = Schema.schema(th.con, "stp.transcode");
+    long hits = cache.getHits();
+    Schema s2 = Schema.schema(th.con, "stp.transcode");
+    assertSame(s1, s2);
+    assertEquals(hits + 1, cache.getHits());
+
+    long loads = cache.getLoads();
+    assertTrue(cache.invalidate(th.con, "stp.transcode") >= 1);
+    Schema s3 = Schema.schema(th.con, "stp.transcode");
+    assertNotSame(s1, s3);
+    assertEquals(loads + 1, cache.getLoads());
+    assertEquals(s1.numberOfColumns(), s3.numberOfColumns());
+
+    String url = th.con.getMetaData().getURL();
+    assertTrue(cache.invalidateUrl(url) >= 1);
+    assertNull(cache.getIfPresent(Schema.makeKeyHash(url, "stp", "transcode")));
+
+    // limite di dimensione: vengono rimossi gli schemi usati meno di recente
+    SchemaCache small = new SchemaCache(2);
+    small.put("a", new Schema());
+    small.put("b", new Schema());
+    assertNotNull(small.getIfPresent("a"));
+    small.put("c", new Schema());
+    assertEquals(2, small.size());
+    assertEquals(1, small.getEvictions());
+    assertNull(small.getIfPresent("b"));
+    assertNotNull(small.getIfPresent("a"));
+  }
+
+  @Test
+  public void testSchemaSnapshot()
+     throws Exception
+  {
+    System.out.println("testSchemaSnapshot");
+    SchemaCache cache = Schema.getSchemaCache();
+    File f = File.createTempFile("village", ".snp");
+
+    try
+    {
+      Schema s1 = Schema.schema(th.con, "stp.transcode");
+      assertTrue(SchemaSnapshot.save(th.con, f) >= 1);
+
+      cache.invalidateAll();
+      assertTrue(SchemaSnapshot.load(th.con, f) >= 1);
+
+      // lo schema arriva dallo snapshot senza leggere il db
+      long loads = cache.getLoads();
+      Schema s2 = Schema.schema(th.con, "stp.transcode");
+      assertNotSame(s1, s2);
+      assertEquals(loads, cache.getLoads());
+      assertEquals(s1.numberOfColumns(), s2.numberOfColumns());
+      assertEquals(3, s2.getPrimaryKeys().size());
+      assertEquals(s1.index("codice_app"), s2.index("codice_app"));
+      assertEquals(s1.column("ult_modif").typeEnum(), s2.column("ult_modif").typeEnum());
+
+      // una nuova tabella cambia l'impronta: il file viene ignorato
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("CREATE TABLE stp.snap_tmp (id INTEGER NOT NULL PRIMARY KEY)");
+      }
+      try
+      {
+        assertEquals(SchemaSnapshot.LOAD_STALE, SchemaSnapshot.load(th.con, f));
+      }
+      finally
+      {
+        try(Statement st = th.con.createStatement())
+        {
+          st.executeUpdate("DROP TABLE stp.snap_tmp");
+        }
+      }
+    }
+    finally
+    {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void testSchemaInitializer()
+     throws Exception
+  {
+    System.out.println("testSchemaInitializer");
+    SchemaCache cache = Schema.getSchemaCache();
+    String url = th.con.getMetaData().getURL();
+
+    cache.invalidateAll();
+    SchemaInitializer si = new SchemaInitializer();
+    si.setSchemaPattern("STP");
+    assertTrue(si.run(th.con) >= 1);
+    assertEquals(1, si.getSchemas());
+    System.out.println(si);
+
+    Schema s = cache.getIfPresent(Schema.makeKeyHash(url, "STP", "TRANSCODE"));
+    assertNotNull(s);
+    assertEquals(th.getColumnsCount(), s.numberOfColumns());
+    assertEquals(3, s.getPrimaryKeys().size());
+    assertEquals(1, s.index("app"));
+
+    // due schemi del db caricati in parallelo su connessioni diverse
+    Supplier<Connection> supplier = () ->
+    {
+      try
+      {
+        return DriverManager.getConnection(DerbyTestHelper.protocol + "target/derbyDB", th.props);
+      }
+      catch(SQLException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    };
+
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE stp2.init_tmp (id INTEGER NOT NULL PRIMARY KEY, descr VARCHAR(32))");
+    }
+    try
+    {
+      cache.invalidateAll();
+      si = new SchemaInitializer();
+      si.setConnectionSupplier(supplier, 2);
+      assertTrue(si.run(th.con) >= 2);
+      assertTrue(si.getSchemas() >= 2);
+
+      s = cache.getIfPresent(Schema.makeKeyHash(url, "STP2", "INIT_TMP"));
+      assertNotNull(s);
+      assertEquals(2, s.numberOfColumns());
+      assertEquals(1, s.getPrimaryKeys().size());
+      assertNotNull(cache.getIfPresent(Schema.makeKeyHash(url, "STP", "TRANSCODE")));
+    }
+    finally
+    {
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("DROP TABLE stp2.init_tmp");
+        st.executeUpdate("DROP SCHEMA stp2 RESTRICT");
+      }
+    }
+  }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class SqlDialectTest
+{
+  public SqlDialectTest()
+  {
+  }
+
+  /**
+   * Test of detectType method, of class SqlDialect.
+   */
+  @Test
+  public void testDetectType()
+  {
+    System.out.println("detectType");
+    assertEquals(Enums.POSTGRESQL, SqlDialect.detectType("PostgreSQL"));
+    assertEquals(Enums.MYSQL, SqlDialect.detectType("MariaDB"));
+    assertEquals(Enums.DERBY, SqlDialect.detectType("Apache Derby"));
+    assertEquals(Enums.ORACLE, SqlDialect.detectType("Oracle"));
+    assertEquals(Enums.SQLSERVER, SqlDialect.detectType("Microsoft SQL Server"));
+    assertEquals(Enums.UNKNOWN, SqlDialect.detectType("pippo"));
+  }
+
+  /**
+   * Test of buildPagedQuery method, of class SqlDialect.
+   */
+  @Test
+  public void testBuildPagedQuery()
+  {
+    System.out.println("buildPagedQuery");
+    String sql = "SELECT * FROM stp.transcode ORDER BY codice_vero";
+
+    assertEquals(sql + " LIMIT 10 OFFSET 20",
+       new SqlDialect(Enums.POSTGRESQL, 15).buildPagedQuery(sql, 20, 10));
+    assertEquals(sql + " OFFSET 20",
+       new SqlDialect(Enums.POSTGRESQL, 15).buildPagedQuery(sql, 20, DataSet.ALL_RECORDS));
+    assertEquals(sql + " OFFSET 20 ROWS FETCH NEXT 10 ROWS ONLY",
+       new SqlDialect(Enums.DERBY, 10).buildPagedQuery(sql, 20, 10));
+    assertEquals("SELECT * FROM (SELECT q_.*, ROWNUM rn_ FROM (" + sql + ") q_ WHERE ROWNUM <= 30) WHERE rn_ > 20",
+       new SqlDialect(Enums.ORACLE, 11).buildPagedQuery(sql, 20, 10));
+    assertEquals("SELECT * FROM t ORDER BY (SELECT NULL) OFFSET 0 ROWS FETCH NEXT 5 ROWS ONLY",
+       new SqlDialect(Enums.SQLSERVER, 15).buildPagedQuery("SELECT * FROM t", 0, 5));
+    assertNull(new SqlDialect(Enums.SYBASE, 16).buildPagedQuery(sql, 20, 10));
+    assertNull(new SqlDialect(Enums.POSTGRESQL, 15).buildPagedQuery("SELECT * FROM t FOR UPDATE", 20, 10));
+
+    // query già limitate o con clausole finali: nessuna riscrittura
+    SqlDialect pg = new SqlDialect(Enums.POSTGRESQL, 15);
+    SqlDialect derby = new SqlDialect(Enums.DERBY, 10);
+    assertNull(pg.buildPagedQuery("SELECT * FROM t ORDER BY a LIMIT 5", 20, 10));
+    assertNull(pg.buildPagedQuery("SELECT * FROM t ORDER BY a OFFSET 5", 20, 10));
+    assertNull(derby.buildPagedQuery("SELECT * FROM t ORDER BY a FETCH FIRST 5 ROWS ONLY", 20, 10));
+    assertNull(derby.buildPagedQuery("SELECT * FROM t ORDER BY a OFFSET 5 ROWS FETCH NEXT 5 ROWS ONLY", 20, 10));
+    assertNull(new SqlDialect(Enums.SQLSERVER, 15).buildPagedQuery("SELECT TOP 5 * FROM t ORDER BY a", 20, 10));
+    assertNull(derby.buildPagedQuery("SELECT * FROM t WITH UR", 20, 10));
+    assertNull(derby.buildPagedQuery("SELECT * FROM t FOR READ ONLY", 20, 10));
+
+    // le clausole nelle sottoquery o nelle stringhe non contano
+    assertEquals("SELECT * FROM (SELECT a FROM t LIMIT 5) x WHERE b <> 'TOP' LIMIT 10 OFFSET 20",
+       pg.buildPagedQuery("SELECT * FROM (SELECT a FROM t LIMIT 5) x WHERE b <> 'TOP'", 20, 10));
+  }
+
+  /**
+   * Test of findOuterKeyword method, of class SqlDialect.
+   */
+  @Test
+  public void testFindOuterKeyword()
+  {
+    System.out.println("findOuterKeyword");
+    assertEquals(-1, SqlDialect.findOuterKeyword("SELECT * FROM (SELECT a FROM t ORDER BY a) x", "ORDER BY"));
+    assertEquals(-1, SqlDialect.findOuterKeyword("SELECT 'ORDER BY' FROM t", "ORDER BY"));
+    assertEquals(16, SqlDialect.findOuterKeyword("SELECT a FROM t ORDER  BY a", "ORDER BY"));
+  }
+
+  /**
+   * Test of buildUpsert method, of class SqlDialect.
+   */
+  @Test
+  public void testBuildUpsert()
+     throws Exception
+  {
+    System.out.println("buildUpsert");
+    List<String> cols = Arrays.asList("ID", "NOME", "VALORE");
+    List<String> keys = Arrays.asList("ID");
+    List<Integer> bind = new ArrayList<>();
+
+    assertEquals("INSERT INTO t ( ID, NOME, VALORE ) VALUES ( ?, ?, ? ) ON CONFLICT ( ID ) "
+       + "DO UPDATE SET NOME = EXCLUDED.NOME, VALORE = EXCLUDED.VALORE",
+       new SqlDialect(Enums.POSTGRESQL, 15).buildUpsert("t", cols, keys, bind));
+    assertEquals(Arrays.asList(0, 1, 2), bind);
+
+    bind.clear();
+    assertEquals("INSERT INTO t ( ID, NOME, VALORE ) VALUES ( ?, ?, ? ) ON DUPLICATE KEY UPDATE "
+       + "NOME = VALUES(NOME), VALORE = VALUES(VALORE)",
+       new SqlDialect(Enums.MYSQL, 8).buildUpsert("t", cols, keys, bind));
+
+    bind.clear();
+    assertEquals("MERGE INTO t T USING SYSIBM.SYSDUMMY1 ON ( T.ID = ? ) "
+       + "WHEN MATCHED THEN UPDATE SET NOME = ?, VALORE = ? "
+       + "WHEN NOT MATCHED THEN INSERT ( ID, NOME, VALORE ) VALUES ( ?, ?, ? )",
+       new SqlDialect(Enums.DERBY, 10, 11).buildUpsert("t", cols, keys, bind));
+    assertEquals(Arrays.asList(0, 1, 2, 0, 1, 2), bind);
+
+    bind.clear();
+    assertEquals("MERGE INTO t T USING ( VALUES ( ?, ? ) ) AS S ( ID, NOME ) ON ( T.ID = S.ID ) "
+       + "WHEN MATCHED THEN UPDATE SET NOME = S.NOME "
+       + "WHEN NOT MATCHED THEN INSERT ( ID, NOME ) VALUES ( S.ID, S.NOME );",
+       new SqlDialect(Enums.SQLSERVER, 15).buildUpsert("t", Arrays.asList("ID", "NOME"), keys, bind));
+
+    try
+    {
+      new SqlDialect(Enums.SYBASE, 16).buildUpsert("t", cols, keys, bind);
+      fail("Sybase upsert must fail");
+    }
+    catch(DataSetException ex)
+    {
+      // atteso
+    }
+  }
+
+  /**
+   * Test of supportsUpsert method, of class SqlDialect.
+   */
+  @Test
+  public void testSupportsUpsert()
+  {
+    System.out.println("supportsUpsert");
+    assertFalse(new SqlDialect(Enums.POSTGRESQL, 8, 4).supportsUpsert());
+    assertFalse(new SqlDialect(Enums.POSTGRESQL, 9, 4).supportsUpsert());
+    assertTrue(new SqlDialect(Enums.POSTGRESQL, 9, 5).supportsUpsert());
+    assertTrue(new SqlDialect(Enums.POSTGRESQL, 10, 0).supportsUpsert());
+    assertFalse(new SqlDialect(Enums.DERBY, 10, 10).supportsUpsert());
+    assertTrue(new SqlDialect(Enums.DERBY, 10, 11).supportsUpsert());
+    assertFalse(new SqlDialect(Enums.SQLITE, 3, 23).supportsUpsert());
+    assertTrue(new SqlDialect(Enums.SQLITE, 3, 24).supportsUpsert());
+    assertTrue(new SqlDialect(Enums.SQLITE, 3, 45).supportsUpsert());
+  }
+}
@@ -16,13 +16,23 @@
  */
 package com.workingdogs.village;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -104,6 +114,77 @@ public class TableDataSetTest
      throws Exception
   {
     System.out.println("refresh");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.where("app='d'").order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(4, tds.size());
+
+      tds.getRecord(1).setValue("codice_app", "MODIFICATO");
+      assertFalse(tds.getRecord(1).recordIsClean());
+
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("UPDATE stp.transcode SET codice_app='CAMBIATO' WHERE app='d' AND codice_vero='CODVER13'");
+      }
+
+      tds.refresh(th.con);
+      assertTrue(tds.getRecord(1).recordIsClean());
+      assertEquals("CODAPP11", tds.getRecord(1).getValue("codice_app").asString());
+      assertEquals("CAMBIATO", tds.getRecord(3).getValue("codice_app").asString());
+    }
+    finally
+    {
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("UPDATE stp.transcode SET codice_app='CODAPP13' WHERE app='d' AND codice_vero='CODVER13'");
+      }
+    }
+  }
+
+  @Test
+  public void testRefreshRowNotFound()
+     throws Exception
+  {
+    System.out.println("refresh con riga cancellata");
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("INSERT INTO stp.transcode (app, tipo, codice_vero, codice_app) VALUES ('z', 'z', 'REF1', 'APP1')");
+      st.executeUpdate("INSERT INTO stp.transcode (app, tipo, codice_vero, codice_app) VALUES ('z', 'z', 'REF2', 'APP2')");
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.where("app='z'").order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(2, tds.size());
+
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("DELETE FROM stp.transcode WHERE app='z' AND codice_vero='REF1'");
+        st.executeUpdate("UPDATE stp.transcode SET codice_app='CAMBIATO' WHERE app='z' AND codice_vero='REF2'");
+      }
+
+      try
+      {
+        tds.refresh(th.con);
+        fail("riga non trovata");
+      }
+      catch(DataSetException ex)
+      {
+        // atteso
+      }
+
+      // gli altri record vengono comunque riletti
+      assertEquals("CAMBIATO", tds.getRecord(1).getValue("codice_app").asString());
+    }
+    finally
+    {
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("DELETE FROM stp.transcode WHERE app='z'");
+      }
+    }
   }
 
   /**
@@ -235,6 +316,41 @@ public class TableDataSetTest
     assertEquals(6, result.size());
   }
 
+  @Test
+  public void testSqlPaging()
+     throws Exception
+  {
+    System.out.println("testSqlPaging");
+    List<Record> all;
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.order("codice_vero");
+      all = tds.fetchAllRecords();
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSqlPaging(true);
+      tds.order("codice_vero");
+      tds.fetchRecords(2, 3);
+      assertEquals(3, tds.size());
+
+      for(int i = 0; i < tds.size(); i++)
+        assertEquals(all.get(i + 2).getValue("codice_vero").asString(),
+           tds.getRecord(i).getValue("codice_vero").asString());
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSqlPaging(true);
+      tds.order("codice_vero");
+      tds.fetchRecords(10, DataSet.ALL_RECORDS);
+      assertEquals(th.getTotalRecords() - 10, tds.size());
+      assertEquals(all.get(10).getValue("codice_vero").asString(),
+         tds.getRecord(0).getValue("codice_vero").asString());
+    }
+  }
+
   @Test
   public void testIterable()
      throws Exception
@@ -261,4 +377,703 @@ public class TableDataSetTest
     assertEquals(result.size(), count1);
     assertEquals(result.size(), count2);
   }
+
+  @Test
+  public void testLazyRecords()
+     throws Exception
+  {
+    System.out.println("testLazyRecords");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setLazyRecords(true);
+      tds.where("codice_vero='CODVERO1'");
+      tds.fetchRecords();
+      assertEquals(1, tds.size());
+
+      Record r = tds.getRecord(0);
+      int pos = r.schema().index("codice_app");
+      assertFalse(r.isValueMaterialized(pos));
+      assertEquals("CODAPP1", r.getValue(pos).asString());
+      assertTrue(r.isValueMaterialized(pos));
+      assertFalse(r.isValueMaterialized(r.schema().index("ult_modif")));
+
+      // la modifica di una colonna non letta e il salvataggio funzionano come sempre
+      r.setValue("stato_rec", 5);
+      assertFalse(r.valueIsClean("stato_rec"));
+      assertTrue(r.valueIsClean("codice_app"));
+      r.save();
+    }
+
+    Record r = TableDataSet.fetchOneRecord("stp.transcode", "codice_vero='CODVERO1'", th.con);
+    assertEquals(5, r.getValue("stato_rec").asInt());
+    assertEquals("CODAPP1", r.getValue("codice_app").asString());
+
+    r.setValue("stato_rec", 0);
+    r.save(th.con);
+  }
+
+  @Test
+  public void testFetchPartitioned()
+     throws Exception
+  {
+    System.out.println("testFetchPartitioned");
+    Supplier<Connection> supplier = () ->
+    {
+      try
+      {
+        return DriverManager.getConnection(DerbyTestHelper.protocol + "target/derbyDB", th.props);
+      }
+      catch(SQLException ex)
+      {
+        throw new UncheckedDataSetException(ex);
+      }
+    };
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setPartitionColumn("stato_rec");
+      tds.fetchPartitioned(supplier, 3, true);
+      assertEquals(th.getTotalRecords(), tds.size());
+      assertTrue(tds.allRecordsRetrieved());
+
+      // ordinati per la colonna di partizione
+      int prev = Integer.MIN_VALUE;
+      for(int i = 0; i < tds.size(); i++)
+      {
+        Record r = tds.getRecord(i);
+        assertTrue(r.dataset() == tds);
+        int val = r.getValue("stato_rec").asInt();
+        assertTrue(val >= prev);
+        prev = val;
+      }
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setPartitionColumn("stato_rec");
+      tds.where("app='d'");
+      AtomicInteger count = new AtomicInteger();
+      tds.fetchPartitioned(supplier, 4, (r) -> count.incrementAndGet());
+      assertEquals(4, count.get());
+      assertEquals(0, tds.size());
+    }
+
+    // la chiave primaria composta non può essere usata per la partizione
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.fetchPartitioned(supplier, 2, true);
+      fail("chiave composta");
+    }
+    catch(DataSetException ex)
+    {
+      // atteso
+    }
+  }
+
+  @Test
+  public void testBatchSave()
+     throws Exception
+  {
+    System.out.println("testBatchSave");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(2);
+      tds.where("app='z'");
+      tds.fetchRecords();
+      assertEquals(0, tds.size());
+
+      // 5 inserimenti: stesse colonne per 4 record, una in più per l'ultimo
+      for(int i = 1; i <= 5; i++)
+      {
+        Record r = tds.addRecord();
+        r.setValue("app", "z");
+        r.setValue("tipo", "z");
+        r.setValue("codice_vero", "BATCH" + i);
+        r.setValue("codice_app", "APP" + i);
+        if(i == 5)
+          r.setValue("stato_rec", 7);
+      }
+      tds.save();
+
+      for(int i = 0; i < tds.size(); i++)
+      {
+        Record r = tds.getRecord(i);
+        assertEquals(Enums.AFTERINSERT, r.getSaveType());
+        assertTrue(r.recordIsClean());
+      }
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(2);
+      tds.where("app='z'").order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(5, tds.size());
+      assertEquals(7, tds.getRecord(4).getValue("stato_rec").asInt());
+
+      // aggiornamenti e cancellazioni nello stesso salvataggio
+      tds.getRecord(0).setValue("codice_app", "MOD1");
+      tds.getRecord(1).setValue("codice_app", "MOD2");
+      tds.getRecord(2).markToBeDeleted();
+      tds.save();
+
+      assertEquals(4, tds.size());
+      assertEquals(Enums.AFTERUPDATE, tds.getRecord(0).getSaveType());
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(3);
+      tds.where("app='z'").order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(4, tds.size());
+      assertEquals("MOD1", tds.getRecord(0).getValue("codice_app").asString());
+      assertEquals("MOD2", tds.getRecord(1).getValue("codice_app").asString());
+      assertEquals("BATCH4", tds.getRecord(2).getValue("codice_vero").asString());
+
+      for(int i = 0; i < tds.size(); i++)
+        tds.getRecord(i).markToBeDeleted();
+      tds.save();
+      assertEquals(0, tds.size());
+    }
+  }
+
+  @Test
+  public void testStatementCache()
+     throws Exception
+  {
+    System.out.println("testStatementCache");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setStatementCacheSize(4);
+      StatementCache sc = tds.getStatementCache();
+      assertNotNull(sc);
+      assertTrue(sc == StatementCache.get(th.con));
+
+      tds.where("app='d'");
+      tds.fetchRecords();
+      assertEquals(4, tds.size());
+
+      // stesso statement di update per tutti i record: preparato una volta sola
+      for(int i = 0; i < tds.size(); i++)
+      {
+        Record r = tds.getRecord(i);
+        r.setValue("codice_app", r.getValue("codice_app").asString() + "X");
+        r.save();
+      }
+      assertEquals(1, sc.getMisses());
+      assertEquals(3, sc.getHits());
+      assertEquals(1, sc.size());
+
+      for(int i = 0; i < tds.size(); i++)
+      {
+        Record r = tds.getRecord(i);
+        String val = r.getValue("codice_app").asString();
+        r.setValue("codice_app", val.substring(0, val.length() - 1));
+        r.save();
+      }
+      assertEquals(1, sc.getMisses());
+      assertEquals(7, sc.getHits());
+    }
+
+    // chiuso con il DataSet
+    assertTrue(StatementCache.get(th.con) == null);
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.where("app='d'");
+      tds.fetchRecords();
+      for(int i = 0; i < tds.size(); i++)
+        assertFalse(tds.getRecord(i).getValue("codice_app").asString().endsWith("X"));
+    }
+  }
+
+  @Test
+  public void testSqlTemplate()
+     throws Exception
+  {
+    System.out.println("testSqlTemplate");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.where("app='d'");
+      tds.fetchRecords();
+      assertEquals(4, tds.size());
+
+      Record r1 = tds.getRecord(0);
+      Record r2 = tds.getRecord(1);
+      r1.setValue("codice_app", "X1");
+      r2.setValue("codice_app", "X2");
+
+      // stesse colonne modificate: stesso statement dalla cache dello schema
+      String sql = r1.getUpdateSaveString();
+      assertTrue(sql == r2.getUpdateSaveString());
+      assertTrue(sql.startsWith("UPDATE "));
+      assertTrue(sql.contains("SET codice_app = ? WHERE "));
+
+      Schema schema = tds.schema();
+      BitSet dirty = new BitSet();
+      dirty.set(schema.index("codice_app"));
+      SqlTemplate tpl = schema.getSqlTemplate(Enums.UPDATE, tds.keydef(), dirty);
+      assertEquals(sql, tpl.getSql());
+      // colonna modificata seguita dalle colonne della chiave
+      int[] bind = tpl.getBindColumns();
+      assertEquals(1 + tds.keydef().size(), bind.length);
+      assertEquals(schema.index("codice_app"), bind[0]);
+      assertEquals(schema.index(tds.keydef().getAttrib(1)), bind[1]);
+
+      r2.setValue("stato_rec", 9);
+      assertFalse(sql.equals(r2.getUpdateSaveString()));
+
+      // la DELETE non dipende dalle colonne modificate
+      assertTrue(r1.getDeleteSaveString() == tds.getRecord(2).getDeleteSaveString());
+
+      // le colonne della chiave non possono essere modificate
+      r1.setValue("app", "q");
+      try
+      {
+        r1.getUpdateSaveString();
+        fail("chiave modificata");
+      }
+      catch(DataSetException ex)
+      {
+        // atteso
+      }
+    }
+  }
+
+  @Test
+  public void testMultiRowInsert()
+     throws Exception
+  {
+    System.out.println("testMultiRowInsert");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(3);
+      tds.setMultiRowInsert(true);
+      tds.where("app='y'");
+      tds.fetchRecords();
+      assertEquals(0, tds.size());
+
+      for(int i = 1; i <= 7; i++)
+      {
+        Record r = tds.addRecord();
+        r.setValue("app", "y");
+        r.setValue("tipo", "y");
+        r.setValue("codice_vero", "MULTI" + i);
+        r.setValue("codice_app", "APP" + i);
+      }
+
+      SqlTemplate tpl = tds.getRecord(0).saveTemplate();
+      String sql3 = tpl.getMultiRowInsert(3);
+      assertTrue(sql3.endsWith("VALUES ( ?, ?, ?, ? ), ( ?, ?, ?, ? ), ( ?, ?, ?, ? )"));
+
+      tds.save();
+      for(int i = 0; i < tds.size(); i++)
+      {
+        assertEquals(Enums.AFTERINSERT, tds.getRecord(i).getSaveType());
+        assertTrue(tds.getRecord(i).recordIsClean());
+      }
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(100);
+      tds.where("app='y'").order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(7, tds.size());
+      assertEquals("APP7", tds.getRecord(6).getValue("codice_app").asString());
+
+      for(int i = 0; i < tds.size(); i++)
+        tds.getRecord(i).markToBeDeleted();
+      tds.save();
+      assertEquals(0, tds.size());
+    }
+  }
+
+  @Test
+  public void testChunkedCommit()
+     throws Exception
+  {
+    System.out.println("testChunkedCommit");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(2);
+      tds.setCommitInterval(2);
+      tds.where("app='z'");
+      tds.fetchRecords();
+      assertEquals(0, tds.size());
+
+      for(int i = 1; i <= 5; i++)
+      {
+        Record r = tds.addRecord();
+        r.setValue("app", "z");
+        r.setValue("tipo", "z");
+        r.setValue("codice_vero", "CHUNK" + i);
+        r.setValue("codice_app", "APP" + i);
+      }
+
+      SaveResult sr = tds.saveWithResult(th.con, false);
+      assertEquals(5, sr.getSaved());
+      assertEquals(0, sr.getFailed());
+      assertEquals(3, sr.getChunks());
+      assertEquals(3, sr.getCommits());
+      assertTrue(th.con.getAutoCommit());
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(10);
+      tds.setSaveErrorPolicy(TableSaveEngine.ON_ERROR_RETRY_ROWS);
+
+      // la seconda riga ha una chiave già presente
+      for(String cod : new String[]{"CHUNK6", "CHUNK5", "CHUNK7"})
+      {
+        Record r = tds.addRecord();
+        r.setValue("app", "z");
+        r.setValue("tipo", "z");
+        r.setValue("codice_vero", cod);
+        r.setValue("codice_app", "APP");
+      }
+
+      SaveResult sr = tds.saveWithResult(th.con, false);
+      assertEquals(1, sr.getFailedChunks());
+      assertEquals(2, sr.getSaved());
+      assertEquals(1, sr.getFailed());
+
+      Record failed = sr.getFailedRecords().get(0);
+      assertEquals("CHUNK5", failed.getValue("codice_vero").asString());
+      assertTrue(failed.toBeSavedWithInsert());
+      assertFalse(failed.recordIsClean());
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.where("app='z'");
+      tds.fetchRecords();
+      assertEquals(7, tds.size());
+
+      for(int i = 0; i < tds.size(); i++)
+        tds.getRecord(i).markToBeDeleted();
+      tds.save();
+      assertEquals(0, tds.size());
+    }
+  }
+
+  @Test
+  public void testBulkDelete()
+     throws Exception
+  {
+    System.out.println("testBulkDelete");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(100);
+      for(int i = 1; i <= 9; i++)
+      {
+        Record r = tds.addRecord();
+        r.setValue("app", "z");
+        r.setValue("tipo", "z");
+        r.setValue("codice_vero", "BULK" + i);
+        r.setValue("codice_app", "APP" + i);
+      }
+      tds.save();
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(4);
+      tds.setBulkDelete(true);
+      tds.where("app='z'").order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(9, tds.size());
+
+      SqlTemplate tpl = tds.getRecord(0).markToBeDeleted().saveTemplate();
+      assertTrue(tpl.getBulkDelete(2, true).endsWith(" IN ((?, ?, ?), (?, ?, ?))"));
+      assertTrue(tpl.getBulkDelete(2, false).contains(" = ?) OR ("));
+
+      // cancella i dispari
+      for(int i = 0; i < tds.size(); i += 2)
+        tds.getRecord(i).markToBeDeleted();
+
+      SaveResult sr = tds.saveWithResult(th.con, false);
+      assertEquals(5, sr.getSaved());
+      assertEquals(2, sr.getChunks());
+      assertEquals(4, tds.size());
+      assertEquals("BULK2", tds.getRecord(0).getValue("codice_vero").asString());
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setBulkDelete(true);
+      tds.where("app='z'");
+      tds.fetchRecords();
+      assertEquals(4, tds.size());
+
+      for(int i = 0; i < tds.size(); i++)
+        tds.getRecord(i).markToBeDeleted();
+      tds.save();
+      assertEquals(0, tds.size());
+    }
+  }
+
+  @Test
+  public void testUpsert()
+     throws Exception
+  {
+    System.out.println("testUpsert");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      for(int i = 1; i <= 2; i++)
+      {
+        Record r = tds.addRecord();
+        r.setValue("app", "z");
+        r.setValue("tipo", "z");
+        r.setValue("codice_vero", "UPS" + i);
+        r.setValue("codice_app", "OLD" + i);
+      }
+      tds.save();
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(10);
+
+      // due righe esistenti e una nuova
+      for(int i = 1; i <= 3; i++)
+      {
+        Record r = tds.addRecord();
+        r.markForUpsert();
+        r.setValue("app", "z");
+        r.setValue("tipo", "z");
+        r.setValue("codice_vero", "UPS" + i);
+        r.setValue("codice_app", "NEW" + i);
+      }
+
+      assertTrue(tds.getRecord(0).getSaveString().startsWith("MERGE INTO"));
+      SaveResult sr = tds.saveWithResult(th.con, false);
+      assertEquals(3, sr.getSaved());
+      assertEquals(1, sr.getChunks());
+      assertEquals(Enums.AFTERUPSERT, tds.getRecord(2).getSaveType());
+      assertTrue(tds.getRecord(2).recordIsClean());
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.where("app='z'").order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(3, tds.size());
+
+      for(int i = 0; i < tds.size(); i++)
+      {
+        assertEquals("NEW" + (i + 1), tds.getRecord(i).getValue("codice_app").asString());
+        tds.getRecord(i).markToBeDeleted();
+      }
+      tds.save();
+      assertEquals(0, tds.size());
+    }
+  }
+
+  @Test
+  public void testGeneratedKeysBatch()
+     throws Exception
+  {
+    System.out.println("testGeneratedKeysBatch");
+    String table = "stp.gen_keys";
+
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("DROP TABLE " + table);
+    }
+    catch(SQLException ex)
+    {
+      // la tabella non esiste
+    }
+
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE " + table
+         + " (id INTEGER GENERATED ALWAYS AS IDENTITY PRIMARY KEY, descrizione VARCHAR(40))");
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, table))
+    {
+      tds.setSaveBatchSize(10);
+      for(int i = 1; i <= 4; i++)
+      {
+        Record r = tds.addRecord();
+        r.setPreferInsertAndGetGeneratedKeys(true);
+        r.setValue("descrizione", "RIGA" + i);
+      }
+
+      assertEquals(1, tds.getRecord(0).generatedKeyColumns().length);
+
+      // Derby non ritorna le chiavi di un executeBatch(): un inserimento per volta
+      assertFalse(SqlDialect.getDialect(th.con).supportsBatchGeneratedKeys());
+      SaveResult sr = tds.saveWithResult(th.con, false);
+      assertEquals(4, sr.getSaved());
+      assertEquals(4, sr.getChunks());
+
+      for(int i = 0; i < tds.size(); i++)
+      {
+        Record r = tds.getRecord(i);
+        assertTrue(r.recordIsClean());
+        assertEquals(i + 1, r.getValue("id").asInt());
+      }
+    }
+    finally
+    {
+      try(Statement st = th.con.createStatement())
+      {
+        st.executeUpdate("DROP TABLE " + table);
+      }
+    }
+  }
+
+  @Test
+  public void testRefreshOnSaveBatch()
+     throws Exception
+  {
+    System.out.println("testRefreshOnSaveBatch");
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setSaveBatchSize(10);
+      tds.setRefreshOnSave(true);
+
+      for(int i = 1; i <= 3; i++)
+      {
+        Record r = tds.addRecord();
+        r.setValue("app", "z");
+        r.setValue("tipo", "z");
+        r.setValue("codice_vero", "REF" + i);
+        r.setValue("codice_app", "APP" + i);
+      }
+
+      tds.save();
+      for(int i = 0; i < tds.size(); i++)
+      {
+        Record r = tds.getRecord(i);
+        assertEquals(Enums.AFTERINSERT, r.getSaveType());
+        assertTrue(r.recordIsClean());
+        assertEquals("APP" + (i + 1), r.getValue("codice_app").asString());
+      }
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setBulkDelete(true);
+      tds.where("app='z'");
+      tds.fetchRecords();
+      assertEquals(3, tds.size());
+
+      for(int i = 0; i < tds.size(); i++)
+        tds.getRecord(i).markToBeDeleted();
+
+      // i record cancellati sono compresi nel conteggio
+      assertEquals(3, tds.save());
+      assertEquals(0, tds.size());
+    }
+  }
+
+  @Test
+  public void testTableWriter()
+     throws Exception
+  {
+    System.out.println("testTableWriter");
+    try(TableWriter tw = new TableWriter(th.con, "stp.transcode"))
+    {
+      tw.setFlushRows(2);
+
+      Map<String, Object> row = new HashMap<>();
+      row.put("app", "z");
+      row.put("tipo", "z");
+      row.put("codice_vero", "TW1");
+      row.put("codice_app", "APP1");
+      tw.write(row);
+      assertEquals(1, tw.getPendingRows());
+      assertEquals(0, tw.getRowsFlushed());
+
+      tw.write("z", "z", "TW2", "APP2");
+      assertEquals(0, tw.getPendingRows());
+      assertEquals(2, tw.getRowsFlushed());
+      assertEquals(1, tw.getFlushes());
+
+      Record src = TableDataSet.fetchOneRecord("stp.transcode", "app='d' AND codice_vero='CODVER10'", th.con);
+      assertNotNull(src);
+      src.setValue("app", "z");
+      src.setValue("codice_vero", "TW3");
+      tw.write(src);
+
+      assertEquals(1, tw.getPendingRows());
+      assertEquals(3, tw.getRowsWritten());
+    }
+
+    try(TableDataSet tds = new TableDataSet(th.con, "stp.transcode"))
+    {
+      tds.setBulkDelete(true);
+      tds.where("app='z'");
+      tds.order("codice_vero");
+      tds.fetchRecords();
+      assertEquals(3, tds.size());
+      assertEquals("APP2", tds.getRecord(1).getValue("codice_app").asString());
+      assertEquals("CODAPP10", tds.getRecord(2).getValue("codice_app").asString());
+
+      for(int i = 0; i < tds.size(); i++)
+        tds.getRecord(i).markToBeDeleted();
+      tds.save();
+      assertEquals(0, tds.size());
+    }
+  }
+
+  @Test
+  public void testTableWriterPendingLimit()
+     throws Exception
+  {
+    System.out.println("testTableWriterPendingLimit");
+    // riga con chiave già esistente: ogni flush fallisce
+    Record src = TableDataSet.fetchOneRecord("stp.transcode", "app='d' AND codice_vero='CODVER10'", th.con);
+    assertNotNull(src);
+
+    TableWriter tw = new TableWriter(th.con, "stp.transcode");
+    try
+    {
+      tw.setFlushRows(2);
+      assertEquals(4, tw.getMaxPendingRows());
+
+      for(int i = 0; i < 4; i++)
+      {
+        try
+        {
+          tw.write(src);
+        }
+        catch(SQLException | DataSetException ex)
+        {
+          // flush fallito: le righe restano in attesa
+        }
+      }
+      assertEquals(4, tw.getPendingRows());
+
+      try
+      {
+        tw.write(src);
+        fail("scrittura oltre il limite delle righe in attesa");
+      }
+      catch(DataSetException ex)
+      {
+        // atteso
+      }
+
+      assertEquals(4, tw.getPendingRows());
+      assertEquals(4, tw.getRowsWritten());
+    }
+    finally
+    {
+      try
+      {
+        tw.close();
+      }
+      catch(SQLException | DataSetException ex)
+      {
+        // il flush finale fallisce come i precedenti
+      }
+    }
+  }
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import org.junit.After;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Confronto dei tempi dei lettori precompilati con la vecchia decodifica
+ * (switch sul tipo per ogni cella) su una tabella larga.
+ * Non viene eseguito con i test normali; per eseguirlo:
+ * <pre>
+ * mvn test -Dtest=ValueReaderBenchmark -Dvillage.benchmark=true
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class ValueReaderBenchmark
+{
+  public final DerbyTestHelper th = new DerbyTestHelper();
+
+  public static final String WIDE_TABLE = "stp.wide_bench";
+  public static final int WIDE_COLUMNS = 40;
+  public static final int WIDE_ROWS = 5000;
+
+  /** tipi delle colonne della tabella larga: ripetuti ciclicamente */
+  private static final String[] WIDE_TYPES =
+  {
+    "INTEGER", "BIGINT", "DECIMAL(12,2)", "DOUBLE", "VARCHAR(32)", "SMALLINT", "TIMESTAMP", "DECIMAL(18,4)"
+  };
+
+  private static final int[] WIDE_SQL_TYPES =
+  {
+    Types.INTEGER, Types.BIGINT, Types.DECIMAL, Types.DOUBLE, Types.VARCHAR, Types.SMALLINT, Types.TIMESTAMP, Types.DECIMAL
+  };
+
+  public ValueReaderBenchmark()
+  {
+  }
+
+  @Before
+  public void setUp()
+     throws Exception
+  {
+    assumeTrue(Boolean.getBoolean("village.benchmark"));
+    th.init();
+    if(!th.existTable("stp.transcode"))
+      th.buildDb1();
+  }
+
+  @After
+  public void tearDown()
+     throws Exception
+  {
+    th.shutdown();
+  }
+
+  /**
+   * Decodifica di una tabella larga: vecchio switch per cella contro lettori precompilati.
+   * I tempi vengono solo stampati; si verifica che i valori siano identici.
+   */
+  @Test
+  public void testWideTableBenchmark()
+     throws Exception
+  {
+    System.out.println("benchmark tabella larga");
+    buildWideTable();
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + WIDE_TABLE))
+    {
+      Schema schema = qds.schema();
+      assertEquals(WIDE_COLUMNS, schema.numberOfColumns());
+
+      // riscaldamento
+      decodeLegacy(schema);
+      decodeCompiled(schema);
+
+      long legacy = Long.MAX_VALUE, compiled = Long.MAX_VALUE;
+      for(int run = 0; run < 3; run++)
+      {
+        legacy = Math.min(legacy, decodeLegacy(schema));
+        compiled = Math.min(compiled, decodeCompiled(schema));
+      }
+
+      System.out.printf("%d righe x %d colonne: switch per cella %d ms, lettori precompilati %d ms\n",
+         WIDE_ROWS, WIDE_COLUMNS, legacy / 1000000, compiled / 1000000);
+
+      // stessi valori con entrambe le decodifiche
+      try(Statement st = th.con.createStatement();
+         ResultSet rs = st.executeQuery("SELECT * FROM " + WIDE_TABLE))
+      {
+        ValueReader[] readers = schema.getReaders();
+        while(rs.next())
+        {
+          for(int i = 1; i <= WIDE_COLUMNS; i++)
+          {
+            Object o1 = legacyRead(rs, i, schema.column(i).typeEnum());
+            Object o2 = readers[i].read(rs, i);
+            if(o1 instanceof BigDecimal)
+              assertEquals(0, ((BigDecimal) o1).compareTo((BigDecimal) o2));
+            else
+              assertEquals(o1, o2);
+          }
+        }
+      }
+    }
+  }
+
+  private long decodeLegacy(Schema schema)
+     throws Exception
+  {
+    long start = System.nanoTime();
+    try(Statement st = th.con.createStatement();
+       ResultSet rs = st.executeQuery("SELECT * FROM " + WIDE_TABLE))
+    {
+      while(rs.next())
+      {
+        for(int i = 1; i <= WIDE_COLUMNS; i++)
+        {
+          Column col = schema.column(i);
+          new Value(i, col, col.typeEnum(), legacyRead(rs, i, col.typeEnum()));
+        }
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private long decodeCompiled(Schema schema)
+     throws Exception
+  {
+    long start = System.nanoTime();
+    try(Statement st = th.con.createStatement();
+       ResultSet rs = st.executeQuery("SELECT * FROM " + WIDE_TABLE))
+    {
+      ValueReader[] readers = schema.getReaders();
+      while(rs.next())
+      {
+        for(int i = 1; i <= WIDE_COLUMNS; i++)
+        {
+          Column col = schema.column(i);
+          new Value(i, col, col.typeEnum(), readers[i].read(rs, i));
+        }
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * La decodifica del vecchio costruttore di Value:
+   * switch sul tipo, NUMERIC da stringa e wasNull() su ogni cella.
+   */
+  private static Object legacyRead(ResultSet rs, int i, int type)
+     throws SQLException
+  {
+    Object rv;
+
+    switch(type)
+    {
+      case Types.BIGINT:
+        rv = rs.getLong(i);
+        break;
+      case Types.SMALLINT:
+        rv = rs.getShort(i);
+        break;
+      case Types.INTEGER:
+        rv = rs.getInt(i);
+        break;
+      case Types.FLOAT:
+      case Types.DOUBLE:
+        rv = rs.getDouble(i);
+        break;
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        String number = rs.getString(i);
+        rv = number == null ? null : new BigDecimal(number);
+        break;
+      case Types.TIMESTAMP:
+        rv = rs.getTimestamp(i);
+        break;
+      default:
+        rv = rs.getString(i);
+        break;
+    }
+
+    return rs.wasNull() ? null : rv;
+  }
+
+  private void buildWideTable()
+     throws Exception
+  {
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("DROP TABLE " + WIDE_TABLE);
+    }
+    catch(SQLException ex)
+    {
+      // la tabella non esiste
+    }
+
+    StringBuilder create = new StringBuilder("CREATE TABLE " + WIDE_TABLE + " (");
+    StringBuilder insert = new StringBuilder("INSERT INTO " + WIDE_TABLE + " VALUES (");
+    for(int i = 1; i <= WIDE_COLUMNS; i++)
+    {
+      if(i > 1)
+      {
+        create.append(", ");
+        insert.append(", ");
+      }
+      create.append("c").append(i).append(' ').append(WIDE_TYPES[(i - 1) % WIDE_TYPES.length]);
+      insert.append('?');
+    }
+    create.append(")");
+    insert.append(")");
+
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate(create.toString());
+    }
+
+    boolean autoCommit = th.con.getAutoCommit();
+    th.con.setAutoCommit(false);
+    try(PreparedStatement ps = th.con.prepareStatement(insert.toString()))
+    {
+      for(int row = 0; row < WIDE_ROWS; row++)
+      {
+        for(int i = 1; i <= WIDE_COLUMNS; i++)
+        {
+          // una cella su dieci a null
+          if((row + i) % 10 == 0)
+          {
+            ps.setNull(i, WIDE_SQL_TYPES[(i - 1) % WIDE_SQL_TYPES.length]);
+            continue;
+          }
+
+          switch((i - 1) % WIDE_TYPES.length)
+          {
+            case 0:
+            case 5:
+              ps.setInt(i, row % 1000);
+              break;
+            case 1:
+              ps.setLong(i, row * 1000L + i);
+              break;
+            case 2:
+            case 7:
+              ps.setBigDecimal(i, BigDecimal.valueOf(row * 100L + i, 2));
+              break;
+            case 3:
+              ps.setDouble(i, row / 3.0);
+              break;
+            case 4:
+              ps.setString(i, "val" + (row % 50));
+              break;
+            case 6:
+              ps.setTimestamp(i, new Timestamp(1700000000000L + row * 1000L));
+              break;
+          }
+        }
+        ps.addBatch();
+
+        if(row % 500 == 499)
+          ps.executeBatch();
+      }
+      ps.executeBatch();
+      th.con.commit();
+    }
+    finally
+    {
+      th.con.setAutoCommit(autoCommit);
+    }
+  }
+}
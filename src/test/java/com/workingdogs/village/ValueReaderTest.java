@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.workingdogs.village;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifica dei lettori precompilati.
+ *
+ * @author Nicola De Nisco
+ */
+public class ValueReaderTest
+{
+  public final DerbyTestHelper th = new DerbyTestHelper();
+
+  public static final String TYPES_TABLE = "stp.value_types";
+
+  private static final String[] TYPES_COLUMNS =
+  {
+    "c_smallint", "c_integer", "c_bigint", "c_decimal", "c_double", "c_varchar", "c_date", "c_time", "c_timestamp"
+  };
+
+  public ValueReaderTest()
+  {
+  }
+
+  @Before
+  public void setUp()
+     throws Exception
+  {
+    th.init();
+    if(!th.existTable("stp.transcode"))
+      th.buildDb1();
+  }
+
+  @After
+  public void tearDown()
+     throws Exception
+  {
+    th.shutdown();
+  }
+
+  @Test
+  public void testForType()
+  {
+    System.out.println("forType");
+    assertSame(ValueReader.INTEGER, ValueReader.forType(Types.INTEGER));
+    assertSame(ValueReader.DOUBLE, ValueReader.forType(Types.FLOAT));
+    assertSame(ValueReader.NUMERIC, ValueReader.forType(Types.DECIMAL));
+    assertSame(ValueReader.STRING, ValueReader.forType(Types.NVARCHAR));
+  }
+
+  @Test
+  public void testSchemaReaders()
+     throws Exception
+  {
+    System.out.println("Schema.getReaders");
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM stp.transcode"))
+    {
+      ValueReader[] readers = qds.schema().getReaders();
+      assertEquals(qds.schema().numberOfColumns() + 1, readers.length);
+      assertSame(readers, qds.schema().getReaders());
+      assertSame(ValueReader.INTEGER, readers[qds.schema().index("stato_rec")]);
+      assertSame(ValueReader.TIMESTAMP, readers[qds.schema().index("ult_modif")]);
+
+      qds.fetchRecords();
+      Record r = qds.getRecord(0);
+      assertTrue(r.getValue("validita").isNull());
+      assertEquals(0, r.getValue("stato_rec").asInt());
+    }
+  }
+
+  /**
+   * Decodifica di ogni tipo: valori, zeri (che non devono diventare null) e null.
+   */
+  @Test
+  public void testDecodeTypes()
+     throws Exception
+  {
+    System.out.println("decodifica dei tipi");
+    buildTypesTable();
+
+    try(QueryDataSet qds = new QueryDataSet(th.con, "SELECT * FROM " + TYPES_TABLE + " ORDER BY id"))
+    {
+      qds.fetchRecords();
+      assertEquals(3, qds.size());
+
+      Record r = qds.getRecord(0);
+      assertEquals(Short.valueOf((short) 12), r.getValue("c_smallint").getValue());
+      assertEquals(Integer.valueOf(123456), r.getValue("c_integer").getValue());
+      assertEquals(Long.valueOf(9876543210L), r.getValue("c_bigint").getValue());
+      assertEquals(new BigDecimal("1234.56"), r.getValue("c_decimal").getValue());
+      assertEquals(Double.valueOf(0.25), r.getValue("c_double").getValue());
+      assertEquals("abc", r.getValue("c_varchar").getValue());
+      assertEquals(Date.valueOf("2024-02-29"), r.getValue("c_date").getValue());
+      assertEquals(Time.valueOf("13:45:10"), r.getValue("c_time").getValue());
+      assertEquals(Timestamp.valueOf("2024-02-29 13:45:10.5"), r.getValue("c_timestamp").getValue());
+
+      r = qds.getRecord(1);
+      assertEquals(Short.valueOf((short) 0), r.getValue("c_smallint").getValue());
+      assertEquals(Integer.valueOf(0), r.getValue("c_integer").getValue());
+      assertEquals(Long.valueOf(0), r.getValue("c_bigint").getValue());
+      assertEquals(new BigDecimal("0.00"), r.getValue("c_decimal").getValue());
+      assertEquals(Double.valueOf(0), r.getValue("c_double").getValue());
+      assertEquals("", r.getValue("c_varchar").getValue());
+
+      r = qds.getRecord(2);
+      for(String col : TYPES_COLUMNS)
+        assertTrue(col, r.getValue(col).isNull());
+    }
+  }
+
+  private void buildTypesTable()
+     throws Exception
+  {
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("DROP TABLE " + TYPES_TABLE);
+    }
+    catch(SQLException ex)
+    {
+      // la tabella non esiste
+    }
+
+    try(Statement st = th.con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE " + TYPES_TABLE + " (id INTEGER NOT NULL PRIMARY KEY,"
+         + " c_smallint SMALLINT, c_integer INTEGER, c_bigint BIGINT, c_decimal DECIMAL(12,2),"
+         + " c_double DOUBLE, c_varchar VARCHAR(32), c_date DATE, c_time TIME, c_timestamp TIMESTAMP)");
+      st.executeUpdate("INSERT INTO " + TYPES_TABLE + " VALUES (1, 12, 123456, 9876543210, 1234.56,"
+         + " 0.25, 'abc', '2024-02-29', '13:45:10', '2024-02-29 13:45:10.5')");
+      st.executeUpdate("INSERT INTO " + TYPES_TABLE + " VALUES (2, 0, 0, 0, 0, 0, '', NULL, NULL, NULL)");
+      st.executeUpdate("INSERT INTO " + TYPES_TABLE + " (id) VALUES (3)");
+    }
+  }
+}